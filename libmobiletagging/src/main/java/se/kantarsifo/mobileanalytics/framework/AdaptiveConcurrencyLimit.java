@@ -0,0 +1,183 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Limits the number of tag requests in flight, adapting the limit to the network with additive
+ * increase and multiplicative decrease (AIMD).
+ * <p>
+ * The limit grows by one each time a full window of requests, as many as the current limit, has
+ * completed without sign of congestion. It is halved when a request fails with a network error,
+ * a timeout, a 5xx or a 429 response, or takes more than {@link #LATENCY_TOLERANCE} times the
+ * baseline latency. The baseline is the lowest latency seen, slowly drifting up so that it follows
+ * a network that got slower. Only one decrease is made for the requests that were in flight together,
+ * those started before the last decrease do not decrease the limit again.
+ * <p>
+ * Tasks submitted while the limit is reached wait in order and are run on the executor as soon
+ * as a request completes.
+ */
+class AdaptiveConcurrencyLimit {
+
+    /**
+     * How much slower than the baseline a request may be before it counts as congestion.
+     */
+    static final double LATENCY_TOLERANCE = 2.0;
+
+    /**
+     * The factor the limit is multiplied with on congestion.
+     */
+    private static final double DECREASE_FACTOR = 0.5;
+
+    /**
+     * The share of the distance to a higher latency the baseline drifts up with each request.
+     */
+    private static final double BASELINE_DRIFT = 0.01;
+
+    /**
+     * Latencies below this are not distinguished, so a fast network does not make the tolerance too tight.
+     */
+    private static final long MIN_BASELINE_MILLIS = 20;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final Executor executor;
+
+    /**
+     * Tasks waiting for a request to complete, oldest first.
+     */
+    private final ArrayDeque<Runnable> waiting = new ArrayDeque<>();
+
+    private double limit;
+    private int inFlight;
+    private double baselineMillis = -1;
+    private long lastDecreaseNanos;
+
+    /**
+     * Create a new limit, starting at the minimum.
+     *
+     * @param minLimit The lowest limit, at least 1.
+     * @param maxLimit The highest limit, at least the lowest.
+     * @param executor The executor running the waiting tasks.
+     */
+    AdaptiveConcurrencyLimit(int minLimit, int maxLimit, Executor executor) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.executor = executor;
+        this.limit = this.minLimit;
+        this.lastDecreaseNanos = System.nanoTime();
+    }
+
+    /**
+     * Run a task sending a request now on the calling thread if the limit allows it, or later on the
+     * executor. The task must call {@link #release(long, long, boolean)} when the request has completed.
+     *
+     * @param task The task sending the request.
+     */
+    void submit(Runnable task) {
+        synchronized (this) {
+            if (inFlight >= (int) limit || !waiting.isEmpty()) {
+                waiting.add(task);
+                return;
+            }
+            inFlight++;
+        }
+        task.run();
+    }
+
+    /**
+     * Report a completed request and adapt the limit.
+     *
+     * @param startNanos    The System.nanoTime() the request was started.
+     * @param latencyMillis The time the request took, or -1 if it was never sent, such as a request
+     *                      that expired while waiting. The limit is then left unchanged.
+     * @param failed        True if the request failed in a way that indicates congestion.
+     */
+    void release(long startNanos, long latencyMillis, boolean failed) {
+        synchronized (this) {
+            inFlight--;
+            if (latencyMillis >= 0) {
+                adapt(startNanos, latencyMillis, failed);
+            }
+            while (inFlight < (int) limit && !waiting.isEmpty()) {
+                inFlight++;
+                try {
+                    executor.execute(waiting.poll());
+                } catch (RejectedExecutionException e) {
+                    // The framework is shut down
+                    inFlight--;
+                    waiting.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Check if a failed request is a sign of congestion: a network error, a timeout, an aborted
+     * request or a 5xx or 429 response. Other rejections by the server say nothing about the network.
+     *
+     * @param request The completed request.
+     * @return True if the limit should be decreased.
+     */
+    static boolean isCongestion(TagDataRequest request) {
+        TagFailureReason reason = request.getFailureReason();
+        if (reason == null || reason == TagFailureReason.INTERNAL_ERROR) {
+            return false;
+        }
+        if (reason == TagFailureReason.HTTP_STATUS) {
+            int statusCode = request.getHttpStatusCode();
+            return statusCode >= 500 || statusCode == TagRetryPolicy.HTTP_TOO_MANY_REQUESTS;
+        }
+        return true;
+    }
+
+    private void adapt(long startNanos, long latencyMillis, boolean failed) {
+        if (!failed) {
+            updateBaseline(latencyMillis);
+        }
+        boolean congested = failed || latencyMillis > LATENCY_TOLERANCE * baselineMillis;
+        if (congested) {
+            if (startNanos - lastDecreaseNanos > 0) {
+                limit = Math.max(minLimit, limit * DECREASE_FACTOR);
+                lastDecreaseNanos = System.nanoTime();
+            }
+        } else if (inFlight + 1 >= (int) limit) {
+            // Only grow while the limit is actually used
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+    }
+
+    private void updateBaseline(long latencyMillis) {
+        double latency = Math.max(MIN_BASELINE_MILLIS, latencyMillis);
+        if (baselineMillis < 0 || latency < baselineMillis) {
+            baselineMillis = latency;
+        } else {
+            baselineMillis += (latency - baselineMillis) * BASELINE_DRIFT;
+        }
+    }
+
+    /**
+     * Get the current limit of requests in flight.
+     *
+     * @return The limit.
+     */
+    synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * Get the number of requests in flight.
+     *
+     * @return The number of requests.
+     */
+    synchronized int getInFlight() {
+        return inFlight;
+    }
+}
@@ -1,8 +1,9 @@
 package se.kantarsifo.mobileanalytics.framework;
 
 import android.content.Context;
-import org.json.JSONException;
-import org.json.JSONObject;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import java.io.IOException;
 import java.net.CookieStore;
 import java.net.HttpCookie;
 import java.net.URI;
@@ -36,7 +37,7 @@ class CookieHandler {
 
         for (HttpCookie cookie : cookies) {
             try {
-                SifoCookieManager.getInstance().getCookieStore().add(new URI(cookie.getDomain()), cookie);
+                SifoCookieManager.getInstance().addCookie(new URI(cookie.getDomain()), cookie);
             } catch (URISyntaxException e) {
                 e.printStackTrace();
             }
@@ -47,15 +48,74 @@ class CookieHandler {
         return SifoCookieManager.getInstance().getCookieStore();
     }
 
-    static HttpCookie getCookieFromJson(JSONObject json) throws JSONException {
-        HttpCookie cookie = new HttpCookie(json.getString("key"), json.getString("value"));
-        cookie.setDomain(json.getString("domain"));
-        cookie.setPath(json.getString("path"));
+    /**
+     * Read a cookie entry of the panelist cookie file, an object with the attributes key, value,
+     * domain and path. The whole entry is consumed even if it is not valid, so that the reader is
+     * positioned at the next entry.
+     *
+     * @param reader The reader, positioned at the entry.
+     * @return The cookie, or null if the entry is not a valid cookie.
+     * @throws IOException If the file can not be read or is not valid JSON.
+     */
+    static HttpCookie readCookieFromJson(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return null;
+        }
+        String key = null;
+        String value = null;
+        String domain = null;
+        String path = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("key".equals(name)) {
+                key = readJsonString(reader);
+            } else if ("value".equals(name)) {
+                value = readJsonString(reader);
+            } else if ("domain".equals(name)) {
+                domain = readJsonString(reader);
+            } else if ("path".equals(name)) {
+                path = readJsonString(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (key == null || value == null || domain == null || path == null) {
+            return null;
+        }
+        HttpCookie cookie;
+        try {
+            cookie = new HttpCookie(key, value);
+        } catch (IllegalArgumentException e) {
+            // Not a valid cookie name
+            return null;
+        }
+        cookie.setDomain(domain);
+        cookie.setPath(path);
         cookie.setVersion(1);
         cookie.setMaxAge(getExpiryDate(10).getTime());
         return cookie;
     }
 
+    /**
+     * Read a value as a string, as JSONObject.getString does for strings, numbers and booleans.
+     *
+     * @return The value, or null if it is null, an object or an array.
+     */
+    private static String readJsonString(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+            return reader.nextString();
+        } else if (token == JsonToken.BOOLEAN) {
+            return String.valueOf(reader.nextBoolean());
+        }
+        reader.skipValue();
+        return null;
+    }
+
     static String getCookieString(HttpCookie cookie) {
         return String.format("%s=%s",
                 cookie.getName(), cookie.getValue());
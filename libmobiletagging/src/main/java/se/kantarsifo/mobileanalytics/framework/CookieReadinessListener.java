@@ -0,0 +1,30 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+
+/**
+ * TNS SIFO Mobile Application Tagging Framework :
+ * Debugging/Advanced features : CookieReadinessListener.java :
+ *
+ * This interface is used to receive a callback when the panelist cookies have been set up.
+ * Tags sent before that are held by the framework and sent once the cookies are ready, so that
+ * no tag is sent without the panelist cookies.
+ * The callback is made on a background thread of the framework.
+ */
+public interface CookieReadinessListener {
+    /**
+     * This method is called when the panelist cookies have been set up, when the framework is
+     * initiated and again each time the panelist cookies are refreshed.
+     * If the listener is set after the cookies were set up, it is called right away on the calling thread.
+     *
+     * @param success       True if the cookies were set up, false if it failed and tags are sent without them.
+     * @param attempts      The number of attempts it took, including the checks of the Android System WebView package.
+     * @param elapsedMillis The time in milliseconds from the first attempt until the cookies were ready.
+     */
+    void onCookiesReady(boolean success, int attempts, long elapsedMillis);
+}
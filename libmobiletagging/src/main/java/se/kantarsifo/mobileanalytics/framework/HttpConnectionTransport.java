@@ -0,0 +1,334 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * The default {@link TagTransport}, sending tags with {@link HttpURLConnection}.
+ * <p>
+ * Connections are never disconnected after a completed request. Instead the response body is read
+ * to the end and the stream is closed, which hands the socket back to the platform's keep-alive
+ * pool so the next tag to the same host (bh.mobiletech.no or trafficgateway.research-int.se)
+ * can skip the TCP and TLS setup.
+ * <p>
+ * All HTTPS connections share one SSLSocketFactory, which keeps them in the same pool and counts
+ * every new TLS connection per host. Requests that did not need a new connection reused a pooled one.
+ * Plain HTTP connections can not be counted and are left out of the counters.
+ */
+class HttpConnectionTransport implements TagTransport {
+
+    /**
+     * Request and connection counters for one host.
+     */
+    static final class HostStats {
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong newConnections = new AtomicLong();
+
+        long getReusedConnections() {
+            return Math.max(0, requests.get() - newConnections.get());
+        }
+    }
+
+    /**
+     * The size of the buffer response bodies are drained into.
+     */
+    private static final int DRAIN_BUFFER_SIZE = 512;
+
+    /**
+     * The maximum number of bytes drained from a response. Reading a larger body costs more than
+     * opening a new connection, so the connection is closed instead.
+     */
+    static final int MAX_DRAINED_BYTES = 16 * 1024;
+
+    /**
+     * One reused drain buffer per thread releasing connections.
+     */
+    private static final ThreadLocal<byte[]> DRAIN_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[DRAIN_BUFFER_SIZE];
+        }
+    };
+
+    private final ConcurrentMap<String, HostStats> hostStats = new ConcurrentHashMap<>();
+
+    private volatile int connectTimeoutMillis = TagStringsAndValues.DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private volatile int readTimeoutMillis = TagStringsAndValues.DEFAULT_READ_TIMEOUT_MILLIS;
+
+    /**
+     * Created when the first HTTPS connection is opened, since loading the default SSL context is slow.
+     */
+    private volatile CountingSSLSocketFactory sslSocketFactory;
+
+    @Override
+    public Response execute(Request request) throws IOException {
+        HttpURLConnection con = open(request.getUrl());
+        request.setTag(con);
+        try {
+            con.setRequestMethod(request.getMethod());
+            for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+                con.setRequestProperty(header.getKey(), header.getValue());
+            }
+            byte[] body = request.getBody();
+            if (body != null) {
+                con.setDoOutput(true);
+                con.setFixedLengthStreamingMode(body.length);
+            }
+
+            con.connect();
+            request.onConnected();
+            if (body != null) {
+                OutputStream out = con.getOutputStream();
+                try {
+                    out.write(body);
+                } finally {
+                    out.close();
+                }
+            }
+            // The status is read once, error statuses do not throw here
+            int statusCode = con.getResponseCode();
+            request.onResponseStarted();
+            if (statusCode == -1) {
+                throw new IOException("Invalid HTTP response");
+            }
+            String message = statusCode == 200 ? null : con.getResponseMessage();
+            String retryAfter = statusCode >= 400 ? con.getHeaderField("Retry-After") : null;
+            SifoCookieManager cookieManager = SifoCookieManager.getInstance();
+            if (cookieManager.isCookiesActivated()) {
+                cookieManager.storeResponseCookies(con.getURL(), con.getHeaderFields());
+            }
+            // The response body is only drained, which hands the socket back to the keep-alive pool
+            release(con, statusCode < 400 ? con.getInputStream() : con.getErrorStream());
+            return new Response(statusCode, message, retryAfter);
+        } catch (IOException e) {
+            // The socket is in an unknown state, make sure it is not reused
+            con.disconnect();
+            throw e;
+        } catch (RuntimeException e) {
+            con.disconnect();
+            if (request.getTag() != con) {
+                // Disconnected by abort() while in use, which some implementations report unchecked
+                throw new IOException("Request aborted", e);
+            }
+            throw e;
+        } finally {
+            request.setTag(null);
+        }
+    }
+
+    @Override
+    public void abort(Request request) {
+        Object con = request.getTag();
+        if (con instanceof HttpURLConnection) {
+            // Cleared first, so that execute can tell an aborted request from other errors
+            request.setTag(null);
+            ((HttpURLConnection) con).disconnect();
+        }
+    }
+
+    /**
+     * Open a connection to the specified URL.
+     *
+     * @param url The URL to connect to.
+     * @return The connection, not yet connected.
+     * @throws IOException If the URL is invalid or the connection could not be opened.
+     */
+    HttpURLConnection open(String url) throws IOException {
+        URL obj = new URL(url);
+        HttpURLConnection con = (HttpURLConnection) obj.openConnection();
+        con.setConnectTimeout(connectTimeoutMillis);
+        con.setReadTimeout(readTimeoutMillis);
+        if (con instanceof HttpsURLConnection) {
+            ((HttpsURLConnection) con).setSSLSocketFactory(getSSLSocketFactory());
+            getHostStats(obj.getHost()).requests.incrementAndGet();
+        }
+        return con;
+    }
+
+    /**
+     * Release a connection after the response has been handled. The response body is drained
+     * into a reused buffer and discarded, and the stream closed so the socket is returned to the
+     * keep-alive pool. A body larger than {@link #MAX_DRAINED_BYTES} is not read to the end,
+     * the connection is closed instead.
+     *
+     * @param con The connection to release.
+     * @param in  The response or error stream of the connection, may be null.
+     */
+    void release(HttpURLConnection con, InputStream in) {
+        if (in == null) {
+            return;
+        }
+        byte[] buffer = DRAIN_BUFFER.get();
+        int drained = 0;
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                drained += read;
+                if (drained > MAX_DRAINED_BYTES) {
+                    TSMobileAnalyticsBackend.printToLog("Response body larger than " + MAX_DRAINED_BYTES + " bytes, closing the connection");
+                    con.disconnect();
+                    return;
+                }
+            }
+            in.close();
+        } catch (IOException e) {
+            // The socket is in an unknown state, make sure it is not reused
+            con.disconnect();
+        }
+    }
+
+    /**
+     * Set the timeouts of the connections opened from now on.
+     *
+     * @param connectTimeoutMillis The connect timeout in milliseconds, 0 for no timeout.
+     * @param readTimeoutMillis    The read timeout in milliseconds, 0 for no timeout.
+     */
+    void setTimeouts(int connectTimeoutMillis, int readTimeoutMillis) {
+        this.connectTimeoutMillis = Math.max(0, connectTimeoutMillis);
+        this.readTimeoutMillis = Math.max(0, readTimeoutMillis);
+    }
+
+    /**
+     * Get the total number of new connections opened to the tag servers.
+     *
+     * @return The number of new connections.
+     */
+    long getNbrOfNewConnections() {
+        long total = 0;
+        for (HostStats stats : hostStats.values()) {
+            total += stats.newConnections.get();
+        }
+        return total;
+    }
+
+    /**
+     * Get the total number of requests sent on a connection reused from the keep-alive pool.
+     *
+     * @return The number of reused connections.
+     */
+    long getNbrOfReusedConnections() {
+        long total = 0;
+        for (HostStats stats : hostStats.values()) {
+            total += stats.getReusedConnections();
+        }
+        return total;
+    }
+
+    /**
+     * Get the counters of all hosts tags have been sent to.
+     *
+     * @return The counters keyed by host name.
+     */
+    ConcurrentMap<String, HostStats> getHostStats() {
+        return hostStats;
+    }
+
+    private SSLSocketFactory getSSLSocketFactory() {
+        CountingSSLSocketFactory factory = sslSocketFactory;
+        if (factory == null) {
+            synchronized (this) {
+                factory = sslSocketFactory;
+                if (factory == null) {
+                    factory = new CountingSSLSocketFactory(HttpsURLConnection.getDefaultSSLSocketFactory());
+                    sslSocketFactory = factory;
+                }
+            }
+        }
+        return factory;
+    }
+
+    private HostStats getHostStats(String host) {
+        HostStats stats = hostStats.get(host);
+        if (stats == null) {
+            HostStats created = new HostStats();
+            stats = hostStats.putIfAbsent(host, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    private void onNewConnection(String host) {
+        HostStats stats = getHostStats(host != null ? host : "");
+        long count = stats.newConnections.incrementAndGet();
+        if (TagLog.isLoggable(TagLogLevel.DEBUG)) {
+            TagLog.log(TagLogLevel.DEBUG, "New connection to " + host + " (" + count + " of " + stats.requests.get() + " requests)");
+        }
+    }
+
+    /**
+     * SSLSocketFactory counting the new sockets it creates.
+     */
+    private class CountingSSLSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory delegate;
+
+        CountingSSLSocketFactory(SSLSocketFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            onNewConnection(null);
+            return delegate.createSocket();
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+            onNewConnection(host);
+            return delegate.createSocket(s, host, port, autoClose);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            onNewConnection(host);
+            return delegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            onNewConnection(host);
+            return delegate.createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            onNewConnection(host.getHostName());
+            return delegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            onNewConnection(address.getHostName());
+            return delegate.createSocket(address, port, localAddress, localPort);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+
+/**
+ * TNS SIFO Mobile Application Tagging Framework :
+ * Debugging/Advanced features : JsonTagBatchEncoder.java :
+ * <p>
+ * The default {@link TagBatchEncoder}, encoding a batch as a JSON object:
+ * <pre>
+ * {"cpid":"...", "ref":"...", "type":"...", "euid":"...", "euidq":"...",
+ *  "tags":[{"cat":"...", "id":"...", "name":"...", "ts":1517270400000, "rid":"..."}, ...]}
+ * </pre>
+ * The shared values are sent once per batch and "ts" holds the time each tag was sent by the
+ * application, in milliseconds since epoch. "rid" is the request ID, the same in every attempt to
+ * send the tag, so the server can drop duplicates.
+ */
+public class JsonTagBatchEncoder implements TagBatchEncoder {
+
+    @Override
+    public String getContentType() {
+        return "application/json; charset=utf-8";
+    }
+
+    @Override
+    public byte[] encode(TagBatch batch) throws IOException {
+        try {
+            JSONArray tags = new JSONArray();
+            for (TagDataRequest request : batch.getRequests()) {
+                JSONObject tag = new JSONObject();
+                tag.put("cat", request.getCat());
+                tag.put("id", request.getID());
+                tag.put("name", request.getName());
+                tag.put("ts", request.getCreationTime());
+                tag.put("rid", request.getRequestID().toString());
+                tags.put(tag);
+            }
+
+            JSONObject body = new JSONObject();
+            body.put("cpid", batch.getCpId());
+            body.put("ref", batch.getRef());
+            body.put("type", batch.getType());
+            body.put("euid", batch.getEuid());
+            body.put("euidq", batch.getEuidq());
+            body.put("tags", tags);
+            return body.toString().getBytes(TagStringsAndValues.URL_ENCODING);
+        } catch (JSONException e) {
+            throw new IOException("Failed to encode tag batch: " + e.getMessage());
+        }
+    }
+}
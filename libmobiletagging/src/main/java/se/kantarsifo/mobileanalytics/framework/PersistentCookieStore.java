@@ -0,0 +1,498 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.CookieManager;
+import java.net.CookieStore;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The cookie store of the framework, kept in a compact binary file in the application files
+ * directory so that the cookies are available as soon as the framework starts.
+ * <p>
+ * The file is loaded the first time the store is used after {@link #setDirectory(File)}, and
+ * memory-mapped rather than read when it is large. Changes are written back on a background thread
+ * after {@link TagStringsAndValues#COOKIE_STORE_WRITE_DELAY_MILLIS}, all the changes made in the
+ * meantime at once, to a temporary file renamed over the store so that a crash never leaves a torn file.
+ * Session cookies, without a max age, are kept in memory only, and expired cookies are removed
+ * whenever the store is read.
+ * <p>
+ * The store also remembers the panelist cookies read from the TNS Sifo Panelen application with
+ * the size and modification time of the file they were read from, so the file only has to be read
+ * and parsed again when it has changed.
+ * <p>
+ * Every change increments the version, which is used to cache the Cookie header built from the store.
+ */
+final class PersistentCookieStore implements CookieStore {
+
+    static final String FILE_NAME = "sifo_cookie_store";
+
+    private static final int MAGIC = 0x53434B31;
+
+    private static final int FLAG_PANEL = 1;
+    private static final int FLAG_SECURE = 1 << 1;
+    private static final int FLAG_URI = 1 << 2;
+    private static final int FLAG_DOMAIN = 1 << 3;
+    private static final int FLAG_PATH = 1 << 4;
+
+    /**
+     * The expiry time of a session cookie, never written to the file.
+     */
+    private static final long SESSION = -1;
+
+    /**
+     * A cookie of the store with the URI it was added for.
+     */
+    private static final class Record {
+        final URI uri;
+        final HttpCookie cookie;
+        final long expiresAtMillis;
+        final boolean panel;
+
+        Record(URI uri, HttpCookie cookie, long expiresAtMillis, boolean panel) {
+            this.uri = uri;
+            this.cookie = cookie;
+            this.expiresAtMillis = expiresAtMillis;
+            this.panel = panel;
+        }
+    }
+
+    private final CookieStore memory = new CookieManager().getCookieStore();
+
+    /**
+     * The records of the store by cookie, cookies are equal if they have the same name, domain and path.
+     */
+    private final Map<HttpCookie, Record> records = new HashMap<>();
+
+    private final AtomicLong version = new AtomicLong();
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+
+    private File file;
+    private boolean loaded = false;
+    private long panelFileSize = -1;
+    private long panelFileModified = -1;
+    private ScheduledThreadPoolExecutor writer;
+
+    /**
+     * Set the directory of the store file. The file is loaded the next time the store is used,
+     * the cookies added before are kept and written to the file.
+     *
+     * @param directory The application files directory.
+     */
+    synchronized void setDirectory(File directory) {
+        if (file == null && directory != null) {
+            file = new File(directory, FILE_NAME);
+        }
+    }
+
+    /**
+     * Get the version of the store, which changes whenever a cookie is added or removed.
+     */
+    long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Get the panelist cookies if they were read from the same version of the panelist file.
+     *
+     * @param fileSize     The size of the panelist file.
+     * @param fileModified The modification time of the panelist file.
+     * @return The cookies, or null if the file has changed and must be read again.
+     */
+    synchronized List<HttpCookie> getPanelCookies(long fileSize, long fileModified) {
+        ensureLoaded();
+        removeExpired();
+        if (fileSize != panelFileSize || fileModified != panelFileModified) {
+            return null;
+        }
+        List<HttpCookie> cookies = new ArrayList<>();
+        for (Record record : records.values()) {
+            if (record.panel) {
+                cookies.add(record.cookie);
+            }
+        }
+        return cookies;
+    }
+
+    /**
+     * Replace the panelist cookies with the cookies read from the panelist file.
+     *
+     * @param fileSize     The size of the panelist file, -1 if there is none.
+     * @param fileModified The modification time of the panelist file, -1 if there is none.
+     * @param cookies      The cookies read from the file.
+     */
+    synchronized void setPanelCookies(long fileSize, long fileModified, List<HttpCookie> cookies) {
+        ensureLoaded();
+        boolean changed = fileSize != panelFileSize || fileModified != panelFileModified;
+        Iterator<Record> iterator = records.values().iterator();
+        while (iterator.hasNext()) {
+            Record record = iterator.next();
+            if (record.panel && !cookies.contains(record.cookie)) {
+                memory.remove(record.uri, record.cookie);
+                iterator.remove();
+                changed = true;
+            }
+        }
+        for (HttpCookie cookie : cookies) {
+            changed |= put(getPanelCookieUri(cookie), cookie, true);
+        }
+        panelFileSize = fileSize;
+        panelFileModified = fileModified;
+        if (changed) {
+            changed();
+        }
+    }
+
+    /**
+     * The URI the panelist cookies are added for, as in {@link CookieHandler#setupPanelistCookies}.
+     */
+    private static URI getPanelCookieUri(HttpCookie cookie) {
+        try {
+            return cookie.getDomain() != null ? new URI(cookie.getDomain()) : null;
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized void add(URI uri, HttpCookie cookie) {
+        ensureLoaded();
+        Record existing = records.get(cookie);
+        if (put(uri, cookie, existing != null && existing.panel)) {
+            changed();
+        }
+    }
+
+    @Override
+    public synchronized List<HttpCookie> get(URI uri) {
+        ensureLoaded();
+        removeExpired();
+        return memory.get(uri);
+    }
+
+    @Override
+    public synchronized List<HttpCookie> getCookies() {
+        ensureLoaded();
+        removeExpired();
+        return memory.getCookies();
+    }
+
+    @Override
+    public synchronized List<URI> getURIs() {
+        ensureLoaded();
+        removeExpired();
+        return memory.getURIs();
+    }
+
+    @Override
+    public synchronized boolean remove(URI uri, HttpCookie cookie) {
+        ensureLoaded();
+        boolean removed = memory.remove(uri, cookie);
+        if (records.remove(cookie) != null || removed) {
+            changed();
+        }
+        return removed;
+    }
+
+    @Override
+    public synchronized boolean removeAll() {
+        ensureLoaded();
+        boolean removed = memory.removeAll();
+        records.clear();
+        changed();
+        return removed;
+    }
+
+    /**
+     * Add or replace a cookie. Must be called holding the lock.
+     *
+     * @return True if the store has changed, false if the same cookie was already there.
+     */
+    private boolean put(URI uri, HttpCookie cookie, boolean panel) {
+        Record existing = records.get(cookie);
+        if (existing != null && existing.panel == panel && isSame(existing.cookie, cookie)) {
+            return false;
+        }
+        memory.add(uri, cookie);
+        // The map keeps the first key of equal keys, the new cookie must replace it
+        records.remove(cookie);
+        records.put(cookie, new Record(uri, cookie, getExpiresAtMillis(cookie), panel));
+        return true;
+    }
+
+    /**
+     * Remove the cookies that have expired since they were added. Must be called holding the lock.
+     */
+    private void removeExpired() {
+        long now = System.currentTimeMillis();
+        boolean changed = false;
+        Iterator<Record> iterator = records.values().iterator();
+        while (iterator.hasNext()) {
+            Record record = iterator.next();
+            if (record.expiresAtMillis != SESSION && record.expiresAtMillis <= now) {
+                memory.remove(record.uri, record.cookie);
+                iterator.remove();
+                changed = true;
+            }
+        }
+        if (changed) {
+            changed();
+        }
+    }
+
+    private static boolean isSame(HttpCookie a, HttpCookie b) {
+        return a == b || (a.equals(b)
+                && equals(a.getValue(), b.getValue())
+                && a.getMaxAge() == b.getMaxAge()
+                && a.getVersion() == b.getVersion()
+                && a.getSecure() == b.getSecure());
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static long getExpiresAtMillis(HttpCookie cookie) {
+        long maxAge = cookie.getMaxAge();
+        if (maxAge < 0) {
+            return SESSION;
+        }
+        long now = System.currentTimeMillis();
+        return maxAge > (Long.MAX_VALUE - now) / 1000 ? Long.MAX_VALUE : now + maxAge * 1000;
+    }
+
+    private void changed() {
+        version.incrementAndGet();
+        if (file != null && writeScheduled.compareAndSet(false, true)) {
+            getWriter().schedule(new WriteThread(), TagStringsAndValues.COOKIE_STORE_WRITE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private ScheduledThreadPoolExecutor getWriter() {
+        if (writer == null) {
+            writer = new ScheduledThreadPoolExecutor(1);
+            writer.setKeepAliveTime(TagStringsAndValues.THREAD_KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS);
+            writer.allowCoreThreadTimeOut(true);
+        }
+        return writer;
+    }
+
+    /**
+     * Load the file the first time the store is used after the directory is set. Must be called
+     * holding the lock. Cookies already in memory take precedence over the ones in the file.
+     */
+    private void ensureLoaded() {
+        if (loaded || file == null) {
+            return;
+        }
+        loaded = true;
+        if (!file.exists()) {
+            if (!records.isEmpty()) {
+                changed();
+            }
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteBufferInputStream(readFile(file)));
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Unknown format");
+            }
+            boolean hadRecords = !records.isEmpty();
+            long fileSize = in.readLong();
+            long fileModified = in.readLong();
+            int count = in.readInt();
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < count; i++) {
+                int flags = in.readUnsignedByte();
+                String uri = (flags & FLAG_URI) != 0 ? in.readUTF() : null;
+                HttpCookie cookie = new HttpCookie(in.readUTF(), in.readUTF());
+                if ((flags & FLAG_DOMAIN) != 0) {
+                    cookie.setDomain(in.readUTF());
+                }
+                if ((flags & FLAG_PATH) != 0) {
+                    cookie.setPath(in.readUTF());
+                }
+                cookie.setSecure((flags & FLAG_SECURE) != 0);
+                cookie.setVersion(in.readInt());
+                long expiresAtMillis = in.readLong();
+                if (expiresAtMillis <= now || records.containsKey(cookie)) {
+                    continue;
+                }
+                cookie.setMaxAge(expiresAtMillis == Long.MAX_VALUE ? Long.MAX_VALUE : (expiresAtMillis - now) / 1000);
+                URI cookieUri = uri != null ? new URI(uri) : null;
+                memory.add(cookieUri, cookie);
+                records.put(cookie, new Record(cookieUri, cookie, expiresAtMillis, (flags & FLAG_PANEL) != 0));
+            }
+            if (panelFileSize < 0) {
+                panelFileSize = fileSize;
+                panelFileModified = fileModified;
+            }
+            version.incrementAndGet();
+            if (hadRecords) {
+                changed();
+            }
+        } catch (IOException e) {
+            onLoadFailed(e);
+        } catch (URISyntaxException e) {
+            onLoadFailed(e);
+        } catch (RuntimeException e) {
+            onLoadFailed(e);
+        }
+    }
+
+    /**
+     * Discard a file that could not be loaded, it is replaced with the cookies in memory.
+     */
+    private void onLoadFailed(Exception e) {
+        TSMobileAnalyticsBackend.errorToLog("Failed to load cookie store, it is discarded:\n" + e.toString());
+        changed();
+    }
+
+    /**
+     * Read the file, or map it into memory if it is large.
+     */
+    private static ByteBuffer readFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            if (length >= TagStringsAndValues.COOKIE_STORE_MAP_THRESHOLD_BYTES) {
+                // The mapping stays valid once the file is closed
+                return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            }
+            byte[] data = new byte[(int) length];
+            raf.readFully(data);
+            return ByteBuffer.wrap(data);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Encode the persistent cookies of the store. Must be called holding the lock.
+     */
+    private byte[] encode() throws IOException {
+        long now = System.currentTimeMillis();
+        List<Record> persistent = new ArrayList<>(records.size());
+        for (Record record : records.values()) {
+            if (record.expiresAtMillis != SESSION && record.expiresAtMillis > now) {
+                persistent.add(record);
+            }
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 128 * persistent.size());
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeLong(panelFileSize);
+        out.writeLong(panelFileModified);
+        out.writeInt(persistent.size());
+        for (Record record : persistent) {
+            HttpCookie cookie = record.cookie;
+            int flags = (record.panel ? FLAG_PANEL : 0)
+                    | (cookie.getSecure() ? FLAG_SECURE : 0)
+                    | (record.uri != null ? FLAG_URI : 0)
+                    | (cookie.getDomain() != null ? FLAG_DOMAIN : 0)
+                    | (cookie.getPath() != null ? FLAG_PATH : 0);
+            out.writeByte(flags);
+            if (record.uri != null) {
+                out.writeUTF(record.uri.toString());
+            }
+            out.writeUTF(cookie.getName());
+            out.writeUTF(cookie.getValue() != null ? cookie.getValue() : "");
+            if (cookie.getDomain() != null) {
+                out.writeUTF(cookie.getDomain());
+            }
+            if (cookie.getPath() != null) {
+                out.writeUTF(cookie.getPath());
+            }
+            out.writeInt(cookie.getVersion());
+            out.writeLong(record.expiresAtMillis);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * A thread writing the store to its file, replacing the file once it is completely written.
+     */
+    private class WriteThread implements Runnable {
+
+        public void run() {
+            // Changes made from now on schedule another write
+            writeScheduled.set(false);
+            File target;
+            byte[] data;
+            try {
+                synchronized (PersistentCookieStore.this) {
+                    target = file;
+                    data = encode();
+                }
+                File temp = new File(target.getPath() + ".tmp");
+                FileOutputStream out = new FileOutputStream(temp);
+                try {
+                    out.write(data);
+                    out.getFD().sync();
+                } finally {
+                    out.close();
+                }
+                if (!temp.renameTo(target)) {
+                    throw new IOException("Failed to rename " + temp.getName());
+                }
+            } catch (IOException e) {
+                TSMobileAnalyticsBackend.errorToLog("Failed to write cookie store:\n" + e.toString());
+            }
+        }
+    }
+
+    /**
+     * An input stream reading a buffer, mapped or not.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+/**
+ * Immutable snapshot of the headers sent with every tag request.
+ * <p>
+ * The headers are built once and reused until the cookie store version changes or the
+ * TagHandler is refreshed, so sending a tag only has to read the current snapshot.
+ */
+final class RequestHeaders {
+
+    /**
+     * The User-Agent header value.
+     */
+    final String userAgent;
+
+    /**
+     * The Cookie header value.
+     */
+    final String cookie;
+
+    /**
+     * The cookie store version the Cookie header was built from.
+     */
+    final long cookieVersion;
+
+    RequestHeaders(String userAgent, String cookie, long cookieVersion) {
+        this.userAgent = userAgent;
+        this.cookie = cookie;
+        this.cookieVersion = cookieVersion;
+    }
+}
@@ -0,0 +1,135 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates the request IDs without a {@link SecureRandom} call per tag, which
+ * {@link java.util.UUID#randomUUID()} makes and which is slow and contended when tags are sent from
+ * several threads at once.
+ * <p>
+ * An ID is a random prefix, stored once per installation, and a sequence number. The sequence starts
+ * at a random value in each process, so the IDs of different sessions do not collide. Both are laid
+ * out as a version 4 UUID: the prefix in the most significant bits and the sequence, 62 bits, in the
+ * least significant bits.
+ */
+final class RequestIdGenerator {
+
+    /**
+     * The name of the file storing the installation prefix, in the application files directory.
+     */
+    static final String INSTALL_ID_FILE_NAME = "sifo_install_id";
+
+    private static final long SEQUENCE_MASK = 0x3fffffffffffffffL;
+    private static final long VARIANT_BITS = 0x8000000000000000L;
+    private static final long VERSION_MASK = 0xf000L;
+    private static final long VERSION_4_BITS = 0x4000L;
+
+    private static final AtomicLong sequence;
+
+    /**
+     * The prefix of this process until the installation prefix has been loaded.
+     */
+    private static volatile long prefix;
+
+    static {
+        SecureRandom random = new SecureRandom();
+        prefix = toPrefix(random.nextLong());
+        sequence = new AtomicLong(random.nextLong() & SEQUENCE_MASK);
+    }
+
+    private RequestIdGenerator() {
+    }
+
+    /**
+     * Get the most significant bits of the IDs.
+     *
+     * @return The prefix.
+     */
+    static long getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Get the next sequence number.
+     *
+     * @return The sequence number, a non-negative value of at most 62 bits.
+     */
+    static long nextSequence() {
+        return sequence.incrementAndGet() & SEQUENCE_MASK;
+    }
+
+    /**
+     * Get the least significant bits of the ID with a sequence number.
+     *
+     * @param sequence The sequence number.
+     * @return The least significant bits, with the UUID variant set.
+     */
+    static long toLeastSignificantBits(long sequence) {
+        return (sequence & SEQUENCE_MASK) | VARIANT_BITS;
+    }
+
+    /**
+     * Load the installation prefix from the files directory, creating it the first time. Must not be
+     * called on the main thread. If the file can not be read or written, the prefix of this process is kept.
+     *
+     * @param filesDir The application files directory, may be null.
+     */
+    static void loadInstallPrefix(File filesDir) {
+        if (filesDir == null) {
+            return;
+        }
+        File file = new File(filesDir, INSTALL_ID_FILE_NAME);
+        if (file.length() == 8) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new FileInputStream(file));
+                prefix = toPrefix(in.readLong());
+                return;
+            } catch (IOException e) {
+                TSMobileAnalyticsBackend.errorToLog("Failed to read installation ID:\n" + e.toString());
+            } finally {
+                closeQuietly(in);
+            }
+        }
+        long created = toPrefix(new SecureRandom().nextLong());
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(file));
+            out.writeLong(created);
+            prefix = created;
+        } catch (IOException e) {
+            TSMobileAnalyticsBackend.errorToLog("Failed to store installation ID:\n" + e.toString());
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static long toPrefix(long bits) {
+        return (bits & ~VERSION_MASK) | VERSION_4_BITS;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                //Should never happen
+                TSMobileAnalyticsBackend.printToLog("Error closing installation ID file");
+            }
+        }
+    }
+}
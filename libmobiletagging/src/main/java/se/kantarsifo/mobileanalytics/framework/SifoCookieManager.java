@@ -1,67 +1,161 @@
 package se.kantarsifo.mobileanalytics.framework;
 
 
-import java.net.CookieHandler;
+import java.io.File;
+import java.io.IOException;
 import java.net.CookieManager;
 import java.net.CookiePolicy;
 import java.net.CookieStore;
 import java.net.HttpCookie;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Collections;
 import java.util.List;
-
+import java.util.Map;
+
+/**
+ * The cookie store of the framework.
+ * <p>
+ * The store is private to the framework: it is never installed as the default
+ * {@link java.net.CookieHandler}, so the HTTP calls of the application do not match cookies against
+ * it and the cookie policy of the application is never changed. The framework sends the cookies
+ * itself in the Cookie header of the tag requests, and stores the cookies of the responses with
+ * {@link #storeResponseCookies(URL, Map)} once {@link #activateCookies()} has been called.
+ */
 class SifoCookieManager {
 
-    private CookieManager mCookieManager;
+    private final CookieManager mCookieManager;
 
-    private static SifoCookieManager instance;
+    private final PersistentCookieStore store = new PersistentCookieStore();
 
-    public static SifoCookieManager getInstance() {
-        if (instance == null) {
-            instance = new SifoCookieManager();
-        }
+    /**
+     * Whether the cookies of the responses are stored, the policy of the manager is never changed
+     * so that it can be read from any thread.
+     */
+    private volatile boolean cookiesActivated = false;
 
-        return instance;
+    /**
+     * Initialization-on-demand holder, the instance is created once on first use without locking.
+     */
+    private static class Holder {
+        static final SifoCookieManager INSTANCE = new SifoCookieManager();
     }
 
-    private SifoCookieManager() {
-        if (CookieHandler.getDefault() != null) {
-            mCookieManager = (CookieManager) CookieHandler.getDefault();
-        } else {
-            mCookieManager = new CookieManager();
-            mCookieManager.setCookiePolicy(CookiePolicy.ACCEPT_NONE);
-            CookieHandler.setDefault(mCookieManager);
-        }
+    public static SifoCookieManager getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Create a cookie manager with an empty store. The framework uses {@link #getInstance()}.
+     */
+    SifoCookieManager() {
+        mCookieManager = new CookieManager(store, CookiePolicy.ACCEPT_ALL);
     }
 
+    /**
+     * Store the cookies of the responses to the tag requests from now on.
+     */
     public void activateCookies() {
-        if(mCookieManager != null) {
-            mCookieManager.setCookiePolicy(CookiePolicy.ACCEPT_ALL);
+        cookiesActivated = true;
+    }
+
+    public boolean isCookiesActivated() {
+        return cookiesActivated;
+    }
+
+    /**
+     * Store the cookies set by a response, if cookies have been activated.
+     *
+     * @param url     The URL of the request.
+     * @param headers The response headers.
+     */
+    public void storeResponseCookies(URL url, Map<String, List<String>> headers) {
+        if (!cookiesActivated) {
+            return;
+        }
+        try {
+            mCookieManager.put(url.toURI(), headers);
+        } catch (URISyntaxException e) {
+            TSMobileAnalyticsBackend.errorToLog("Failed to store response cookies:\n" + e.toString());
+        } catch (IOException e) {
+            TSMobileAnalyticsBackend.errorToLog("Failed to store response cookies:\n" + e.toString());
         }
     }
 
     private List<HttpCookie> getCookies() {
-        if (mCookieManager == null)
-            return null;
-        else
-            return mCookieManager.getCookieStore().getCookies();
+        return mCookieManager.getCookieStore().getCookies();
     }
 
     public void clearCookies() {
-        if (mCookieManager != null)
-            mCookieManager.getCookieStore().removeAll();
+        mCookieManager.getCookieStore().removeAll();
     }
 
     private boolean isCookieManagerEmpty() {
-        if (mCookieManager == null)
-            return true;
-        else
-            return mCookieManager.getCookieStore().getCookies().isEmpty();
+        return mCookieManager.getCookieStore().getCookies().isEmpty();
+    }
+
+    /**
+     * Add a cookie to the store.
+     *
+     * @param uri    The URI the cookie is associated with.
+     * @param cookie The cookie to add.
+     */
+    public void addCookie(URI uri, HttpCookie cookie) {
+        mCookieManager.getCookieStore().add(uri, cookie);
+    }
+
+    /**
+     * Get the version of the cookie store, which changes whenever a cookie is added or removed.
+     * Values built from the cookies can be kept for as long as the version is the same.
+     *
+     * @return The version.
+     */
+    public long getVersion() {
+        return store.getVersion();
+    }
+
+    /**
+     * Keep the cookies in the specified directory, they are loaded the next time the store is used.
+     *
+     * @param directory The application files directory.
+     */
+    public void setStorageDirectory(File directory) {
+        store.setDirectory(directory);
+    }
+
+    /**
+     * Get the panelist cookies kept from an earlier reading of the panelist file, if the file has not changed since.
+     *
+     * @param fileSize     The size of the panelist file.
+     * @param fileModified The modification time of the panelist file.
+     * @return The cookies, or null if the file must be read again.
+     */
+    public List<HttpCookie> getPanelCookies(long fileSize, long fileModified) {
+        return store.getPanelCookies(fileSize, fileModified);
+    }
+
+    /**
+     * Replace the panelist cookies with the cookies read from the panelist file. They are added
+     * to the store right away and kept for the next start.
+     *
+     * @param fileSize     The size of the panelist file, -1 if it is not known.
+     * @param fileModified The modification time of the panelist file, -1 if it is not known.
+     * @param cookies      The cookies read from the file.
+     */
+    public void setPanelCookies(long fileSize, long fileModified, List<HttpCookie> cookies) {
+        store.setPanelCookies(fileSize, fileModified, cookies);
+    }
+
+    /**
+     * Remove the panelist cookies, when there is no panelist file.
+     */
+    public void clearPanelCookies() {
+        store.setPanelCookies(-1, -1, Collections.<HttpCookie>emptyList());
     }
 
     public CookieStore getCookieStore() {
-        if (mCookieManager == null)
-            return null;
-        else
-            return mCookieManager.getCookieStore();
+        return mCookieManager.getCookieStore();
     }
 
     public String getCookieValue() {
@@ -74,5 +168,4 @@ class SifoCookieManager {
 
         return cookieValue;
     }
-
-}
\ No newline at end of file
+}
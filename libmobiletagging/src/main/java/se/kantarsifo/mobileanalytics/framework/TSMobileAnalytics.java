@@ -8,6 +8,7 @@ package se.kantarsifo.mobileanalytics.framework;
 
 import android.content.Context;
 
+import java.io.File;
 import java.util.List;
 
 /**
@@ -22,10 +23,14 @@ public class TSMobileAnalytics {
 
     /**
      * Note for developer: update it when you change your library version
+     */
+    static final String LIBRARY_VERSION = "3.0.4";
+
+    /**
      * @return library version
      */
     public String getLibraryVersion(){
-        return "3.0.4";
+        return LIBRARY_VERSION;
     }
 
     /**
@@ -42,6 +47,9 @@ public class TSMobileAnalytics {
      * The Application name must not be more than 243 characters.
      * The parameters must not be null.
      * If any of the parameters are invalid, null will be returned and getInstance() will also return null.
+     * <p>
+     * If the framework is already initiated the existing instance is returned. The panelist files are then
+     * checked in the background, and the panelist keys are only read again if the files have changed.
      *
      * @param context         The context of this application, used to get device ID for unique Tagging.
      *                        You can obtain this value using the method getApplicationContext() in the Android Activity-class.
@@ -52,24 +60,27 @@ public class TSMobileAnalytics {
      * @return The framework instance created with your values. Returns null if creation failed due to invalid parameters.
      */
     public static TSMobileAnalytics createInstance(Context context, String cpID, String applicationName) {
-        return TSMobileAnalyticsBackend.createInstance(context, cpID, applicationName, false);
+        return TSMobileAnalyticsBackend.createInstance(context, cpID, applicationName, false, null);
     }
 
     /**
      * Call this method upon application start if you only want to measure Kantar Sifo Panelist users.
      */
     public static TSMobileAnalytics createInstance(Context context, String cpID, String applicationName, boolean panelistTrackingOnly) {
-        return TSMobileAnalyticsBackend.createInstance(context, cpID, applicationName, panelistTrackingOnly);
+        return TSMobileAnalyticsBackend.createInstance(context, cpID, applicationName, panelistTrackingOnly, null);
     }
 
     /**
      * Call this method to initialize framework with Builder class.
+     * <p>
+     * If asynchronous initialization is activated with {@link Builder#setAsyncInit(boolean)} the instance is
+     * returned right away and initiated in the background. Tags sent before that are sent once it is completed.
      *
      * @param builder new {@link TSMobileAnalytics.Builder}
      * @return The framework instance created with your values. Returns null if creation failed due to invalid parameters.
      */
     public static TSMobileAnalytics createInstance(TSMobileAnalytics builder) {
-        return createInstance(builder.context, builder.cpId, builder.appName, builder.panelistTrackingOnly);
+        return TSMobileAnalyticsBackend.createInstance(builder.context, builder.cpId, builder.appName, builder.panelistTrackingOnly, builder);
     }
 
     /**
@@ -170,7 +181,10 @@ public class TSMobileAnalytics {
     }
 
     /**
-     * Activate third-party cookies.
+     * Activate cookies for the tag requests.
+     * Cookies set by the responses to the tag requests are stored in the framework's own cookie store
+     * and sent with the following tags. The default CookieHandler and the cookie policy of the
+     * application are not changed.
      */
     public void activateCookies() {
         SifoCookieManager.getInstance().activateCookies();
@@ -222,6 +236,66 @@ public class TSMobileAnalytics {
         return dataRequestHandler.getNbrOfSuccessfulRequests();
     }
 
+    /**
+     * Advanced/debugging: Get the number of tags dropped because the request queue was full
+     * since the instance was created.
+     *
+     * @return The number of dropped tags.
+     */
+    public int getNbrOfDroppedRequests() {
+        return dataRequestHandler.getNbrOfDroppedRequests();
+    }
+
+    /**
+     * Advanced/debugging: Get the number of new HTTPS connections opened to the tag servers since the instance was created.
+     * Each new connection requires a full TCP and TLS setup.
+     *
+     * @return The number of new connections.
+     */
+    public long getNbrOfNewConnections() {
+        return dataRequestHandler.getNbrOfNewConnections();
+    }
+
+    /**
+     * Advanced/debugging: Get the number of HTTPS requests sent on a reused keep-alive connection
+     * since the instance was created.
+     *
+     * @return The number of reused connections.
+     */
+    public long getNbrOfReusedConnections() {
+        return dataRequestHandler.getNbrOfReusedConnections();
+    }
+
+    /**
+     * Advanced/debugging: Take a snapshot of the framework's counters: enqueued, sent, failed, retried
+     * and dropped tags, queue depth, bytes sent, connections, encoding cache and the latency of every
+     * endpoint. Taking a snapshot does not lock the sending of tags and can be done at any interval.
+     *
+     * @return An immutable snapshot of the counters.
+     */
+    public TagMetricsSnapshot getMetrics() {
+        return dataRequestHandler.getMetrics();
+    }
+
+    /**
+     * Advanced/debugging: Get the number of URL-encoded values found in the encoding cache.
+     *
+     * @return The number of cache hits.
+     */
+    public long getNbrOfUrlEncodingCacheHits() {
+        return TagHandler.getEncodingCache().getHits();
+    }
+
+    /**
+     * Advanced/debugging: Get the number of values that had to be URL-encoded because they were
+     * not in the encoding cache.
+     *
+     * @return The number of cache misses.
+     */
+    public long getNbrOfUrlEncodingCacheMisses() {
+        return TagHandler.getEncodingCache().getMisses();
+    }
+
     /**
      * Advanced/debugging: Add a callback-listener to get notified when a tag request fails or is successful.
      *
@@ -231,12 +305,35 @@ public class TSMobileAnalytics {
         dataRequestHandler.setCallbackListener(callbackListener);
     }
 
+    /**
+     * Advanced/debugging: Add a listener to get notified when the panelist cookies are ready.
+     * Tags sent before that are held and sent once the cookies are ready.
+     *
+     * @param listener The listener implementing the CookieReadinessListener interface.
+     */
+    public void setCookieReadinessListener(CookieReadinessListener listener) {
+        dataRequestHandler.setCookieReadinessListener(listener);
+    }
+
+    /**
+     * Advanced/debugging: Write the events of the trace recorder activated with
+     * {@link Builder#setTraceBufferSize(int)} to a file in the Chrome trace-event format,
+     * which can be opened in chrome://tracing or Perfetto. The file is written on the calling thread,
+     * tags can be sent in the meantime.
+     *
+     * @param file The file to write, replaced if it exists.
+     * @return True if the file was written, false if tracing is not activated or the file could not be written.
+     */
+    public static boolean exportTrace(File file) {
+        return TagTrace.export(file);
+    }
+
     /***** End of public methods *****/
 
     /**
      * Our framework instance.
      */
-    protected static TSMobileAnalyticsBackend frameworkInstance = null;
+    protected static volatile TSMobileAnalyticsBackend frameworkInstance = null;
 
     /**
      * Our TagDataRequestHandler.
@@ -276,6 +373,88 @@ public class TSMobileAnalytics {
      */
     protected Context context;
 
+    /**
+     * The maximum time, counted from creation, the framework keeps trying to deliver a tag.
+     */
+    protected long tagMaxAgeMillis = TagStringsAndValues.DEFAULT_TAG_MAX_AGE_MILLIS;
+
+    /**
+     * The maximum number of pending requests held in memory.
+     */
+    protected int maxQueueSize = TagStringsAndValues.DEFAULT_MAX_QUEUE_SIZE;
+
+    /**
+     * What to do with a new tag when the queue of pending requests is full.
+     */
+    protected TagQueueOverflowPolicy queueOverflowPolicy = TagQueueOverflowPolicy.SPILL_TO_DISK;
+
+    /**
+     * Collect tags and send them to the server in batches, set with {@link Builder#setBatchUpload(boolean)}.
+     */
+    protected boolean batchUploadActivated = false;
+
+    /**
+     * The maximum time a tag is held before the batch is sent.
+     */
+    protected long batchWindowMillis = TagStringsAndValues.DEFAULT_BATCH_WINDOW_MILLIS;
+
+    /**
+     * The maximum number of tags in one batch.
+     */
+    protected int batchMaxSize = TagStringsAndValues.DEFAULT_BATCH_MAX_SIZE;
+
+    /**
+     * The encoder creating the batch request body, null for the default encoder.
+     */
+    protected TagBatchEncoder batchEncoder;
+
+    /**
+     * The URL the batches are posted to, batch upload is not activated while it is null.
+     */
+    protected String batchEndpoint;
+
+    /**
+     * The maximum memory used to cache URL-encoded values, set with {@link Builder#setUrlEncodingCacheSize(long)}.
+     */
+    protected long urlEncodingCacheBytes = TagStringsAndValues.DEFAULT_URL_ENCODING_CACHE_BYTES;
+
+    /**
+     * Initiate the framework in the background, set with {@link Builder#setAsyncInit(boolean)}.
+     */
+    protected boolean asyncInitActivated = false;
+
+    /**
+     * The connect timeout of the connections to the server, set with {@link Builder#setConnectTimeout(int)}.
+     */
+    protected int connectTimeoutMillis = TagStringsAndValues.DEFAULT_CONNECT_TIMEOUT_MILLIS;
+
+    /**
+     * The read timeout of the connections to the server, set with {@link Builder#setReadTimeout(int)}.
+     */
+    protected int readTimeoutMillis = TagStringsAndValues.DEFAULT_READ_TIMEOUT_MILLIS;
+
+    /**
+     * The time an attempt may be in flight before it is aborted, set with {@link Builder#setRequestDeadline(long)}.
+     */
+    protected long requestDeadlineMillis = TagStringsAndValues.DEFAULT_REQUEST_DEADLINE_MILLIS;
+
+    /**
+     * The maximum memory used by the queued requests, set with {@link Builder#setMaxQueueMemory(long)}.
+     */
+    protected long maxQueueBytes = TagStringsAndValues.DEFAULT_MAX_QUEUE_BYTES;
+
+    /**
+     * The transport sending the tags, set with {@link Builder#setTransport(TagTransport)}, null for the default.
+     */
+    protected TagTransport transport = null;
+
+    /**
+     * The bounds of the adaptive number of requests in flight, set with {@link Builder#setMinConcurrency(int)}
+     * and {@link Builder#setMaxConcurrency(int)}.
+     */
+    protected int minConcurrency = TagStringsAndValues.DEFAULT_MIN_CONCURRENCY;
+    protected int maxConcurrency = TagStringsAndValues.DEFAULT_MAX_CONCURRENCY;
+
 
     /**
      * TSMobileAnalytics constructor with Builder class.
@@ -287,16 +466,37 @@ public class TSMobileAnalytics {
         this.cpId = builder.cpId;
         this.appName = builder.appName;
         this.panelistTrackingOnly = builder.panelistTrackingOnly;
+        this.tagMaxAgeMillis = builder.tagMaxAgeMillis;
+        this.maxQueueSize = builder.maxQueueSize;
+        this.queueOverflowPolicy = builder.queueOverflowPolicy;
+        this.batchUploadActivated = builder.batchUploadActivated;
+        this.batchWindowMillis = builder.batchWindowMillis;
+        this.batchMaxSize = builder.batchMaxSize;
+        this.batchEncoder = builder.batchEncoder;
+        this.batchEndpoint = builder.batchEndpoint;
+        this.urlEncodingCacheBytes = builder.urlEncodingCacheBytes;
+        this.asyncInitActivated = builder.asyncInitActivated;
+        this.connectTimeoutMillis = builder.connectTimeoutMillis;
+        this.readTimeoutMillis = builder.readTimeoutMillis;
+        this.requestDeadlineMillis = builder.requestDeadlineMillis;
+        this.maxQueueBytes = builder.maxQueueBytes;
+        this.transport = builder.transport;
+        this.minConcurrency = builder.minConcurrency;
+        this.maxConcurrency = builder.maxConcurrency;
         useHttpsActivated = builder.useHttpsActivated;
         logPrintsActivated = builder.logPrintsActivated;
+        TagLog.setLevel(builder.logLevel);
+        TagLog.setSink(builder.logSink);
+        TagTrace.setBufferSize(builder.traceBufferSize);
     }
 
     /**
      * Destroy method of current framework.
-     * Use this to destroy current framework.
+     * Use this to destroy current framework. Its threads are stopped, and tags not yet delivered are
+     * kept and sent by the next instance created.
      */
     public static void destroyFramework() {
-        frameworkInstance = null;
+        TSMobileAnalyticsBackend.destroyInstance();
     }
 
 
@@ -309,8 +509,27 @@ public class TSMobileAnalytics {
         private String appName;
         private boolean panelistTrackingOnly = false;
         private boolean logPrintsActivated = false;
+        private TagLogLevel logLevel = TagLogLevel.DEBUG;
+        private TagLogSink logSink = null;
+        private int traceBufferSize = TagStringsAndValues.DEFAULT_TRACE_BUFFER_SIZE;
         private boolean useHttpsActivated = true;
-
+        private long tagMaxAgeMillis = TagStringsAndValues.DEFAULT_TAG_MAX_AGE_MILLIS;
+        private int maxQueueSize = TagStringsAndValues.DEFAULT_MAX_QUEUE_SIZE;
+        private TagQueueOverflowPolicy queueOverflowPolicy = TagQueueOverflowPolicy.SPILL_TO_DISK;
+        private boolean batchUploadActivated = false;
+        private long batchWindowMillis = TagStringsAndValues.DEFAULT_BATCH_WINDOW_MILLIS;
+        private int batchMaxSize = TagStringsAndValues.DEFAULT_BATCH_MAX_SIZE;
+        private TagBatchEncoder batchEncoder;
+        private String batchEndpoint;
+        private long urlEncodingCacheBytes = TagStringsAndValues.DEFAULT_URL_ENCODING_CACHE_BYTES;
+        private boolean asyncInitActivated = false;
+        private int connectTimeoutMillis = TagStringsAndValues.DEFAULT_CONNECT_TIMEOUT_MILLIS;
+        private int readTimeoutMillis = TagStringsAndValues.DEFAULT_READ_TIMEOUT_MILLIS;
+        private long requestDeadlineMillis = TagStringsAndValues.DEFAULT_REQUEST_DEADLINE_MILLIS;
+        private long maxQueueBytes = TagStringsAndValues.DEFAULT_MAX_QUEUE_BYTES;
+        private TagTransport transport = null;
+        private int minConcurrency = TagStringsAndValues.DEFAULT_MIN_CONCURRENCY;
+        private int maxConcurrency = TagStringsAndValues.DEFAULT_MAX_CONCURRENCY;
 
         /**
          * Construct a new Builder object to set params.
@@ -381,6 +600,271 @@ public class TSMobileAnalytics {
             return this;
         }
 
+        /**
+         * Specify the lowest level of the messages logged while logging is enabled (not required).
+         *
+         * @param logLevel The level. Default is {@link TagLogLevel#DEBUG}, all messages.
+         * @return the current builder object.
+         */
+        public Builder setLogLevel(TagLogLevel logLevel) {
+            this.logLevel = logLevel;
+            return this;
+        }
+
+        /**
+         * Specify where the log messages of the framework are sent (not required), for example to
+         * route them to the logger of the application.
+         *
+         * @param logSink The sink. Default is LogCat with the tag "MobileAppTagging".
+         * @return the current builder object.
+         */
+        public Builder setLogSink(TagLogSink logSink) {
+            this.logSink = logSink;
+            return this;
+        }
+
+        /**
+         * Activate the trace recorder (not required), to profile the overhead of the framework
+         * without attaching a profiler. The recorder keeps the latest events of the initialization
+         * and of every tag: URL build, enqueue, send and callback. They can be written to a file
+         * with {@link TSMobileAnalytics#exportTrace(File)}. Each event kept uses about 60 bytes.
+         *
+         * @param traceBufferSize The number of events kept, rounded up to a power of two, 0 to turn tracing off.
+         *                        Default is {@link TagStringsAndValues#DEFAULT_TRACE_BUFFER_SIZE}.
+         * @return the current builder object.
+         */
+        public Builder setTraceBufferSize(int traceBufferSize) {
+            this.traceBufferSize = traceBufferSize;
+            return this;
+        }
+
+
+        /**
+         * Specify the maximum time the framework keeps trying to deliver a tag (not required).
+         * Tags that fail because the server could not be reached, or with a 5xx or 429 response,
+         * are sent again with increasing delays until they are delivered or reach this age.
+         * Tags that could not be delivered before the application was closed are sent again
+         * the next time the framework is initiated, unless they have reached this age.
+         *
+         * @param maxAgeMillis The maximum age in milliseconds, counted from when the tag was sent.
+         *                     Default is {@link TagStringsAndValues#DEFAULT_TAG_MAX_AGE_MILLIS}.
+         * @return the current builder object.
+         */
+        public Builder setTagMaxAge(long maxAgeMillis) {
+            this.tagMaxAgeMillis = maxAgeMillis;
+            return this;
+        }
+
+        /**
+         * Specify the maximum number of pending requests held in memory (not required).
+         *
+         * @param maxQueueSize The capacity of the request queue, must be at least 1.
+         *                     Default is {@link TagStringsAndValues#DEFAULT_MAX_QUEUE_SIZE}.
+         * @return the current builder object.
+         */
+        public Builder setMaxQueueSize(int maxQueueSize) {
+            this.maxQueueSize = maxQueueSize;
+            return this;
+        }
+
+        /**
+         * Specify what happens to a new tag when the queue of pending requests is full (not required).
+         *
+         * @param policy The overflow policy. Default is {@link TagQueueOverflowPolicy#SPILL_TO_DISK}.
+         * @return the current builder object.
+         */
+        public Builder setQueueOverflowPolicy(TagQueueOverflowPolicy policy) {
+            this.queueOverflowPolicy = policy;
+            return this;
+        }
+
+        /**
+         * Enable or disable batch upload. When activated, tags are collected and sent to the
+         * server in one request per batch instead of one request per tag.
+         * The values shared by all tags are sent once per batch.
+         * <p>
+         * Batches are posted to the collector set with {@link #setBatchEndpoint(String)}, which is required:
+         * the tag servers do not accept batches. Without it tags are sent one by one.
+         *
+         * @param batchUpload Set this to true to send tags in batches.
+         *                    Default is false.
+         * @return the current builder object.
+         */
+        public Builder setBatchUpload(boolean batchUpload) {
+            this.batchUploadActivated = batchUpload;
+            return this;
+        }
+
+        /**
+         * Specify the maximum time a tag is held before the batch is sent (not required).
+         *
+         * @param windowMillis The batch window in milliseconds.
+         *                     Default is {@link TagStringsAndValues#DEFAULT_BATCH_WINDOW_MILLIS}.
+         * @return the current builder object.
+         */
+        public Builder setBatchWindow(long windowMillis) {
+            this.batchWindowMillis = windowMillis;
+            return this;
+        }
+
+        /**
+         * Specify the maximum number of tags in one batch (not required).
+         * A batch is sent as soon as it is full.
+         *
+         * @param maxSize The maximum number of tags, must be at least 1.
+         *                Default is {@link TagStringsAndValues#DEFAULT_BATCH_MAX_SIZE}.
+         * @return the current builder object.
+         */
+        public Builder setBatchMaxSize(int maxSize) {
+            this.batchMaxSize = maxSize;
+            return this;
+        }
+
+        /**
+         * Specify the encoder creating the request body of a batch (not required).
+         *
+         * @param encoder The encoder to use. Default is {@link JsonTagBatchEncoder}.
+         * @return the current builder object.
+         */
+        public Builder setBatchEncoder(TagBatchEncoder encoder) {
+            this.batchEncoder = encoder;
+            return this;
+        }
+
+        /**
+         * Specify the URL the batches are posted to, required when batch upload is activated.
+         * Can be used to send the batches to a local collector during testing.
+         *
+         * @param url The URL of the batch collector.
+         *            Default is null, tags are then sent one by one even if batch upload is activated.
+         * @return the current builder object.
+         */
+        public Builder setBatchEndpoint(String url) {
+            this.batchEndpoint = url;
+            return this;
+        }
+
+        /**
+         * Specify the maximum memory used to cache URL-encoded categories, content IDs and names (not required).
+         * The least recently used values are evicted when the cache is full.
+         *
+         * @param maxBytes The approximate maximum memory in bytes, 0 to not cache encoded values.
+         *                 Default is {@link TagStringsAndValues#DEFAULT_URL_ENCODING_CACHE_BYTES}.
+         * @return the current builder object.
+         */
+        public Builder setUrlEncodingCacheSize(long maxBytes) {
+            this.urlEncodingCacheBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Specify if the framework should be initiated in the background (not required).
+         * <p>
+         * When activated, createInstance only validates the parameters and returns the instance right away.
+         * Reading the panelist files, setting up cookies and reading the device ID is done on a background thread.
+         * Tags sent before the initialization is completed are held and sent in order afterwards.
+         * If the initialization fails these tags are dropped and getInstance() returns null again.
+         *
+         * @param asyncInit True to initiate in the background. Default is false.
+         * @return the current builder object.
+         */
+        public Builder setAsyncInit(boolean asyncInit) {
+            this.asyncInitActivated = asyncInit;
+            return this;
+        }
+
+        /**
+         * Specify how long to wait for a connection to the server to be established (not required).
+         *
+         * @param timeoutMillis The connect timeout in milliseconds, 0 for no timeout.
+         *                      Default is {@link TagStringsAndValues#DEFAULT_CONNECT_TIMEOUT_MILLIS}.
+         * @return the current builder object.
+         */
+        public Builder setConnectTimeout(int timeoutMillis) {
+            this.connectTimeoutMillis = timeoutMillis;
+            return this;
+        }
+
+        /**
+         * Specify how long to wait for data from the server once connected (not required).
+         *
+         * @param timeoutMillis The read timeout in milliseconds, 0 for no timeout.
+         *                      Default is {@link TagStringsAndValues#DEFAULT_READ_TIMEOUT_MILLIS}.
+         * @return the current builder object.
+         */
+        public Builder setReadTimeout(int timeoutMillis) {
+            this.readTimeoutMillis = timeoutMillis;
+            return this;
+        }
+
+        /**
+         * Specify how long an attempt to send a tag may be in flight before it is aborted (not required).
+         * This catches requests the timeouts do not, such as a server sending its response very slowly.
+         * An aborted attempt fails with {@link TagFailureReason#ABORTED_STUCK} and is retried like other
+         * network failures.
+         *
+         * @param deadlineMillis The deadline in milliseconds, 0 to never abort requests.
+         *                       Default is {@link TagStringsAndValues#DEFAULT_REQUEST_DEADLINE_MILLIS}.
+         * @return the current builder object.
+         */
+        public Builder setRequestDeadline(long deadlineMillis) {
+            this.requestDeadlineMillis = deadlineMillis;
+            return this;
+        }
+
+        /**
+         * Specify the maximum memory used by the tags waiting to be sent (not required).
+         * The queue is checked periodically and the oldest tags waiting for a new attempt are given up
+         * until it is within the limit. Given up tags end in {@link TagRequestState#EXPIRED}.
+         *
+         * @param maxBytes The estimated maximum memory in bytes.
+         *                 Default is {@link TagStringsAndValues#DEFAULT_MAX_QUEUE_BYTES}.
+         * @return the current builder object.
+         */
+        public Builder setMaxQueueMemory(long maxBytes) {
+            this.maxQueueBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Specify the transport sending the tags to the server (not required), to send them with
+         * the HTTP client of the application and share its connections.
+         * The connect and read timeouts of the builder do not apply to a custom transport.
+         *
+         * @param transport The transport. Default is a transport using HttpURLConnection.
+         * @return the current builder object.
+         */
+        public Builder setTransport(TagTransport transport) {
+            this.transport = transport;
+            return this;
+        }
+
+        /**
+         * Specify the lowest number of tag requests, or batches, sent at the same time (not required).
+         * The framework starts at this number and adapts it to the network: more requests are sent at
+         * the same time while they are fast, fewer on errors and growing latency.
+         *
+         * @param minConcurrency The lowest number, at least 1.
+         *                       Default is {@link TagStringsAndValues#DEFAULT_MIN_CONCURRENCY}.
+         * @return the current builder object.
+         */
+        public Builder setMinConcurrency(int minConcurrency) {
+            this.minConcurrency = minConcurrency;
+            return this;
+        }
+
+        /**
+         * Specify the highest number of tag requests, or batches, sent at the same time (not required).
+         * Set it to the same value as {@link #setMinConcurrency(int)} for a fixed number.
+         *
+         * @param maxConcurrency The highest number, at least the lowest number.
+         *                       Default is {@link TagStringsAndValues#DEFAULT_MAX_CONCURRENCY}.
+         * @return the current builder object.
+         */
+        public Builder setMaxConcurrency(int maxConcurrency) {
+            this.maxConcurrency = maxConcurrency;
+            return this;
+        }
 
         /**
          * @return return constructor of TSMobileAnalytics.
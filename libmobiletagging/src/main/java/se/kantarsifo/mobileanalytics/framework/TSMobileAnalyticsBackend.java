@@ -8,13 +8,10 @@ package se.kantarsifo.mobileanalytics.framework;
 
 import android.content.Context;
 import android.content.pm.PackageManager.NameNotFoundException;
-import android.util.Log;
-
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import android.util.JsonReader;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -22,6 +19,7 @@ import java.io.InputStreamReader;
 import java.net.HttpCookie;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 /**
@@ -30,94 +28,270 @@ import java.util.List;
  *
  */
 class TSMobileAnalyticsBackend extends TSMobileAnalytics {
+    /**
+     * Held while the framework instance is created or destroyed, so that one initialization runs at a time.
+     */
+    private static final Object INIT_LOCK = new Object();
+
     /**
      * Create an instance of the framework.
+     * <p>
+     * One initialization runs at a time: callers arriving while it runs wait for it and get the instance
+     * it created, without reading the panelist files again. Once the instance is published the calls
+     * take no lock.
+     *
+     * @param settings The instance built with {@link TSMobileAnalytics.Builder} holding the optional settings,
+     *                 null to use the default settings.
      */
-    public static TSMobileAnalyticsBackend createInstance(final Context context, final String cpID, final String applicationName, final boolean onlyPanelist) {
+    public static TSMobileAnalyticsBackend createInstance(final Context context, final String cpID, final String applicationName, final boolean onlyPanelist, final TSMobileAnalytics settings) {
         if (context == null) {
             fatalErrorToLog("Mobile Application Tagging Framework Failed to initiate - context must not be null");
             return frameworkInstance;
         }
 
-        if (frameworkInstance == null) {
-            if (cpID == null) {
-                fatalErrorToLog("Mobile Application Tagging Framework Failed to initiate - CPID must not be null");
-            } else if (cpID.length() == 0) {
-                fatalErrorToLog("Mobile Application Tagging Framework Failed to initiate - CPID must not be empty");
-            } else if(!(cpID.length() == TagStringsAndValues.CPID_LENGTH_CODIGO || cpID.length() == TagStringsAndValues.CPID_LENGTH_MOBITECH)){
-                fatalErrorToLog("Mobile Application Tagging Framework Failed to initiate - CPID must be 4 or 32 characters");
-            } else if (applicationName == null) {
-                fatalErrorToLog("Mobile Application Tagging Framework Failed to initiate - Application Name must not be null");
-            } else if (applicationName.length() == 0) {
-                fatalErrorToLog("Mobile Application Tagging Framework Failed to initiate - Application Name must not be empty");
-            } else if (applicationName.length() > TagStringsAndValues.MAX_LENGTH_APP_NAME) {
-                fatalErrorToLog("Mobile Application Tagging Framework Failed to initiate - Application Name must not be more than " + TagStringsAndValues.MAX_LENGTH_APP_NAME + " characters");
-            } else {
-
-//                Runnable runnable = new Runnable() {
-//                    public void run() {
-//                                           }
-//                };
-//                Thread initTagsThreat = new Thread(runnable);
-//                initTagsThreat.start();
-
-                boolean requestHandled = initTags(context, cpID, applicationName, onlyPanelist);
-                if (!requestHandled) {
-                    initLegacyTags(context, cpID, applicationName, onlyPanelist);
+        long traceStart = TagTrace.begin();
+        TSMobileAnalyticsBackend instance = frameworkInstance;
+        if (instance == null) {
+            synchronized (INIT_LOCK) {
+                instance = frameworkInstance;
+                if (instance == null) {
+                    initInstance(context, cpID, applicationName, onlyPanelist, settings);
+                    instance = frameworkInstance;
                 }
-
             }
         } else {
             printToLog("Mobile Application Tagging Framework already initiated");
-            printToLog("Refreshing panelist keys");
-//            Runnable runnable = new Runnable() {
-//                public void run() {
-//                                     }
-//            };
-//            Thread refreshCookiesThread = new Thread(runnable);
-//            refreshCookiesThread.start();
-
-            List<HttpCookie> cookies = PanelistHandler.getCookies(context);
-            if (cookies != null) {
-                frameworkInstance.dataRequestHandler.refreshCookies(context, cookies);
-            } else {
-                frameworkInstance.dataRequestHandler.refreshCookies(context, PanelistHandler.getPanelistKey(context));
+            instance.refreshPanelistKeys(context);
+        }
+        TagTrace.end("createInstance", TagTrace.CATEGORY_INIT, traceStart, TagTrace.NO_ID);
+
+        return instance;
+    }
+
+    /**
+     * Validate the parameters and initiate the framework. Must be called holding the INIT_LOCK.
+     */
+    private static void initInstance(Context context, String cpID, String applicationName, boolean onlyPanelist, TSMobileAnalytics settings) {
+        if (cpID == null) {
+            fatalErrorToLog("Mobile Application Tagging Framework Failed to initiate - CPID must not be null");
+        } else if (cpID.length() == 0) {
+            fatalErrorToLog("Mobile Application Tagging Framework Failed to initiate - CPID must not be empty");
+        } else if(!(cpID.length() == TagStringsAndValues.CPID_LENGTH_CODIGO || cpID.length() == TagStringsAndValues.CPID_LENGTH_MOBITECH)){
+            fatalErrorToLog("Mobile Application Tagging Framework Failed to initiate - CPID must be 4 or 32 characters");
+        } else if (applicationName == null) {
+            fatalErrorToLog("Mobile Application Tagging Framework Failed to initiate - Application Name must not be null");
+        } else if (applicationName.length() == 0) {
+            fatalErrorToLog("Mobile Application Tagging Framework Failed to initiate - Application Name must not be empty");
+        } else if (applicationName.length() > TagStringsAndValues.MAX_LENGTH_APP_NAME) {
+            fatalErrorToLog("Mobile Application Tagging Framework Failed to initiate - Application Name must not be more than " + TagStringsAndValues.MAX_LENGTH_APP_NAME + " characters");
+        } else if (settings != null && settings.asyncInitActivated) {
+            initAsync(context, cpID, applicationName, onlyPanelist, settings);
+        } else {
+            PanelistHandler.Fingerprint fingerprint = PanelistHandler.Fingerprint.of(context);
+            boolean requestHandled = initTags(context, cpID, applicationName, onlyPanelist, settings, null, fingerprint);
+            if (!requestHandled) {
+                initLegacyTags(context, cpID, applicationName, onlyPanelist, settings, null, fingerprint);
             }
+        }
+    }
 
+    /**
+     * Destroy the framework instance and shut down its threads. Tags not yet delivered are kept in
+     * the outbox and sent by the next instance, which is not created before the outbox is closed.
+     */
+    static void destroyInstance() {
+        synchronized (INIT_LOCK) {
+            TSMobileAnalyticsBackend instance = frameworkInstance;
+            frameworkInstance = null;
+            if (instance != null) {
+                instance.dataRequestHandler.shutdown();
+            }
         }
+    }
 
-        return frameworkInstance;
+    /**
+     * The panelist files the current panelist keys were read from, null until the framework is initiated.
+     */
+    private volatile PanelistHandler.Fingerprint panelistFingerprint;
+
+    /**
+     * Set while a check of the panelist files is waiting to run, so that repeated calls of
+     * createInstance run one check.
+     */
+    private final AtomicBoolean refreshPending = new AtomicBoolean();
+
+    /**
+     * Held while the panelist files are checked, so that one check runs at a time.
+     */
+    private final Object refreshLock = new Object();
+
+    /**
+     * Check the panelist files on the request thread, and refresh the panelist keys only if
+     * the files have changed since they were last read.
+     */
+    private void refreshPanelistKeys(Context context) {
+        if (!refreshPending.compareAndSet(false, true)) {
+            return;
+        }
+        RefreshThread thread = new RefreshThread();
+        thread.instance = this;
+        thread.context = context;
+        dataRequestHandler.refreshAsync(thread);
+    }
+
+    /**
+     * A thread checking the panelist files and refreshing the panelist keys if they have changed.
+     */
+    private static class RefreshThread implements Runnable {
+        public TSMobileAnalyticsBackend instance;
+        public Context context;
+
+        public void run() {
+            // A call made from now on checks again
+            instance.refreshPending.set(false);
+            if (!instance.dataRequestHandler.isInitialized()) {
+                // The initialization in progress reads the files
+                return;
+            }
+            // One check at a time, a check posted during another one compares with its outcome
+            synchronized (instance.refreshLock) {
+                PanelistHandler.Fingerprint fingerprint = PanelistHandler.Fingerprint.of(context);
+                if (fingerprint.equals(instance.panelistFingerprint)) {
+                    printToLog("Panelist keys unchanged");
+                    return;
+                }
+                instance.panelistFingerprint = fingerprint;
+                printToLog("Refreshing panelist keys");
+                try {
+                    List<HttpCookie> cookies = PanelistHandler.getCookies(context);
+                    if (cookies != null) {
+                        instance.dataRequestHandler.refreshCookies(context, cookies);
+                    } else {
+                        instance.dataRequestHandler.refreshCookies(context, PanelistHandler.getPanelistKey(context));
+                    }
+                } catch (RuntimeException e) {
+                    // Read again next time
+                    instance.panelistFingerprint = null;
+                    errorToLog("Failed to refresh panelist keys - " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Publish an instance right away and complete the initialization on the request thread.
+     * Tags sent in the meantime are buffered by the instance.
+     */
+    private static void initAsync(Context context, String cpID, String applicationName, boolean onlyPanelist, TSMobileAnalytics settings) {
+        TSMobileAnalyticsBackend instance = new TSMobileAnalyticsBackend(settings);
+        frameworkInstance = instance;
+
+        InitThread thread = new InitThread();
+        thread.instance = instance;
+        thread.context = context;
+        thread.cpID = cpID;
+        thread.applicationName = applicationName;
+        thread.onlyPanelist = onlyPanelist;
+        thread.settings = settings;
+        instance.dataRequestHandler.initAsync(thread);
+        printToLog("Mobile Application Tagging Framework initiating in the background");
     }
 
-    private static boolean initTags(Context context, String cpID, String applicationName, boolean onlyPanelist) {
+    /**
+     * @param pending     The instance to complete when initiating asynchronously, null to create a new instance.
+     * @param fingerprint The panelist files the keys are read from, taken before they are read.
+     */
+    private static boolean initTags(Context context, String cpID, String applicationName, boolean onlyPanelist, TSMobileAnalytics settings,
+                                    TSMobileAnalyticsBackend pending, PanelistHandler.Fingerprint fingerprint) {
 
+        long traceStart = TagTrace.begin();
         final List<HttpCookie> cookies = PanelistHandler.getCookies(context);
+        TagTrace.end("readCookies", TagTrace.CATEGORY_INIT, traceStart, TagTrace.NO_ID);
         if (cookies == null)
             return false;
 
         if (onlyPanelist && cookies.isEmpty()) {
             fatalErrorToLog("Mobile Application Tagging Framework Failed to initiate - Cookies file was empty, panelist id not found");
         } else {
-            frameworkInstance = new TSMobileAnalyticsBackend(context, cpID, applicationName, cookies);
+            traceStart = TagTrace.begin();
+            if (pending != null) {
+                pending.panelistFingerprint = fingerprint;
+                pending.dataRequestHandler.start(context, cpID, applicationName, cookies, settings);
+            } else {
+                TSMobileAnalyticsBackend instance = new TSMobileAnalyticsBackend(context, cpID, applicationName, cookies, settings);
+                instance.panelistFingerprint = fingerprint;
+                frameworkInstance = instance;
+            }
+            TagTrace.end("startHandler", TagTrace.CATEGORY_INIT, traceStart, TagTrace.NO_ID);
             printToLog("Mobile Application Tagging Framework initiated with the following values \nCPID: " + cpID + "\nApplication name: " + applicationName + "\nOnly panelist tracking : " + onlyPanelist);
         }
         return true;
     }
 
-    private static void initLegacyTags(Context context, String cpID, String applicationName, boolean onlyPanelist) {
+    /**
+     * @param pending     The instance to complete when initiating asynchronously, null to create a new instance.
+     * @param fingerprint The panelist files the keys are read from, taken before they are read.
+     */
+    private static void initLegacyTags(Context context, String cpID, String applicationName, boolean onlyPanelist, TSMobileAnalytics settings,
+                                       TSMobileAnalyticsBackend pending, PanelistHandler.Fingerprint fingerprint) {
+        long traceStart = TagTrace.begin();
         final String panelistKey = PanelistHandler.getPanelistKey(context);
+        TagTrace.end("readPanelistKey", TagTrace.CATEGORY_INIT, traceStart, TagTrace.NO_ID);
         if (cpID.length() > TagStringsAndValues.MAX_LENGTH_CPID && cpID.length() != TagStringsAndValues.CPID_LENGTH_CODIGO) {
             fatalErrorToLog("Mobile Application Tagging Framework Failed to initiate - CPID must either be exactly " + TagStringsAndValues.CPID_LENGTH_CODIGO +
                     " or no more than " + TagStringsAndValues.MAX_LENGTH_CPID + " characters");
         } else if (onlyPanelist && panelistKey.equals(TagStringsAndValues.NO_PANELIST_ID)) {
             fatalErrorToLog("Mobile Application Tagging Framework Failed to initiate - Panelist Id was not found, it must exist if only panelist tracking is active");
         } else {
-            frameworkInstance = new TSMobileAnalyticsBackend(context, cpID, applicationName, panelistKey);
+            traceStart = TagTrace.begin();
+            if (pending != null) {
+                pending.panelistFingerprint = fingerprint;
+                pending.dataRequestHandler.start(context, cpID, applicationName, panelistKey, settings);
+            } else {
+                TSMobileAnalyticsBackend instance = new TSMobileAnalyticsBackend(context, cpID, applicationName, panelistKey, settings);
+                instance.panelistFingerprint = fingerprint;
+                frameworkInstance = instance;
+            }
+            TagTrace.end("startHandler", TagTrace.CATEGORY_INIT, traceStart, TagTrace.NO_ID);
             //TODO print panelist setting
             printToLog("Mobile Application Tagging Framework initiated with the following values \nCPID: " + cpID + "\nApplication name: " + applicationName + "\nOnly panelist tracking : " + onlyPanelist);
         }
     }
 
+    /**
+     * A thread completing an asynchronous initialization. If it fails the instance is discarded.
+     */
+    private static class InitThread implements Runnable {
+        public TSMobileAnalyticsBackend instance;
+        public Context context;
+        public String cpID;
+        public String applicationName;
+        public boolean onlyPanelist;
+        public TSMobileAnalytics settings;
+
+        public void run() {
+            long traceStart = TagTrace.begin();
+            try {
+                PanelistHandler.Fingerprint fingerprint = PanelistHandler.Fingerprint.of(context);
+                boolean requestHandled = initTags(context, cpID, applicationName, onlyPanelist, settings, instance, fingerprint);
+                if (!requestHandled) {
+                    initLegacyTags(context, cpID, applicationName, onlyPanelist, settings, instance, fingerprint);
+                }
+            } catch (RuntimeException e) {
+                fatalErrorToLog("Mobile Application Tagging Framework Failed to initiate - " + e);
+            }
+            if (!instance.dataRequestHandler.isInitialized()) {
+                instance.dataRequestHandler.abortInit();
+                synchronized (INIT_LOCK) {
+                    if (frameworkInstance == instance) {
+                        frameworkInstance = null;
+                    }
+                }
+            }
+            TagTrace.end("initAsync", TagTrace.CATEGORY_INIT, traceStart, TagTrace.NO_ID);
+        }
+    }
+
     /**
      * Get an instance of the framework.
      *
@@ -146,13 +320,22 @@ class TSMobileAnalyticsBackend extends TSMobileAnalytics {
         return useHttpsActivated;
     }
 
+    /**
+     * Constructor used internally only, for an instance initiated asynchronously.
+     * Use createInstance() and getInstance() instead.
+     */
+    public TSMobileAnalyticsBackend(TSMobileAnalytics settings) {
+        super();
+        dataRequestHandler = new TagDataRequestHandler(settings);
+    }
+
     /**
      * Constructor used internally only.
      * Use createInstance() and getInstance() instead.
      */
-    public TSMobileAnalyticsBackend(Context c, String cpId, String applicationName, String panelistId) {
+    public TSMobileAnalyticsBackend(Context c, String cpId, String applicationName, String panelistId, TSMobileAnalytics settings) {
         super();
-        dataRequestHandler = new TagDataRequestHandler(c, cpId, applicationName, panelistId);
+        dataRequestHandler = new TagDataRequestHandler(c, cpId, applicationName, panelistId, settings);
     }
 
 
@@ -160,9 +343,9 @@ class TSMobileAnalyticsBackend extends TSMobileAnalytics {
      * Constructor used internally only.
      * Use createInstance() and getInstance() instead.
      */
-    public TSMobileAnalyticsBackend(Context c, String cpId, String applicationName, List<HttpCookie> cookies) {
+    public TSMobileAnalyticsBackend(Context c, String cpId, String applicationName, List<HttpCookie> cookies, TSMobileAnalytics settings) {
         super();
-        dataRequestHandler = new TagDataRequestHandler(c, cpId, applicationName, cookies);
+        dataRequestHandler = new TagDataRequestHandler(c, cpId, applicationName, cookies, settings);
     }
 
     /**
@@ -171,10 +354,7 @@ class TSMobileAnalyticsBackend extends TSMobileAnalytics {
      * @param message The string to print.
      */
     public static void printToLog(String message) {
-        if (isLogPrintsActivated()) {
-            Log.i("MobileAppTagging", message);
-            Log.i("MobileAppTagging", "***********************************");
-        }
+        TagLog.log(TagLogLevel.INFO, message);
     }
 
     /**
@@ -183,11 +363,7 @@ class TSMobileAnalyticsBackend extends TSMobileAnalytics {
      * @param message The error message.
      */
     public static void errorToLog(String message) {
-        if (isLogPrintsActivated()) {
-            Log.e("MobileAppTagging", "***********************************");
-            Log.e("MobileAppTagging", message);
-            Log.e("MobileAppTagging", "***********************************");
-        }
+        TagLog.log(TagLogLevel.ERROR, message);
     }
 
     /**
@@ -196,9 +372,7 @@ class TSMobileAnalyticsBackend extends TSMobileAnalytics {
      * @param message The error message.
      */
     public static void fatalErrorToLog(String message) {
-        Log.e("MobileAppTagging", "***********************************");
-        Log.e("MobileAppTagging", message);
-        Log.e("MobileAppTagging", "***********************************");
+        TagLog.log(TagLogLevel.FATAL, message);
     }
 
 
@@ -230,16 +404,113 @@ class TSMobileAnalyticsBackend extends TSMobileAnalytics {
             return userKey;
         }
 
+        /**
+         * Get the panelist cookies. They are kept in the framework's cookie store with the size and
+         * modification time of the file they were read from, the file is only read again when it has changed.
+         *
+         * @param c The context of the application
+         * @return The cookies found, or null if there is no cookie file
+         */
         public static List<HttpCookie> getCookies(Context c) {
+            SifoCookieManager cookieManager = SifoCookieManager.getInstance();
+            cookieManager.setStorageDirectory(c.getFilesDir());
+
+            // The file is checked before it is read, a change made in between is found next time
+            File file = getSifoFile(c,
+                    TagStringsAndValues.SIFO_PANELIST_PACKAGE_NAME_V2,
+                    TagStringsAndValues.SIFO_PANELIST_CREDENTIALS_FILENAME_V2);
+            long fileSize = file != null ? file.length() : -1;
+            long fileModified = file != null ? file.lastModified() : 0;
+            if (fileModified > 0) {
+                List<HttpCookie> cookies = cookieManager.getPanelCookies(fileSize, fileModified);
+                if (cookies != null) {
+                    return cookies;
+                }
+            }
+
             FileInputStream fi = getSifoInputStream(c,
                     TagStringsAndValues.SIFO_PANELIST_PACKAGE_NAME_V2,
                     TagStringsAndValues.SIFO_PANELIST_CREDENTIALS_FILENAME_V2);
             if (fi != null) {
-                return readCookieStore(fi);
+                List<HttpCookie> cookies = readCookieStore(fi);
+                if (fileModified > 0) {
+                    cookieManager.setPanelCookies(fileSize, fileModified, cookies);
+                } else {
+                    cookieManager.setPanelCookies(-1, -1, cookies);
+                }
+                return cookies;
             }
+            cookieManager.clearPanelCookies();
             return null;
         }
 
+        /**
+         * The size and modification time of the panelist files of both versions of the TNS Sifo-Panelen
+         * application, to tell if they have changed without reading them. A file that is missing or
+         * can not be accessed has size and time 0, and -1 if the application is not installed.
+         */
+        static final class Fingerprint {
+            private final long size;
+            private final long modified;
+            private final long legacySize;
+            private final long legacyModified;
+
+            private Fingerprint(File file, File legacyFile) {
+                size = file != null ? file.length() : -1;
+                modified = file != null ? file.lastModified() : -1;
+                legacySize = legacyFile != null ? legacyFile.length() : -1;
+                legacyModified = legacyFile != null ? legacyFile.lastModified() : -1;
+            }
+
+            /**
+             * Take the fingerprint of the panelist files. The files are taken before they are read,
+             * so that a change made in between is found by the next check.
+             *
+             * @param c The context of the application
+             */
+            // The legacy package is deprecated for new code, but its file is still read as a fallback by getPanelistKey
+            @SuppressWarnings("deprecation")
+            static Fingerprint of(Context c) {
+                return new Fingerprint(
+                        getSifoFile(c, TagStringsAndValues.SIFO_PANELIST_PACKAGE_NAME_V2,
+                                TagStringsAndValues.SIFO_PANELIST_CREDENTIALS_FILENAME_V2),
+                        getSifoFile(c, TagStringsAndValues.SIFO_PANELIST_PACKAGE_NAME,
+                                TagStringsAndValues.SIFO_PANELIST_CREDENTIALS_FILENAME));
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                if (!(o instanceof Fingerprint)) {
+                    return false;
+                }
+                Fingerprint other = (Fingerprint) o;
+                return size == other.size && modified == other.modified
+                        && legacySize == other.legacySize && legacyModified == other.legacyModified;
+            }
+
+            @Override
+            public int hashCode() {
+                long h = size;
+                h = 31 * h + modified;
+                h = 31 * h + legacySize;
+                h = 31 * h + legacyModified;
+                return (int) (h ^ (h >>> 32));
+            }
+        }
+
+        /**
+         * Get a file of the TNS Sifo-Panelen application, to check if it has changed without reading it.
+         *
+         * @return The file, or null if the application is not installed
+         */
+        private static File getSifoFile(Context context, String packageName, String filename) {
+            try {
+                return context.createPackageContext(packageName, 0).getFileStreamPath(filename);
+            } catch (NameNotFoundException e) {
+                return null;
+            }
+        }
+
         /**
          * Opens a FileInputStream from TNS Sifo-Panelen
          * reads the inputstream from the TNS-Sifo Panelen application
@@ -257,18 +528,49 @@ class TSMobileAnalyticsBackend extends TSMobileAnalytics {
             return fi;
         }
 
-        private static List<HttpCookie> readCookieStore(FileInputStream stream) {
-            String content = readFile(stream, "Error reading TNS Panelist cookies");
+        /**
+         * Read the cookies of the JSON cookie file while it is streamed, without holding the file
+         * or a JSON tree in memory. Entries that are not valid cookies are skipped one at a time.
+         * If the file itself is not valid JSON the cookies read before the error are kept.
+         *
+         * @param stream The stream to use, closed when done
+         * @return The cookies read from the file
+         */
+        static List<HttpCookie> readCookieStore(FileInputStream stream) {
             List<HttpCookie> cookieList = new ArrayList<>();
+            JsonReader reader = null;
+            int skipped = 0;
             try {
-                JSONArray jsonArray = new JSONArray(content);
-                for (int i = 0; i < jsonArray.length(); i++) {
-                    JSONObject entry = jsonArray.getJSONObject(i);
-                    cookieList.add(CookieHandler.getCookieFromJson(entry));
+                reader = new JsonReader(new InputStreamReader(stream, "UTF-8"));
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    HttpCookie cookie = CookieHandler.readCookieFromJson(reader);
+                    if (cookie != null) {
+                        cookieList.add(cookie);
+                    } else {
+                        skipped++;
+                    }
                 }
-
-            } catch (JSONException e) {
+                reader.endArray();
+            } catch (IOException e) {
                 TSMobileAnalyticsBackend.printToLog("Error parsing TNS Panelist JSON data");
+            } catch (IllegalStateException e) {
+                // The file is valid JSON but not an array of cookies
+                TSMobileAnalyticsBackend.printToLog("Error parsing TNS Panelist JSON data");
+            } finally {
+                try {
+                    if (reader != null) {
+                        reader.close();
+                    } else {
+                        stream.close();
+                    }
+                } catch (IOException e) {
+                    //Should never happen
+                    TSMobileAnalyticsBackend.printToLog("Error Closing InputStream");
+                }
+            }
+            if (skipped > 0) {
+                TSMobileAnalyticsBackend.errorToLog("Skipped " + skipped + " invalid entries of the TNS Panelist cookies");
             }
             return cookieList;
         }
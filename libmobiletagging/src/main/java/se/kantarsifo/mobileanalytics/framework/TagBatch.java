@@ -0,0 +1,94 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * TNS SIFO Mobile Application Tagging Framework :
+ * Debugging/Advanced features : TagBatch.java :
+ * <p>
+ * A group of tags sent to the server in one request when batch upload is activated.
+ * The values shared by all tags (cpid, ref, type, euid and euidq) are held once by the batch,
+ * while each {@link TagDataRequest} holds the values of a single tag.
+ */
+public class TagBatch {
+
+    private final String cpId;
+    private final String ref;
+    private final String type;
+    private final String euid;
+    private final String euidq;
+    private final List<TagDataRequest> requests;
+
+    /**
+     * Constructor, used internally by framework only.
+     */
+    TagBatch(String cpId, String ref, String type, String euid, String euidq, List<TagDataRequest> requests) {
+        this.cpId = cpId;
+        this.ref = ref;
+        this.type = type;
+        this.euid = euid;
+        this.euidq = euidq;
+        this.requests = Collections.unmodifiableList(requests);
+    }
+
+    /**
+     * Get the customer ID (cpid) shared by all tags in the batch.
+     *
+     * @return The customer ID.
+     */
+    public String getCpId() {
+        return cpId;
+    }
+
+    /**
+     * Get the reference value (ref) shared by all tags in the batch.
+     *
+     * @return The reference value, not URL-encoded.
+     */
+    public String getRef() {
+        return ref;
+    }
+
+    /**
+     * Get the type value (type) shared by all tags in the batch.
+     *
+     * @return The type value.
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Get the device identifier (euid) shared by all tags in the batch.
+     *
+     * @return The device identifier.
+     */
+    public String getEuid() {
+        return euid;
+    }
+
+    /**
+     * Get the euidq value shared by all tags in the batch.
+     *
+     * @return The euidq value.
+     */
+    public String getEuidq() {
+        return euidq;
+    }
+
+    /**
+     * Get the tags in the batch, in the order they were sent by the application.
+     *
+     * @return An unmodifiable list of the requests in the batch.
+     */
+    public List<TagDataRequest> getRequests() {
+        return requests;
+    }
+}
@@ -0,0 +1,35 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import java.io.IOException;
+
+/**
+ * TNS SIFO Mobile Application Tagging Framework :
+ * Debugging/Advanced features : TagBatchEncoder.java :
+ * <p>
+ * This interface is used to encode a {@link TagBatch} into the body of the request sent to the
+ * server when batch upload is activated. The default implementation is {@link JsonTagBatchEncoder}.
+ */
+public interface TagBatchEncoder {
+    /**
+     * Get the value of the Content-Type header of the encoded request body.
+     *
+     * @return The content type, for example "application/json; charset=utf-8".
+     */
+    String getContentType();
+
+    /**
+     * Encode the batch into a request body.
+     * This method is called from the framework's request thread.
+     *
+     * @param batch The batch to encode.
+     * @return The bytes to send as request body.
+     * @throws IOException If the batch could not be encoded, all tags in the batch will fail.
+     */
+    byte[] encode(TagBatch batch) throws IOException;
+}
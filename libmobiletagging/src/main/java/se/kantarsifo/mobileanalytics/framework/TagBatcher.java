@@ -0,0 +1,228 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects tags while batch upload is activated and sends them to the server in one request,
+ * either when the batch window has passed since the first tag was added or when the batch
+ * has reached its maximum size.
+ */
+class TagBatcher {
+
+    private final TagHandler tagHandler;
+    private final TagTransport transport;
+    private final TagMetrics metrics;
+    private final AdaptiveConcurrencyLimit concurrencyLimit;
+    private final ScheduledExecutorService scheduler;
+    private final TagBatchEncoder encoder;
+    private final String endpoint;
+    private final long windowMillis;
+    private final int maxSize;
+
+    /**
+     * The tags collected for the next batch.
+     */
+    private List<TagDataRequest> pending = new ArrayList<>();
+
+    /**
+     * The scheduled flush of the pending batch, null if none is scheduled.
+     */
+    private ScheduledFuture<?> scheduledFlush;
+
+    /**
+     * Create a new batcher.
+     *
+     * @param tagHandler   The TagHandler holding the values shared by all tags.
+     * @param transport    The transport sending the batches.
+     * @param metrics      The counters updated with the bytes sent.
+     * @param limit        The limit of requests in flight, shared with single tags.
+     * @param scheduler    The executor used to send the batches.
+     * @param encoder      The encoder creating the request body.
+     * @param endpoint     The URL the batches are posted to.
+     * @param windowMillis The maximum time a tag is held before the batch is sent.
+     * @param maxSize      The maximum number of tags in one batch.
+     */
+    TagBatcher(TagHandler tagHandler, TagTransport transport, TagMetrics metrics, AdaptiveConcurrencyLimit limit,
+               ScheduledExecutorService scheduler, TagBatchEncoder encoder, String endpoint,
+               long windowMillis, int maxSize) {
+        this.tagHandler = tagHandler;
+        this.transport = transport;
+        this.metrics = metrics;
+        this.concurrencyLimit = limit;
+        this.scheduler = scheduler;
+        this.encoder = encoder;
+        this.endpoint = endpoint;
+        this.windowMillis = windowMillis;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Add a tag to the pending batch.
+     *
+     * @param request The request to add.
+     */
+    synchronized void add(TagDataRequest request) {
+        pending.add(request);
+        if (pending.size() >= maxSize) {
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+            }
+            scheduledFlush = null;
+            FlushThread thread = new FlushThread();
+            thread.batch = takePending();
+            scheduler.execute(thread);
+        } else if (scheduledFlush == null) {
+            scheduledFlush = scheduler.schedule(new FlushThread(), windowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Get the URL the batches are posted to.
+     *
+     * @return The batch endpoint.
+     */
+    String getEndpoint() {
+        return endpoint;
+    }
+
+    private List<TagDataRequest> takePending() {
+        List<TagDataRequest> batch = pending;
+        pending = new ArrayList<>();
+        return batch;
+    }
+
+    /**
+     * Send a batch to the server and report the result for each of its tags.
+     *
+     * @return True if the batch was passed to the transport, false if all of its tags were given up.
+     */
+    private boolean send(List<TagDataRequest> pendingRequests) {
+        // Requests given up while waiting for the batch are left out
+        List<TagDataRequest> requests = new ArrayList<>(pendingRequests.size());
+        for (TagDataRequest request : pendingRequests) {
+            if (request.startAttempt()) {
+                requests.add(request);
+            }
+        }
+        if (requests.isEmpty()) {
+            return false;
+        }
+        TagBatch batch = new TagBatch(tagHandler.getCpid(), tagHandler.getRef(), tagHandler.getType(),
+                tagHandler.getEuid(), tagHandler.getEuidq(), requests);
+
+        try {
+            byte[] body = encoder.encode(batch);
+
+            RequestHeaders headers = tagHandler.getRequestHeaders();
+            Map<String, String> requestHeaders = new LinkedHashMap<>(4);
+            requestHeaders.put("Content-Type", encoder.getContentType());
+            requestHeaders.put("User-Agent", headers.userAgent);
+            requestHeaders.put("Cookie", headers.cookie);
+            TagTransport.Request call = new TagTransport.Request("POST", endpoint, requestHeaders, body);
+            call.setTags(requests);
+            call.setTransport(transport);
+            TagTransport.Response response;
+            for (TagDataRequest request : requests) {
+                request.setCall(call);
+            }
+            try {
+                response = transport.execute(call);
+            } finally {
+                for (TagDataRequest request : requests) {
+                    request.setCall(null);
+                }
+            }
+            metrics.bytesSent.addAndGet(body.length);
+            int statusCode = response.getStatusCode();
+
+            if (TagLog.isLoggable(TagLogLevel.DEBUG)) {
+                TagLog.log(TagLogLevel.DEBUG, "Tag batch sent: " +
+                        "\nTags: " + requests.size() +
+                        "\nBytes: " + body.length +
+                        "\nURL:\n" + endpoint);
+            }
+
+            for (TagDataRequest request : requests) {
+                if (request.getFirstByteNanos() == 0) {
+                    request.markFirstByte();
+                }
+                request.setHttpStatusCode(statusCode);
+                if (TagDataRequest.isDelivered(statusCode)) {
+                    request.dataRequestComplete();
+                } else {
+                    if (statusCode >= 400) {
+                        request.setRetryAfter(response.getRetryAfter());
+                    }
+                    request.dataRequestFailWithResponseCode(statusCode, response.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            for (TagDataRequest request : requests) {
+                request.dataRequestFail(e);
+            }
+        } catch (RuntimeException e) {
+            // Such as a failing encoder, the requests must still end
+            for (TagDataRequest request : requests) {
+                request.dataRequestFail(e);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A thread to send a batch to the server. If no batch is given the pending batch is sent.
+     */
+    private class FlushThread implements Runnable {
+        public List<TagDataRequest> batch;
+
+        public void run() {
+            if (batch == null) {
+                synchronized (TagBatcher.this) {
+                    scheduledFlush = null;
+                    batch = takePending();
+                }
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            SendThread thread = new SendThread();
+            thread.batch = batch;
+            concurrencyLimit.submit(thread);
+        }
+    }
+
+    /**
+     * A thread sending a batch once the concurrency limit allows it.
+     */
+    private class SendThread implements Runnable {
+        public List<TagDataRequest> batch;
+
+        public void run() {
+            long start = System.nanoTime();
+            boolean congestion = false;
+            boolean sent = false;
+            try {
+                sent = send(batch);
+                for (TagDataRequest request : batch) {
+                    congestion |= AdaptiveConcurrencyLimit.isCongestion(request);
+                }
+            } finally {
+                concurrencyLimit.release(start, sent ? (System.nanoTime() - start) / 1000000 : -1, congestion);
+                TagTrace.end("sendBatch", TagTrace.CATEGORY_TAG, start, TagTrace.NO_ID);
+            }
+        }
+    }
+}
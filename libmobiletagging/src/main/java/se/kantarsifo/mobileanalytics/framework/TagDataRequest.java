@@ -6,12 +6,15 @@
 
 package se.kantarsifo.mobileanalytics.framework;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.URL;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.UUID;
-import javax.net.ssl.HttpsURLConnection;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * TNS SIFO Mobile Application Tagging Framework :
@@ -58,11 +61,37 @@ public class TagDataRequest {
 
     /**
      * Get the Unique Identifier of this specific request. Can be used for tracking etc.
+     * The ID is kept when the request is sent again, so it can be used to detect duplicates.
      *
      * @return The UUID holding the unique identifier.
      */
     public UUID getRequestID() {
-        return requestID;
+        UUID uuid = requestID;
+        if (uuid == null) {
+            uuid = new UUID(requestIdPrefix, RequestIdGenerator.toLeastSignificantBits(requestSequence));
+            requestID = uuid;
+        }
+        return uuid;
+    }
+
+    /**
+     * Get the unique identifier of this request as a number, unique among the requests of the
+     * installation. It is the sequence part of {@link #getRequestID()}, without creating an object.
+     *
+     * @return The identifier, a non-negative number.
+     */
+    public long getRequestIDAsLong() {
+        return requestSequence;
+    }
+
+
+    /**
+     * Get the time the tag was sent by the application.
+     *
+     * @return The time this request was created, in milliseconds since epoch.
+     */
+    public long getCreationTime() {
+        return creationTime;
     }
 
 
@@ -75,13 +104,119 @@ public class TagDataRequest {
         return httpStatusCode;
     }
 
+    /**
+     * Get the number of times the framework has tried to send this request.
+     *
+     * @return The number of attempts, 0 if the request has not been sent yet.
+     */
+    public int getAttemptCount() {
+        return attemptCount;
+    }
+
+    /**
+     * Get the current state of the request.
+     *
+     * @return The state, see {@link TagRequestState}.
+     */
+    public TagRequestState getState() {
+        return state.get();
+    }
+
+    /**
+     * Get the reason the last attempt failed.
+     *
+     * @return The failure reason, null if the request has not failed.
+     */
+    public TagFailureReason getFailureReason() {
+        return failureReason;
+    }
+
+    /**
+     * Get the time the request was added to the queue of pending requests.
+     * <p>
+     * All phase times are monotonic {@link System#nanoTime()} values, only meaningful compared to each
+     * other, and 0 if the phase has not been reached. The times after the enqueue time are those of the
+     * last attempt and are reset when a new attempt is made.
+     *
+     * @return The enqueue time in nanoseconds.
+     */
+    public long getEnqueueNanos() {
+        return enqueueNanos;
+    }
+
+    /**
+     * Get the time the request was taken from the queue by the request thread to be sent.
+     *
+     * @return The dequeue time in nanoseconds, see {@link #getEnqueueNanos()}.
+     */
+    public long getDequeueNanos() {
+        return dequeueNanos;
+    }
+
+    /**
+     * Get the time the connection to the server was open, either a new or a reused connection.
+     *
+     * @return The connection open time in nanoseconds, see {@link #getEnqueueNanos()}.
+     */
+    public long getConnectionOpenNanos() {
+        return connectionOpenNanos;
+    }
+
+    /**
+     * Get the time the first byte of the response, the status line, was received.
+     *
+     * @return The first byte time in nanoseconds, see {@link #getEnqueueNanos()}.
+     */
+    public long getFirstByteNanos() {
+        return firstByteNanos;
+    }
+
+    /**
+     * Get the time the request completed or failed.
+     *
+     * @return The completion time in nanoseconds, see {@link #getEnqueueNanos()}.
+     */
+    public long getCompletionNanos() {
+        return completionNanos;
+    }
+
+    /**
+     * Get the time the request waited in the queue before the last attempt was started.
+     *
+     * @return The queueing delay in milliseconds, -1 if the request has not been taken from the queue.
+     */
+    public long getQueueTimeMillis() {
+        return getMillisBetween(enqueueNanos, dequeueNanos);
+    }
+
+    /**
+     * Get the time the last attempt spent on the network, from the connection being open until the
+     * request completed or failed.
+     *
+     * @return The network time in milliseconds, -1 if the connection was never open.
+     */
+    public long getNetworkTimeMillis() {
+        return getMillisBetween(connectionOpenNanos, completionNanos);
+    }
+
     /** End of public methods **/
 
     /**
-     * The Unique ID of this specific request, can used for tracking etc.
+     * Estimated memory used by a request besides its strings: the object, its UUID and atomics.
+     */
+    private static final int FOOTPRINT_OVERHEAD_BYTES = 320;
+
+    /**
+     * The Unique ID of this specific request, can used for tracking etc. Created when first requested.
      */
     private UUID requestID;
 
+    /**
+     * The two parts of the request ID, see {@link RequestIdGenerator}.
+     */
+    private long requestIdPrefix;
+    private long requestSequence;
+
     /**
      * The catalog value (cat) to be sent in this request.
      */
@@ -118,6 +253,62 @@ public class TagDataRequest {
      */
     private int httpStatusCode = 0;
 
+    /**
+     * The time this request was created, in milliseconds since epoch.
+     */
+    private long creationTime;
+
+    /**
+     * The sequence number of this request in the outbox journal, -1 if not stored.
+     */
+    private final AtomicLong outboxSeq = new AtomicLong(-1);
+
+    /**
+     * True while the request is in the request handler's queue.
+     */
+    private final AtomicBoolean queued = new AtomicBoolean(false);
+
+    /**
+     * The lifecycle state, only changed with compare-and-set so each transition happens once.
+     */
+    private final AtomicReference<TagRequestState> state = new AtomicReference<>(TagRequestState.QUEUED);
+
+    /**
+     * The number of times the framework has tried to send this request.
+     */
+    private int attemptCount = 0;
+
+    /**
+     * The System.nanoTime() when the last attempt was started, 0 if never attempted.
+     */
+    private volatile long attemptStartNanos = 0;
+
+    /**
+     * The System.nanoTime() of each phase of the request, see {@link #getEnqueueNanos()}.
+     */
+    private volatile long enqueueNanos = 0;
+    private volatile long dequeueNanos = 0;
+    private volatile long connectionOpenNanos = 0;
+    private volatile long firstByteNanos = 0;
+    private volatile long completionNanos = 0;
+
+    /**
+     * The transport request of the attempt in flight, null when no attempt is in flight.
+     */
+    private volatile TagTransport.Request call;
+
+    /**
+     * Set when the attempt in flight has been aborted.
+     */
+    private volatile boolean aborted = false;
+
+    private volatile TagFailureReason failureReason;
+
+    /**
+     * The delay requested by the server in a Retry-After header, -1 if none.
+     */
+    private long retryAfterMillis = -1;
+
     /**
      * The name of the application created from initialize
      */
@@ -161,105 +352,402 @@ public class TagDataRequest {
         this.applicationName = applicationName;
         this.applicationVersion = applicationVersion;
 
-        requestID = UUID.randomUUID();
+        requestIdPrefix = RequestIdGenerator.getPrefix();
+        requestSequence = RequestIdGenerator.nextSequence();
+        creationTime = System.currentTimeMillis();
         callbackListener = callback;
         userDefinedCallbackListener = userCallbackListener;
     }
 
+    void setCreationTime(long creationTime) {
+        this.creationTime = creationTime;
+    }
+
+    /**
+     * Restore the ID of a request read back from the outbox, so it keeps its ID across sessions.
+     */
+    void setRequestID(long prefix, long sequence) {
+        this.requestIdPrefix = prefix;
+        this.requestSequence = sequence;
+        this.requestID = null;
+    }
+
+    long getRequestIDPrefix() {
+        return requestIdPrefix;
+    }
+
+    /**
+     * Get the sequence number of this request in the outbox journal.
+     *
+     * @return The sequence number, -1 if the request is not stored in the outbox.
+     */
+    long getOutboxSeq() {
+        return outboxSeq.get();
+    }
+
+    void setOutboxSeq(long outboxSeq) {
+        this.outboxSeq.set(outboxSeq);
+    }
+
+    /**
+     * Get the sequence number of this request in the outbox journal and clear it, so the
+     * journal entry is acknowledged only once.
+     *
+     * @return The sequence number, -1 if the request is not stored in the outbox.
+     */
+    long takeOutboxSeq() {
+        return outboxSeq.getAndSet(-1);
+    }
+
+    boolean isQueued() {
+        return queued.get();
+    }
+
+    /**
+     * Mark the request as added to or removed from the request queue.
+     *
+     * @return True if the state changed, false if the request already was in that state.
+     */
+    boolean setQueued(boolean queued) {
+        return this.queued.compareAndSet(!queued, queued);
+    }
+
+    /**
+     * Put a request that failed back in the {@link TagRequestState#QUEUED} state for a new attempt.
+     *
+     * @return True if the request was {@link TagRequestState#SENDING}, false if it already reached a terminal state.
+     */
+    boolean requeue() {
+        return state.compareAndSet(TagRequestState.SENDING, TagRequestState.QUEUED);
+    }
+
+    /**
+     * Expire a request that is waiting to be sent, to make room for a new one in a full queue.
+     *
+     * @return True if the request was {@link TagRequestState#QUEUED}, false if it is being sent or already finished.
+     */
+    boolean evict() {
+        return state.compareAndSet(TagRequestState.QUEUED, TagRequestState.EXPIRED);
+    }
+
+    /**
+     * Move the request to a terminal state. Only the first call succeeds, so whichever of the
+     * request thread, the overflow policy or the reaper finishes the request does the bookkeeping
+     * and notifies the user defined callback listener with {@link #notifyFinished()}.
+     *
+     * @param terminal The terminal state.
+     * @return True if the request was not already in a terminal state.
+     */
+    boolean finish(TagRequestState terminal) {
+        while (true) {
+            TagRequestState current = state.get();
+            if (current.isTerminal()) {
+                return false;
+            }
+            if (state.compareAndSet(current, terminal)) {
+                return true;
+            }
+        }
+    }
+
+    void setFailureReason(TagFailureReason failureReason) {
+        this.failureReason = failureReason;
+    }
+
+    void setHttpStatusCode(int httpStatusCode) {
+        this.httpStatusCode = httpStatusCode;
+    }
+
+    long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    long getAttemptStartNanos() {
+        return attemptStartNanos;
+    }
+
+    void markEnqueued() {
+        enqueueNanos = System.nanoTime();
+    }
+
+    void markDequeued() {
+        dequeueNanos = System.nanoTime();
+    }
+
+    void markConnectionOpen() {
+        connectionOpenNanos = System.nanoTime();
+    }
+
+    void markFirstByte() {
+        firstByteNanos = System.nanoTime();
+    }
+
+    /**
+     * Set the transport request of the attempt in flight, so that it can be aborted.
+     *
+     * @param call The transport request, null once the response has been received.
+     */
+    void setCall(TagTransport.Request call) {
+        this.call = call;
+    }
+
+    /**
+     * Abort the attempt in flight through its transport. The thread sending the request gets an
+     * IOException and the attempt fails with {@link TagFailureReason#ABORTED_STUCK}.
+     *
+     * @return True if an attempt was in flight and this call aborted it, false if no attempt was in
+     * flight or it was already aborted, by an earlier pass or through another tag of its batch.
+     */
+    boolean abort() {
+        TagTransport.Request c = call;
+        return c != null && c.abort();
+    }
+
+    /**
+     * Mark the attempt in flight as aborted, for all tags of an aborted batch.
+     */
+    void markAborted() {
+        aborted = true;
+    }
+
+    /**
+     * Estimate the memory used by the request, for the limit of the queue.
+     *
+     * @return The estimated size in bytes.
+     */
+    int getFootprintBytes() {
+        int chars = (url != null ? url.length() : 0) + (cat != null ? cat.length() : 0)
+                + (id != null ? id.length() : 0) + name.length();
+        return FOOTPRINT_OVERHEAD_BYTES + 2 * chars;
+    }
+
+    private static long getMillisBetween(long startNanos, long endNanos) {
+        if (startNanos == 0 || endNanos == 0) {
+            return -1;
+        }
+        return (endNanos - startNanos) / 1000000;
+    }
+
+    /**
+     * Move the request to the {@link TagRequestState#SENDING} state and reset the result of the
+     * previous attempt before the request is sent.
+     *
+     * @return True if the request should be sent, false if it already reached a terminal state.
+     */
+    boolean startAttempt() {
+        if (!state.compareAndSet(TagRequestState.QUEUED, TagRequestState.SENDING)) {
+            return false;
+        }
+        attemptCount++;
+        attemptStartNanos = System.nanoTime();
+        connectionOpenNanos = 0;
+        firstByteNanos = 0;
+        completionNanos = 0;
+        aborted = false;
+        failureReason = null;
+        httpStatusCode = 0;
+        retryAfterMillis = -1;
+        return true;
+    }
+
+    /**
+     * Create the User-Agent header sent with tag requests.
+     *
+     * @param applicationName    The name of the application.
+     * @param applicationVersion The version name of the application.
+     * @return The User-Agent header value.
+     */
+    static String createUserAgent(String applicationName, String applicationVersion) {
+        return applicationName + "/" + applicationVersion + " " + "session_id=" + "sdk_android_" + TSMobileAnalytics.LIBRARY_VERSION + " " + System.getProperty("http.agent");
+    }
+
+    /**
+     * Create the Cookie header sent with tag requests from the framework's cookie store.
+     *
+     * @return The Cookie header value.
+     */
+    static String createCookieHeader() {
+        return CookieHandler.getCookieString(SifoCookieManager.getInstance().getCookieStore().getCookies());
+    }
+
     /**
      * Init the server request to the specified URL. This function will start a new Thread.
+     *
+     * @param transport The transport sending the request.
+     * @param headers   The User-Agent and Cookie headers to send.
+     * @return True if the request was passed to the transport, false if it was not sent.
+     */
+    boolean initRequest(TagTransport transport, RequestHeaders headers) {
+        if (!startAttempt()) {
+            return false;
+        }
+        if (url == null || url.length() == 0) {
+            dataRequestFail(new IllegalStateException("No URL for the tag request"));
+            return false;
+        }
+        Map<String, String> requestHeaders = new LinkedHashMap<>(4);
+        requestHeaders.put("User-Agent", headers.userAgent);
+        requestHeaders.put("Cookie", headers.cookie);
+        TagTransport.Request call = new TagTransport.Request("GET", url, requestHeaders, null);
+        call.setTags(Collections.singletonList(this));
+        call.setTransport(transport);
+        try {
+            setCall(call);
+            TagTransport.Response response;
+            try {
+                response = transport.execute(call);
+            } finally {
+                setCall(null);
+            }
+            if (firstByteNanos == 0) {
+                markFirstByte();
+            }
+            int statusCode = response.getStatusCode();
+            if (statusCode >= 400) {
+                setRetryAfter(response.getRetryAfter());
+            }
+
+            if (TagLog.isLoggable(TagLogLevel.DEBUG)) {
+                TagLog.log(TagLogLevel.DEBUG,
+                        "Tag request sent: " +
+                                "\nRequestID: " + getRequestID() +
+                                "\nCat encoded value:" + TagHandler.urlEncode(cat) +
+                                "\nCat plain value: " + cat +
+                                "\nId: " + id +
+                                "\nName:" + name +
+                                "\nURL:\n" + url);
+            }
+
+            httpStatusCode = statusCode;
+            if (isDelivered(statusCode)) {
+                dataRequestComplete();
+            } else {
+                dataRequestFailWithResponseCode(statusCode, response.getMessage());
+            }
+        } catch (IOException e) {
+            httpStatusCode = 0;
+            dataRequestFail(e);
+        } catch (RuntimeException e) {
+            // Such as a ClassCastException for a URL that is not HTTP, the request must still end
+            httpStatusCode = 0;
+            dataRequestFail(e);
+        }
+        return true;
+    }
+
+    /**
+     * Read the Retry-After header of a failed request.
+     *
+     * @param retryAfter The header value, null if the response had none.
      */
-    void initRequest() {
-        // HTTP-connection setup
-        if (url != null && url.length() > 0) {
-            URL obj = null;
-            HttpsURLConnection con = null;
+    void setRetryAfter(String retryAfter) {
+        if (retryAfter != null) {
             try {
-                obj = new URL(url);
-                con = (HttpsURLConnection) obj.openConnection();
-
-                //add request header
-                String userAgent = applicationName + "/" + applicationVersion + " " + "session_id=" + "sdk_android_" + TSMobileAnalytics.getInstance().getLibraryVersion() + " " + System.getProperty("http.agent");
-                String cookieHandlerString = CookieHandler.getCookieString(SifoCookieManager.getInstance().getCookieStore().getCookies());
-
-                con.setRequestMethod("GET");
-                con.setRequestProperty("User-Agent", userAgent);
-                con.setRequestProperty("Cookie", cookieHandlerString);
-
-                BufferedReader in = new BufferedReader(
-                        new InputStreamReader(con.getInputStream()));
-                String line;
-                StringBuffer response = new StringBuffer();
-
-                while ((line = in.readLine()) != null) {
-                    response.append(line);
-                }
-                in.close();
-
-                if (con != null) {
-                    TSMobileAnalyticsBackend.printToLog(
-                            "Tag request sent: " +
-                                    "\nRequestID: " + getRequestID() +
-                                    "\nCat encoded value:" + TagHandler.urlEncode(cat) +
-                                    "\nCat plain value: " + cat +
-                                    "\nId: " + id +
-                                    "\nName:" + name +
-                                    "\nURL:\n" + url);
-
-
-                    if (con.getResponseCode() == 200) {
-                        dataRequestComplete();
-                    } else {
-                        dataRequestFailWithResponseCode(con.getResponseCode(), con.getResponseMessage());
-                    }
-                }
-            } catch (IOException e) {
-                dataRequestFail(e);
-            }finally {
-                if(con != null){
-                    con.disconnect();
-                }
+                retryAfterMillis = Long.parseLong(retryAfter.trim()) * 1000;
+            } catch (NumberFormatException e) {
+                // HTTP-date values are not supported, the default backoff is used instead
+                retryAfterMillis = -1;
             }
         }
     }
 
+    /**
+     * The request ID, so a request can be passed as a lazily formatted log argument.
+     */
+    @Override
+    public String toString() {
+        return getRequestID().toString();
+    }
+
     /**
      * Handle a failed request.
      * @param e The exception if one was thrown.
      */
-    private void dataRequestFail(Exception e) {
+    void dataRequestFail(Exception e) {
+        if (aborted) {
+            failureReason = TagFailureReason.ABORTED_STUCK;
+        } else if (e instanceof SocketTimeoutException) {
+            failureReason = TagFailureReason.TIMEOUT;
+        } else if (e instanceof RuntimeException) {
+            failureReason = TagFailureReason.INTERNAL_ERROR;
+        } else {
+            failureReason = TagFailureReason.NETWORK_ERROR;
+        }
 
-        TSMobileAnalyticsBackend.errorToLog("Tag request failed with exception:" + "\n" + e.toString() + "\nRequestID: " + getRequestID());
+        TagLog.error("Tag request failed with exception:\n{}\nRequestID: {}", e, this);
 
+        notifyFailed();
+    }
 
-        // Tell our callback-listeners that the request failed
-        callbackListener.onDataRequestFailed(this);
-        if (userDefinedCallbackListener != null) {
-            userDefinedCallbackListener.onDataRequestFailed(this);
+    void dataRequestFailWithResponseCode(int statusCode, String message) {
+        failureReason = TagFailureReason.HTTP_STATUS;
+        if (TagLog.isLoggable(TagLogLevel.ERROR)) {
+            TagLog.log(TagLogLevel.ERROR, "Tag request failed with http status code:" + statusCode + "\nmessage:" + message + "\nRequestID: " + getRequestID());
         }
-    }
 
-    private void dataRequestFailWithResponseCode(int statusCode, String message) {
-        TSMobileAnalyticsBackend.errorToLog("Tag request failed with http status code:" + statusCode + "\nmessage:" + message + "\nRequestID: " + getRequestID());
+        notifyFailed();
+    }
 
-        // Tell our callback-listeners that the request failed
+    /**
+     * Tell the request handler that the attempt failed. The handler either puts the request back
+     * in the queue for a new attempt or finishes it, which notifies the user defined listener.
+     */
+    private void notifyFailed() {
+        completionNanos = System.nanoTime();
         callbackListener.onDataRequestFailed(this);
-        if (userDefinedCallbackListener != null) {
-            userDefinedCallbackListener.onDataRequestFailed(this);
-        }
+    }
+
+    /**
+     * Check if a response status code means that a tag was delivered. The same rule is used for
+     * tags sent one by one and for tags sent in a batch.
+     *
+     * @param statusCode The HTTP status code of the response.
+     * @return True for status code 200, as described by {@link TagDataRequestCallbackListener}.
+     */
+    static boolean isDelivered(int statusCode) {
+        return statusCode == 200;
     }
 
     /**
      * Handle a successful request.
      */
-    private void dataRequestComplete() {
-        TSMobileAnalyticsBackend.printToLog("Tag request completed with success: " + "\nRequestID: " + getRequestID());
+    void dataRequestComplete() {
+        completionNanos = System.nanoTime();
+        if (!finish(TagRequestState.SUCCEEDED)) {
+            // Given up while the attempt was in flight, the listeners have already been notified
+            TagLog.debug("Tag request completed after it was {}\nRequestID: {}", getState(), this);
+            return;
+        }
+        if (TagLog.isLoggable(TagLogLevel.DEBUG)) {
+            TagLog.log(TagLogLevel.DEBUG, "Tag request completed with success: " + "\nRequestID: " + getRequestID() +
+                    "\nQueue time: " + getQueueTimeMillis() + " ms" +
+                    "\nNetwork time: " + getNetworkTimeMillis() + " ms");
+        }
 
         // Tell our callback listeners that the request was successful
         callbackListener.onDataRequestComplete(this);
-        if (userDefinedCallbackListener != null) {
-            userDefinedCallbackListener.onDataRequestComplete(this);
+        notifyFinished();
+    }
+
+    /**
+     * Tell the user defined callback listener the outcome of a request that reached a terminal state.
+     * An exception thrown by the listener is logged, it must not change the state of the request.
+     */
+    void notifyFinished() {
+        if (userDefinedCallbackListener == null) {
+            return;
+        }
+        long traceStart = TagTrace.begin();
+        try {
+            if (getState() == TagRequestState.SUCCEEDED) {
+                userDefinedCallbackListener.onDataRequestComplete(this);
+            } else {
+                userDefinedCallbackListener.onDataRequestFailed(this);
+            }
+        } catch (RuntimeException e) {
+            TagLog.error("Callback listener failed: {}\nRequestID: {}", e, this);
         }
+        TagTrace.end("callback", TagTrace.CATEGORY_TAG, traceStart, requestSequence);
     }
 
 }
@@ -13,6 +13,17 @@ package se.kantarsifo.mobileanalytics.framework;
  * 
  * This interface is used to receive callbacks from the Tagging framework to know if server requests
  * are succeeded or failed. The information can be used to track errors, handle errors etc.
+ * <p>
+ * When a callback is made the request holds the time of each phase of its last attempt:
+ * {@link TagDataRequest#getEnqueueNanos()}, {@link TagDataRequest#getDequeueNanos()},
+ * {@link TagDataRequest#getConnectionOpenNanos()}, {@link TagDataRequest#getFirstByteNanos()} and
+ * {@link TagDataRequest#getCompletionNanos()}. {@link TagDataRequest#getQueueTimeMillis()} and
+ * {@link TagDataRequest#getNetworkTimeMillis()} tell the time spent waiting in the framework from
+ * the time spent on the network.
+ * <p>
+ * Every tag ends in exactly one of the terminal states of {@link TagRequestState}, and the listener
+ * set by the application is called once when it does: {@link #onDataRequestComplete(TagDataRequest)}
+ * for {@link TagRequestState#SUCCEEDED}, {@link #onDataRequestFailed(TagDataRequest)} otherwise.
  *
  */
 public interface TagDataRequestCallbackListener {
@@ -24,8 +35,13 @@ public interface TagDataRequestCallbackListener {
     void onDataRequestComplete(TagDataRequest request);
 	
 	/**
-	 * This method is called when a tag request has failed.
-	 * No new attempt will be made and it will not be received by the server.
+	 * This method is called when a tag request has failed for good.
+	 * Requests that fail because the server could not be reached, or with a 5xx or 429 response,
+	 * are sent again with increasing delays and this method is only called once the tag has
+	 * reached its maximum age. Requests rejected with any other status code are not sent again.
+	 * Either way the tag will not be received by the server.
+	 * {@link TagDataRequest#getFailureReason()} tells why the last attempt failed, including
+	 * {@link TagFailureReason#ABORTED_STUCK} when it was still in flight after the request deadline.
 	 * @param request An object with information about the request.
 	 */
     void onDataRequestFailed(TagDataRequest request);
@@ -8,43 +8,95 @@ package se.kantarsifo.mobileanalytics.framework;
 
 import android.content.Context;
 
-import java.io.IOException;
+import java.io.File;
 import java.net.HttpCookie;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * API for the data requests and URL handling etc. Used by the framework top
  * layer to execute the functions called by the user.
  */
-class TagDataRequestHandler implements TagDataRequestCallbackListener {
+class TagDataRequestHandler implements TagDataRequestCallbackListener, CookieReadinessListener {
     /**
-     * The maximum number of simultaneous request threads
-     * (After some testing it seems like 1 does as good job as many)
+     * A tag sent by the application before an asynchronous initialization was completed.
      */
-    public static final int MAX_NBR_OF_THREADS = 1;
+    private static final class PreInitTag {
+        final String category;
+        final String contentID;
+        final String contentName;
+        final long createdAt;
+
+        PreInitTag(String category, String contentID, String contentName) {
+            this.category = category;
+            this.contentID = contentID;
+            this.contentName = contentName;
+            this.createdAt = System.currentTimeMillis();
+        }
+    }
 
     /**
-     * Our TagHandler.
+     * Our TagHandler, null until the initialization is completed.
      */
     private TagHandler tagHandler;
 
+    /**
+     * Set when the initialization is completed and tags are sent directly.
+     */
+    private volatile boolean initialized = false;
+
+    /**
+     * Guards the tags buffered before the initialization was completed.
+     */
+    private final Object preInitLock = new Object();
+
+    /**
+     * Tags sent before the initialization was completed, oldest first.
+     * Null when the initialization failed.
+     */
+    private List<PreInitTag> preInitTags = new ArrayList<>();
+
     /**
      * Our queue of pending requests.
      */
-    private List<TagDataRequest> dataRequestQueue;
+    private TagRequestQueue dataRequestQueue;
+
+    /**
+     * What to do with a new tag when the queue is full.
+     */
+    private TagQueueOverflowPolicy overflowPolicy;
+
+    /**
+     * Journal of tags that have not yet been delivered.
+     */
+    private TagOutbox outbox;
+
+    /**
+     * Decides if and when failed requests are sent again.
+     */
+    private TagRetryPolicy retryPolicy;
 
     /**
-     * Counter keeping track of the number of successful requests.
+     * Counters of enqueued, sent, failed, retried and dropped tags, bytes sent and latencies.
      */
-    private int nbrOfSuccessfulRequests = 0;
+    private final TagMetrics metrics = new TagMetrics();
 
     /**
-     * Counter keeping track of the number of failed requests.
+     * Set when the outbox holds tags that did not fit in the queue.
      */
-    private int nbrOfFailedRequests = 0;
+    private final AtomicBoolean outboxBacklog = new AtomicBoolean(false);
+
+    /**
+     * Set while a replay of the outbox is scheduled or running.
+     */
+    private final AtomicBoolean replayScheduled = new AtomicBoolean(false);
 
     /**
      * The callback-listener specified by the user.
@@ -52,9 +104,85 @@ class TagDataRequestHandler implements TagDataRequestCallbackListener {
     private TagDataRequestCallbackListener userCallbackListener = null;
 
     /**
-     * The thread handling requests.
+     * Guards the cookie readiness and the requests waiting for it.
+     */
+    private final Object cookieGate = new Object();
+
+    /**
+     * Set when the panelist cookies are set up and requests can be sent.
+     */
+    private boolean cookiesReady = false;
+
+    /**
+     * Requests held until the panelist cookies are ready, oldest first.
+     */
+    private List<TagDataRequest> awaitingCookies = new ArrayList<>();
+
+    /**
+     * The result of the last cookie setup, reported to a readiness listener set afterwards.
+     */
+    private boolean lastCookieSuccess;
+    private int lastCookieAttempts;
+    private long lastCookieElapsedMillis;
+
+    /**
+     * The cookie readiness listener specified by the user.
+     */
+    private CookieReadinessListener userCookieReadinessListener = null;
+
+    /**
+     * The threads handling requests, as many as the highest concurrency limit.
+     */
+    private ScheduledExecutorService threadPool;
+
+    /**
+     * Limits the number of requests in flight, adapted to the network.
+     */
+    private AdaptiveConcurrencyLimit concurrencyLimit;
+
+    /**
+     * Runs the watchdog aborting requests in flight beyond the request deadline, and the reaper.
+     * It runs on its own thread since the request thread is the one that is stuck.
      */
-    private ExecutorService threadPool;
+    private ScheduledExecutorService watchdog;
+
+    /**
+     * Stores new tags in the outbox before they are sent. A single thread, so the journal keeps
+     * the order the tags were sent in even though several requests are sent at the same time.
+     */
+    private ExecutorService outboxThread;
+
+    /**
+     * The maximum estimated memory used by the requests in the queue.
+     */
+    private long maxQueueBytes = TagStringsAndValues.DEFAULT_MAX_QUEUE_BYTES;
+
+    /**
+     * The time an attempt may be in flight before it is aborted, 0 to never abort requests.
+     */
+    private long requestDeadlineMillis = TagStringsAndValues.DEFAULT_REQUEST_DEADLINE_MILLIS;
+
+    /**
+     * The default transport, sending tags with HttpURLConnection. Its connection counters stay at 0
+     * when another transport is used.
+     */
+    private final HttpConnectionTransport httpTransport = new HttpConnectionTransport();
+
+    /**
+     * Sends the tags, the transport set by the application or the default one.
+     */
+    private TagTransport transport = httpTransport;
+
+    /**
+     * Collects tags into batches when batch upload is activated, null otherwise.
+     */
+    private TagBatcher batcher;
+
+    /**
+     * Set when the framework instance has been destroyed. New tags are refused, and the requests
+     * left are kept in the outbox for the next instance.
+     */
+    private volatile boolean shutdown = false;
 
     /**
      * Create a new handler for specified context and application information.
@@ -62,11 +190,11 @@ class TagDataRequestHandler implements TagDataRequestCallbackListener {
      * @param c               The context of the application.
      * @param cpId            The customer ID of the application.
      * @param applicationName The name of the application.
+     * @param settings        The optional settings, null for default settings.
      */
-    public TagDataRequestHandler(Context c, String cpId, String applicationName, List<HttpCookie> cookies) {
-        tagHandler = new TagHandler(c, cpId, applicationName, cookies);
-        dataRequestQueue = new ArrayList<TagDataRequest>();
-        threadPool = Executors.newScheduledThreadPool(MAX_NBR_OF_THREADS);
+    public TagDataRequestHandler(Context c, String cpId, String applicationName, List<HttpCookie> cookies, TSMobileAnalytics settings) {
+        init(settings);
+        start(c, cpId, applicationName, cookies, settings);
     }
 
 
@@ -76,21 +204,309 @@ class TagDataRequestHandler implements TagDataRequestCallbackListener {
      * @param c               The context of the application.
      * @param cpId            The customer ID of the application.
      * @param applicationName The name of the application.
+     * @param settings        The optional settings, null for default settings.
+     */
+    public TagDataRequestHandler(Context c, String cpId, String applicationName, String panelistKey, TSMobileAnalytics settings) {
+        init(settings);
+        start(c, cpId, applicationName, panelistKey, settings);
+    }
+
+    /**
+     * Create a new handler that is initialized later by a task run with {@link #initAsync(Runnable)}.
+     * Tags sent before that are buffered and sent in order once one of the start methods is called.
+     *
+     * @param settings The optional settings, null for default settings.
+     */
+    public TagDataRequestHandler(TSMobileAnalytics settings) {
+        init(settings);
+    }
+
+    /**
+     * Run the initialization task on the request thread.
+     *
+     * @param task The task calling one of the start methods, or {@link #abortInit()} if it fails.
      */
-    public TagDataRequestHandler(Context c, String cpId, String applicationName, String panelistKey) {
-        tagHandler = new TagHandler(c, cpId, applicationName, panelistKey);
-        dataRequestQueue = new ArrayList<>();
-        threadPool = Executors.newScheduledThreadPool(MAX_NBR_OF_THREADS);
+    void initAsync(Runnable task) {
+        threadPool.execute(task);
+    }
+
+    /**
+     * Run a check of the panelist credentials on the request thread, off the calling thread.
+     *
+     * @param task The task calling one of the refreshCookies methods if the credentials have changed.
+     */
+    void refreshAsync(Runnable task) {
+        try {
+            threadPool.execute(task);
+        } catch (RejectedExecutionException e) {
+            TSMobileAnalyticsBackend.errorToLog("Failed to refresh panelist keys - the framework has been shut down");
+        }
+    }
+
+    /**
+     * Complete the initialization for a panelist with the specified cookies.
+     */
+    void start(Context c, String cpId, String applicationName, List<HttpCookie> cookies, TSMobileAnalytics settings) {
+        tagHandler = new TagHandler(c, cpId, applicationName, cookies, threadPool, this);
+        start(c, settings);
+    }
+
+    /**
+     * Complete the initialization for a panelist with the specified legacy panelist key.
+     */
+    void start(Context c, String cpId, String applicationName, String panelistKey, TSMobileAnalytics settings) {
+        tagHandler = new TagHandler(c, cpId, applicationName, panelistKey, threadPool, this);
+        start(c, settings);
+    }
+
+    /**
+     * Start batching and the outbox, then send the tags buffered before the initialization.
+     */
+    private void start(Context c, TSMobileAnalytics settings) {
+        if (shutdown) {
+            // Destroyed while the asynchronous initialization was running, the outbox is left to the next instance
+            return;
+        }
+        initBatcher(settings);
+        initOutbox(c);
+        synchronized (preInitLock) {
+            if (!preInitTags.isEmpty()) {
+                TSMobileAnalyticsBackend.printToLog("Sending " + preInitTags.size() + " tags sent before the framework was initiated");
+            }
+            for (PreInitTag tag : preInitTags) {
+                TagDataRequest request = createRequest(tag.category, tag.contentID, tag.contentName);
+                request.setCreationTime(tag.createdAt);
+                enqueue(request);
+            }
+            preInitTags.clear();
+            initialized = true;
+        }
+    }
+
+    /**
+     * Give up an asynchronous initialization. The buffered tags are dropped, and so are tags sent later.
+     */
+    void abortInit() {
+        synchronized (preInitLock) {
+            if (initialized) {
+                return;
+            }
+            if (preInitTags != null && !preInitTags.isEmpty()) {
+                TSMobileAnalyticsBackend.errorToLog("Dropping " + preInitTags.size() + " tags sent before the framework failed to initiate");
+            }
+            preInitTags = null;
+        }
+        threadPool.shutdown();
+        watchdog.shutdown();
+        outboxThread.shutdown();
+    }
+
+    /**
+     * Stop the threads of the handler when the framework instance is destroyed, then close the outbox.
+     * New tags already accepted are still stored in the outbox. Requests in flight are waited for at
+     * most {@link TagStringsAndValues#SHUTDOWN_TIMEOUT_MILLIS}, the ones waiting are not sent. The
+     * outbox keeps every tag not acknowledged by then, which the next instance replays.
+     */
+    void shutdown() {
+        shutdown = true;
+        synchronized (preInitLock) {
+            if (!initialized) {
+                preInitTags = null;
+            }
+        }
+        // Nothing is interrupted, a request in flight completes or the wait below ends
+        outboxThread.shutdown();
+        threadPool.shutdown();
+        watchdog.shutdown();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TagStringsAndValues.SHUTDOWN_TIMEOUT_MILLIS);
+        try {
+            if (!outboxThread.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)
+                    || !threadPool.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                TSMobileAnalyticsBackend.printToLog("Requests still in flight are sent again by the next instance");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (outbox != null) {
+            outbox.close();
+        }
+    }
+
+    /**
+     * Check if the initialization is completed.
+     *
+     * @return True if tags are sent directly, false if they are buffered or the initialization failed.
+     */
+    boolean isInitialized() {
+        return initialized;
+    }
+
+    /**
+     * Set up the request queue, threads and retries from the settings.
+     */
+    private void init(TSMobileAnalytics settings) {
+        int minConcurrency = settings != null ? settings.minConcurrency : TagStringsAndValues.DEFAULT_MIN_CONCURRENCY;
+        int maxConcurrency = Math.max(Math.max(1, minConcurrency),
+                settings != null ? settings.maxConcurrency : TagStringsAndValues.DEFAULT_MAX_CONCURRENCY);
+        ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(maxConcurrency);
+        // Retries and batches waiting at shutdown are not run, their tags stay in the outbox
+        pool.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        // Threads above the current need are not kept while the application is idle
+        pool.setKeepAliveTime(TagStringsAndValues.THREAD_KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS);
+        pool.allowCoreThreadTimeOut(true);
+        threadPool = pool;
+        concurrencyLimit = new AdaptiveConcurrencyLimit(minConcurrency, maxConcurrency, threadPool);
+        if (settings != null) {
+            dataRequestQueue = new TagRequestQueue(Math.max(1, settings.maxQueueSize));
+            overflowPolicy = settings.queueOverflowPolicy;
+            retryPolicy = new TagRetryPolicy(settings.tagMaxAgeMillis);
+            TagHandler.getEncodingCache().setMaxBytes(settings.urlEncodingCacheBytes);
+            httpTransport.setTimeouts(settings.connectTimeoutMillis, settings.readTimeoutMillis);
+            requestDeadlineMillis = Math.max(0, settings.requestDeadlineMillis);
+            maxQueueBytes = settings.maxQueueBytes;
+            if (settings.transport != null) {
+                transport = settings.transport;
+            }
+        } else {
+            dataRequestQueue = new TagRequestQueue(TagStringsAndValues.DEFAULT_MAX_QUEUE_SIZE);
+            retryPolicy = new TagRetryPolicy(TagStringsAndValues.DEFAULT_TAG_MAX_AGE_MILLIS);
+        }
+        if (overflowPolicy == null) {
+            overflowPolicy = TagQueueOverflowPolicy.SPILL_TO_DISK;
+        }
+        watchdog = Executors.newSingleThreadScheduledExecutor();
+        outboxThread = Executors.newSingleThreadExecutor();
+        if (requestDeadlineMillis > 0) {
+            long interval = Math.max(TagStringsAndValues.MIN_WATCHDOG_INTERVAL_MILLIS, requestDeadlineMillis / 4);
+            watchdog.scheduleWithFixedDelay(new WatchdogThread(), interval, interval, TimeUnit.MILLISECONDS);
+        }
+        watchdog.scheduleWithFixedDelay(new ReaperThread(), TagStringsAndValues.REAPER_INTERVAL_MILLIS,
+                TagStringsAndValues.REAPER_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Create the batcher if batch upload is activated in the settings.
+     */
+    private void initBatcher(TSMobileAnalytics settings) {
+        if (settings == null || !settings.batchUploadActivated) {
+            return;
+        }
+        String endpoint = settings.batchEndpoint;
+        if (endpoint == null || endpoint.trim().length() == 0) {
+            // The tag servers answer any request with a pixel and discard a posted body,
+            // batches sent there would be acknowledged and lost
+            TSMobileAnalyticsBackend.fatalErrorToLog("Batch upload not activated - no batch endpoint is set, tags are sent one by one");
+            return;
+        }
+        TagBatchEncoder encoder = settings.batchEncoder != null ? settings.batchEncoder : new JsonTagBatchEncoder();
+        batcher = new TagBatcher(tagHandler, transport, metrics, concurrencyLimit, threadPool, encoder, endpoint,
+                Math.max(0, settings.batchWindowMillis), Math.max(1, settings.batchMaxSize));
+        TSMobileAnalyticsBackend.printToLog("Batch upload activated with the following values \nURL: " + endpoint +
+                "\nWindow: " + settings.batchWindowMillis + " ms\nMax size: " + settings.batchMaxSize);
+    }
+
+    /**
+     * Create the outbox journal in the application files directory and schedule a replay of
+     * the tags left undelivered by an earlier session.
+     */
+    private void initOutbox(Context c) {
+        File filesDir = c.getFilesDir();
+        outbox = new TagOutbox(filesDir != null ? new File(filesDir, TagOutbox.DIRECTORY_NAME) : null);
+        InstallIdThread installIdThread = new InstallIdThread();
+        installIdThread.filesDir = filesDir;
+        threadPool.execute(installIdThread);
+        replayScheduled.set(true);
+        threadPool.execute(new ReplayThread());
     }
 
 
     public void refreshCookies(Context context, String panelistKey) {
-        tagHandler.refresh(context, panelistKey);
+        if (initialized) {
+            closeCookieGate();
+            tagHandler.refresh(context, panelistKey);
+        }
     }
 
 
     public void refreshCookies(Context context, List<HttpCookie> cookies) {
-        tagHandler.refresh(context, cookies);
+        if (initialized) {
+            closeCookieGate();
+            tagHandler.refresh(context, cookies);
+        }
+    }
+
+    /**
+     * Hold requests until the panelist cookies have been set up again.
+     */
+    private void closeCookieGate() {
+        synchronized (cookieGate) {
+            cookiesReady = false;
+        }
+    }
+
+    /**
+     * Hold a request if the panelist cookies are not ready yet.
+     *
+     * @return True if the request is held and will be run once the cookies are ready.
+     */
+    private boolean holdUntilCookiesReady(TagDataRequest request) {
+        synchronized (cookieGate) {
+            if (cookiesReady) {
+                return false;
+            }
+            awaitingCookies.add(request);
+            return true;
+        }
+    }
+
+    /**
+     * Implementation of callback method from interface CookieReadinessListener.
+     * Runs the requests held while waiting for the cookies and notifies the user listener.
+     */
+    @Override
+    public void onCookiesReady(boolean success, int attempts, long elapsedMillis) {
+        List<TagDataRequest> held;
+        CookieReadinessListener listener;
+        synchronized (cookieGate) {
+            cookiesReady = true;
+            lastCookieSuccess = success;
+            lastCookieAttempts = attempts;
+            lastCookieElapsedMillis = elapsedMillis;
+            held = awaitingCookies;
+            awaitingCookies = new ArrayList<>();
+            listener = userCookieReadinessListener;
+        }
+        TSMobileAnalyticsBackend.printToLog("Panelist cookies " + (success ? "ready" : "failed") + " after " + attempts +
+                " attempts in " + elapsedMillis + " ms, sending " + held.size() + " held tags");
+        for (TagDataRequest request : held) {
+            runRequest(request);
+        }
+        if (listener != null) {
+            listener.onCookiesReady(success, attempts, elapsedMillis);
+        }
+    }
+
+    /**
+     * Set the listener notified when the panelist cookies are ready.
+     * If they already are, the listener is notified right away.
+     *
+     * @param listener The listener, null to remove it.
+     */
+    public void setCookieReadinessListener(CookieReadinessListener listener) {
+        boolean ready;
+        boolean success;
+        int attempts;
+        long elapsedMillis;
+        synchronized (cookieGate) {
+            userCookieReadinessListener = listener;
+            ready = cookiesReady;
+            success = lastCookieSuccess;
+            attempts = lastCookieAttempts;
+            elapsedMillis = lastCookieElapsedMillis;
+        }
+        if (ready && listener != null) {
+            listener.onCookiesReady(success, attempts, elapsedMillis);
+        }
     }
 
     /**
@@ -143,19 +559,99 @@ class TagDataRequestHandler implements TagDataRequestCallbackListener {
         }
 
         if (result == TagStringsAndValues.RESULT_SUCCESS) {
-            TagDataRequest request = new TagDataRequest(category, contentID, contentName,
-                    getURL(category, contentID, contentName),
-                    tagHandler.getApplicationName(),
-                    tagHandler.getApplicationVersion(),
-                    this, userCallbackListener);
-            synchronized (this) {
-                dataRequestQueue.add(request);
-                runRequest(request);
+            if (shutdown) {
+                TSMobileAnalyticsBackend.fatalErrorToLog("Failed to send tag - the framework has been destroyed");
+                return TagStringsAndValues.ERROR_FRAMEWORK_INSTANCE_IS_NULL;
+            }
+            if (!initialized) {
+                synchronized (preInitLock) {
+                    if (!initialized) {
+                        return bufferPreInitTag(category, contentID, contentName);
+                    }
+                }
             }
+            result = enqueue(createRequest(category, contentID, contentName));
         }
         return result;
     }
 
+    private TagDataRequest createRequest(String category, String contentID, String contentName) {
+        long traceStart = TagTrace.begin();
+        String url = getURL(category, contentID, contentName);
+        TagDataRequest request = new TagDataRequest(category, contentID, contentName,
+                url,
+                tagHandler.getApplicationName(),
+                tagHandler.getApplicationVersion(),
+                this, userCallbackListener);
+        TagTrace.end("buildUrl", TagTrace.CATEGORY_TAG, traceStart, request.getRequestIDAsLong());
+        return request;
+    }
+
+    /**
+     * Hold a validated tag until the initialization is completed. Must be called holding the preInitLock.
+     */
+    private int bufferPreInitTag(String category, String contentID, String contentName) {
+        if (preInitTags == null) {
+            TSMobileAnalyticsBackend.fatalErrorToLog("Failed to send tag - the framework failed to initiate");
+            return TagStringsAndValues.ERROR_FRAMEWORK_INSTANCE_IS_NULL;
+        }
+        if (preInitTags.size() >= dataRequestQueue.getCapacity()) {
+            metrics.dropped.incrementAndGet();
+            TSMobileAnalyticsBackend.errorToLog("Failed to send tag - too many tags sent before the framework was initiated");
+            return TagStringsAndValues.ERROR_QUEUE_FULL;
+        }
+        preInitTags.add(new PreInitTag(category, contentID, contentName));
+        return TagStringsAndValues.RESULT_SUCCESS;
+    }
+
+    /**
+     * Add a new request to the queue and run it, applying the overflow policy if the queue is full.
+     * Never blocks the calling thread.
+     *
+     * @param request The request to add.
+     * @return {@link TagStringsAndValues#RESULT_SUCCESS} or {@link TagStringsAndValues#ERROR_QUEUE_FULL}.
+     */
+    private int enqueue(TagDataRequest request) {
+        while (!dataRequestQueue.offer(request)) {
+            if (overflowPolicy == TagQueueOverflowPolicy.DROP_OLDEST) {
+                TagDataRequest oldest = dataRequestQueue.removeOldest();
+                if (oldest != null) {
+                    drop(oldest);
+                } else if (dataRequestQueue.size() >= dataRequestQueue.getCapacity()) {
+                    // Every request in the queue is being sent, those are never dropped
+                    metrics.dropped.incrementAndGet();
+                    TSMobileAnalyticsBackend.errorToLog("Failed to send tag - the request queue is full");
+                    return TagStringsAndValues.ERROR_QUEUE_FULL;
+                }
+            } else if (overflowPolicy == TagQueueOverflowPolicy.SPILL_TO_DISK) {
+                SpillThread thread = new SpillThread();
+                thread.request = request;
+                execute(thread);
+                return TagStringsAndValues.RESULT_SUCCESS;
+            } else {
+                metrics.dropped.incrementAndGet();
+                TSMobileAnalyticsBackend.errorToLog("Failed to send tag - the request queue is full");
+                return TagStringsAndValues.ERROR_QUEUE_FULL;
+            }
+        }
+        metrics.enqueued.incrementAndGet();
+        request.markEnqueued();
+        TagTrace.instant("enqueue", TagTrace.CATEGORY_TAG, request.getRequestIDAsLong());
+        runRequest(request);
+        return TagStringsAndValues.RESULT_SUCCESS;
+    }
+
+    /**
+     * Drop a request evicted from the queue to make room for a new one.
+     */
+    private void drop(TagDataRequest request) {
+        metrics.dropped.incrementAndGet();
+        TagLog.error("Tag request dropped, the request queue is full\nRequestID: {}", request);
+        AckThread thread = new AckThread();
+        thread.request = request;
+        execute(thread);
+    }
+
     /**
      * Send a tag-request to the server.
      *
@@ -174,7 +670,7 @@ class TagDataRequestHandler implements TagDataRequestCallbackListener {
      * @return The queue of pending requests.
      */
     public List<TagDataRequest> getDataRequestQueue() {
-        return new ArrayList<TagDataRequest>(dataRequestQueue);
+        return dataRequestQueue.toList();
     }
 
     public String getSifoUserCookie() {
@@ -236,7 +732,7 @@ class TagDataRequestHandler implements TagDataRequestCallbackListener {
      * @return The number of successful requests.
      */
     public int getNbrOfSuccessfulRequests() {
-        return nbrOfSuccessfulRequests;
+        return (int) metrics.sent.get();
     }
 
     /**
@@ -245,7 +741,46 @@ class TagDataRequestHandler implements TagDataRequestCallbackListener {
      * @return The number of failed requests.
      */
     public int getNbrOfFailedRequests() {
-        return nbrOfFailedRequests;
+        return (int) metrics.failed.get();
+    }
+
+    /**
+     * Get the number of tags dropped because the queue was full since the handler was instantiated.
+     *
+     * @return The number of dropped tags.
+     */
+    public int getNbrOfDroppedRequests() {
+        return (int) metrics.dropped.get();
+    }
+
+    /**
+     * Get the number of new connections opened to the tag servers since the handler was instantiated.
+     *
+     * @return The number of new connections.
+     */
+    public long getNbrOfNewConnections() {
+        return httpTransport.getNbrOfNewConnections();
+    }
+
+    /**
+     * Get the number of requests sent on a reused keep-alive connection since the handler was instantiated.
+     *
+     * @return The number of reused connections.
+     */
+    public long getNbrOfReusedConnections() {
+        return httpTransport.getNbrOfReusedConnections();
+    }
+
+    /**
+     * Take a snapshot of the counters of this handler, the connections and the encoding cache.
+     *
+     * @return The snapshot.
+     */
+    public TagMetricsSnapshot getMetrics() {
+        UrlEncodingCache cache = TagHandler.getEncodingCache();
+        return metrics.snapshot(dataRequestQueue.size(), concurrencyLimit.getLimit(), concurrencyLimit.getInFlight(),
+                httpTransport.getNbrOfNewConnections(), httpTransport.getNbrOfReusedConnections(),
+                cache.getHits(), cache.getMisses());
     }
 
     /**
@@ -262,10 +797,11 @@ class TagDataRequestHandler implements TagDataRequestCallbackListener {
      * This method is called when a data request has been completed successfully.
      */
     public void onDataRequestComplete(TagDataRequest request) {
-        synchronized (this) {
-            dataRequestQueue.remove(request);
-        }
-        nbrOfSuccessfulRequests++;
+        recordLatency(request);
+        dataRequestQueue.remove(request);
+        outbox.ack(request.takeOutboxSeq());
+        metrics.sent.incrementAndGet();
+        replayBacklog();
     }
 
     /**
@@ -273,10 +809,76 @@ class TagDataRequestHandler implements TagDataRequestCallbackListener {
      * This method is called when a data request has been failed.
      */
     public void onDataRequestFailed(TagDataRequest request) {
-        synchronized (this) {
-            dataRequestQueue.remove(request);
+        if (shutdown) {
+            // Left in the outbox for the next instance
+            return;
+        }
+        recordLatency(request);
+        long delay = retryPolicy.getRetryDelay(request);
+        if (delay >= 0 && request.requeue()) {
+            // Keep the request in the queue and the outbox until the next attempt
+            metrics.retried.incrementAndGet();
+            if (TagLog.isLoggable(TagLogLevel.DEBUG)) {
+                TagLog.log(TagLogLevel.DEBUG, "Tag request will be sent again in " + delay + " ms" +
+                        "\nAttempt: " + (request.getAttemptCount() + 1) +
+                        "\nRequestID: " + request.getRequestID());
+            }
+            scheduleRequest(request, delay);
+            return;
+        }
+
+        // The server rejected the tag or it has reached its maximum age, do not replay it
+        TagRequestState terminal = retryPolicy.isRetryable(request) ? TagRequestState.EXPIRED : TagRequestState.FAILED;
+        if (!request.finish(terminal)) {
+            // Already given up by the overflow policy or the reaper
+            return;
+        }
+        dataRequestQueue.remove(request);
+        outbox.ack(request.takeOutboxSeq());
+        metrics.failed.incrementAndGet();
+        replayBacklog();
+        request.notifyFinished();
+    }
+
+    /**
+     * Give up a request that is waiting in the queue, called by the reaper.
+     *
+     * @param request The request to give up.
+     * @param reason  The reason, for the log.
+     */
+    private void expire(TagDataRequest request, String reason) {
+        if (!request.finish(TagRequestState.EXPIRED)) {
+            return;
+        }
+        dataRequestQueue.remove(request);
+        synchronized (cookieGate) {
+            awaitingCookies.remove(request);
+        }
+        outbox.ack(request.takeOutboxSeq());
+        metrics.expired.incrementAndGet();
+        TagLog.error("Tag request expired, {}\nRequestID: {}", reason, request);
+        request.notifyFinished();
+    }
+
+    /**
+     * Record the time the last attempt of a request took in the histogram of its endpoint.
+     */
+    private void recordLatency(TagDataRequest request) {
+        long attemptStart = request.getAttemptStartNanos();
+        if (attemptStart != 0) {
+            metrics.recordLatency(batcher != null ? batcher.getEndpoint() : request.getURL(),
+                    (System.nanoTime() - attemptStart) / 1000000);
+        }
+    }
+
+    /**
+     * Schedule a replay of the tags spilled to the outbox once the queue is at most half full.
+     */
+    private void replayBacklog() {
+        if (outboxBacklog.get() && dataRequestQueue.size() <= dataRequestQueue.getCapacity() / 2
+                && replayScheduled.compareAndSet(false, true)) {
+            execute(new ReplayThread());
         }
-        nbrOfFailedRequests++;
     }
 
     /**
@@ -302,13 +904,48 @@ class TagDataRequestHandler implements TagDataRequestCallbackListener {
     }
 
     /**
-     * Init the server request to the specified URL.
+     * Init the server request to the specified URL. A new tag is stored in the outbox first.
      */
     private void runRequest(TagDataRequest req) {
+        if (req.getOutboxSeq() < 0) {
+            AppendThread thread = new AppendThread();
+            thread.request = req;
+            try {
+                outboxThread.execute(thread);
+            } catch (RejectedExecutionException e) {
+                TSMobileAnalyticsBackend.printToLog("Outbox task refused - the framework has been destroyed");
+            }
+            return;
+        }
         // Specify a new Thread for the request
         RequestThread thread = new RequestThread();
         thread.request = req;
-        threadPool.execute(thread);
+        execute(thread);
+    }
+
+    /**
+     * Run the request again after the specified delay. No thread is held while waiting.
+     */
+    private void scheduleRequest(TagDataRequest req, long delayMillis) {
+        RequestThread thread = new RequestThread();
+        thread.request = req;
+        try {
+            threadPool.schedule(thread, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Destroyed in the meantime, the request stays in the outbox
+        }
+    }
+
+    /**
+     * Run a task on the request threads. A task refused because the instance has been destroyed
+     * is not run, the requests it would have handled stay in the outbox.
+     */
+    private void execute(Runnable task) {
+        try {
+            threadPool.execute(task);
+        } catch (RejectedExecutionException e) {
+            TSMobileAnalyticsBackend.printToLog("Request thread task refused - the framework has been destroyed");
+        }
     }
 
     /**
@@ -318,7 +955,216 @@ class TagDataRequestHandler implements TagDataRequestCallbackListener {
         public TagDataRequest request;
 
         public void run() {
-            request.initRequest();
+            if (shutdown || request.getState() != TagRequestState.QUEUED) {
+                // Left in the outbox for the next instance
+                return;
+            }
+            try {
+                if (holdUntilCookiesReady(request)) {
+                    return;
+                }
+                request.markDequeued();
+                if (batcher != null) {
+                    batcher.add(request);
+                } else {
+                    SendThread thread = new SendThread();
+                    thread.request = request;
+                    concurrencyLimit.submit(thread);
+                }
+            } catch (RuntimeException e) {
+                // Never leave the request in the queue without an outcome
+                request.dataRequestFail(e);
+            }
+        }
+    }
+
+    /**
+     * A thread storing a new tag in the outbox, run on the outbox thread in the order the tags
+     * were sent, then running the request on the request threads.
+     */
+    private class AppendThread implements Runnable {
+        public TagDataRequest request;
+
+        public void run() {
+            if (request.getState() != TagRequestState.QUEUED) {
+                return;
+            }
+            request.setOutboxSeq(outbox.append(request, true));
+            if (request.getState().isTerminal()) {
+                // Given up while it was stored, the entry is acknowledged here instead
+                outbox.ack(request.takeOutboxSeq());
+                return;
+            }
+            RequestThread thread = new RequestThread();
+            thread.request = request;
+            execute(thread);
+        }
+    }
+
+    /**
+     * A thread sending a request once the concurrency limit allows it.
+     */
+    private class SendThread implements Runnable {
+        public TagDataRequest request;
+
+        public void run() {
+            long start = System.nanoTime();
+            boolean sent = false;
+            try {
+                sent = request.initRequest(transport, tagHandler.getRequestHeaders());
+                if (sent && request.getURL() != null) {
+                    metrics.bytesSent.addAndGet(request.getURL().length());
+                }
+            } catch (RuntimeException e) {
+                request.dataRequestFail(e);
+            } finally {
+                // A request given up before it was sent says nothing about the network
+                concurrencyLimit.release(start, sent ? (System.nanoTime() - start) / 1000000 : -1,
+                        AdaptiveConcurrencyLimit.isCongestion(request));
+                TagTrace.end("send", TagTrace.CATEGORY_TAG, start, request.getRequestIDAsLong());
+            }
+        }
+    }
+
+    /**
+     * A thread aborting the requests that have been in flight longer than the request deadline.
+     * The aborted attempts fail with {@link TagFailureReason#ABORTED_STUCK} and are retried like
+     * other network failures.
+     */
+    private class WatchdogThread implements Runnable {
+
+        public void run() {
+            long deadlineNanos = TimeUnit.MILLISECONDS.toNanos(requestDeadlineMillis);
+            long now = System.nanoTime();
+            for (TagDataRequest request : dataRequestQueue.toList()) {
+                long started = request.getAttemptStartNanos();
+                if (started == 0 || now - started < deadlineNanos) {
+                    continue;
+                }
+                if (request.abort()) {
+                    metrics.aborted.incrementAndGet();
+                    TSMobileAnalyticsBackend.errorToLog("Tag request aborted, in flight for more than "
+                            + requestDeadlineMillis + " ms" + "\nRequestID: " + request.getRequestID());
+                }
+            }
+        }
+    }
+
+    /**
+     * A thread storing a tag that did not fit in the queue in the outbox, to be sent later.
+     */
+    private class SpillThread implements Runnable {
+        public TagDataRequest request;
+
+        public void run() {
+            if (outbox.append(request, false) < 0) {
+                metrics.dropped.incrementAndGet();
+                TagLog.error("Tag request dropped, the request queue is full\nRequestID: {}", request);
+                if (request.finish(TagRequestState.EXPIRED)) {
+                    request.notifyFinished();
+                }
+            } else {
+                outboxBacklog.set(true);
+                replayBacklog();
+            }
+        }
+    }
+
+    /**
+     * A thread removing a dropped tag from the outbox.
+     */
+    private class AckThread implements Runnable {
+        public TagDataRequest request;
+
+        public void run() {
+            outbox.ack(request.takeOutboxSeq());
+            request.notifyFinished();
+        }
+    }
+
+    /**
+     * A thread giving up the requests waiting in the queue that have reached their maximum age, and
+     * the oldest waiting requests while the queue uses more memory than allowed. Requests being sent
+     * are left to the watchdog.
+     */
+    private class ReaperThread implements Runnable {
+
+        public void run() {
+            List<TagDataRequest> requests = dataRequestQueue.toList();
+            long bytes = 0;
+            for (TagDataRequest request : requests) {
+                bytes += request.getFootprintBytes();
+            }
+            long oldest = System.currentTimeMillis() - retryPolicy.getMaxAgeMillis();
+            for (TagDataRequest request : requests) {
+                if (request.getState() != TagRequestState.QUEUED) {
+                    continue;
+                }
+                if (request.getCreationTime() < oldest) {
+                    expire(request, "maximum age reached");
+                    bytes -= request.getFootprintBytes();
+                } else if (bytes > maxQueueBytes) {
+                    expire(request, "the request queue uses more than " + maxQueueBytes + " bytes");
+                    bytes -= request.getFootprintBytes();
+                }
+            }
+        }
+    }
+
+    /**
+     * A thread loading the installation prefix of the request IDs, off the calling thread.
+     */
+    private static class InstallIdThread implements Runnable {
+        public File filesDir;
+
+        public void run() {
+            RequestIdGenerator.loadInstallPrefix(filesDir);
+        }
+    }
+
+    /**
+     * A thread to send the tags found in the outbox again, as many as there is room for in the queue.
+     */
+    private class ReplayThread implements Runnable {
+
+        public void run() {
+            try {
+                outboxBacklog.set(false);
+                int room = dataRequestQueue.getCapacity() - dataRequestQueue.size();
+                if (room <= 0) {
+                    outboxBacklog.set(true);
+                    return;
+                }
+                List<TagOutbox.Entry> entries = outbox.replay(retryPolicy.getMaxAgeMillis(), room);
+                if (entries.size() >= room) {
+                    // There may be more tags left in the outbox
+                    outboxBacklog.set(true);
+                }
+                if (!entries.isEmpty()) {
+                    TSMobileAnalyticsBackend.printToLog("Sending " + entries.size() + " tags from outbox");
+                }
+                for (TagOutbox.Entry entry : entries) {
+                    TagDataRequest request = new TagDataRequest(entry.cat, entry.id, entry.name, entry.url,
+                            tagHandler.getApplicationName(),
+                            tagHandler.getApplicationVersion(),
+                            TagDataRequestHandler.this, userCallbackListener);
+                    request.setCreationTime(entry.createdAt);
+                    if (entry.requestSequence >= 0) {
+                        request.setRequestID(entry.requestIdPrefix, entry.requestSequence);
+                    }
+                    request.setOutboxSeq(entry.seq);
+                    if (dataRequestQueue.offer(request)) {
+                        metrics.enqueued.incrementAndGet();
+                        request.markEnqueued();
+                        runRequest(request);
+                    } else {
+                        outbox.release(entry.seq);
+                        outboxBacklog.set(true);
+                    }
+                }
+            } finally {
+                replayScheduled.set(false);
+            }
         }
     }
 
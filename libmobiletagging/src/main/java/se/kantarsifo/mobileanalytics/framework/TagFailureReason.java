@@ -0,0 +1,48 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+/**
+ * TNS SIFO Mobile Application Tagging Framework :
+ * Debugging/Advanced features : TagFailureReason.java :
+ * <p>
+ * Why the last attempt to send a tag failed.
+ *
+ * @see TagDataRequest#getFailureReason()
+ */
+public enum TagFailureReason {
+    /**
+     * The server could not be reached or the connection failed.
+     */
+    NETWORK_ERROR,
+
+    /**
+     * Connecting to the server or reading its response took longer than the timeout.
+     *
+     * @see TSMobileAnalytics.Builder#setConnectTimeout(int)
+     * @see TSMobileAnalytics.Builder#setReadTimeout(int)
+     */
+    TIMEOUT,
+
+    /**
+     * The request was still in flight after the request deadline and was aborted by the framework.
+     *
+     * @see TSMobileAnalytics.Builder#setRequestDeadline(long)
+     */
+    ABORTED_STUCK,
+
+    /**
+     * The server answered with a status code other than success.
+     */
+    HTTP_STATUS,
+
+    /**
+     * The request could not be sent because of an error in the framework, such as a missing URL.
+     * It is not sent again.
+     */
+    INTERNAL_ERROR
+}
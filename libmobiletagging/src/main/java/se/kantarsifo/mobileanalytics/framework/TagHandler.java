@@ -11,11 +11,13 @@ import android.content.pm.PackageManager;
 import android.provider.Settings.Secure;
 import android.text.TextUtils;
 
-import java.io.UnsupportedEncodingException;
 import java.net.CookieStore;
 import java.net.HttpCookie;
-import java.net.URLEncoder;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static android.os.Build.VERSION.SDK_INT;
 import static android.os.Build.VERSION_CODES.LOLLIPOP;
@@ -30,6 +32,61 @@ import static android.os.Build.VERSION_CODES.LOLLIPOP;
  */
 class TagHandler {
 
+    /**
+     * Upper case hex digits used by the URL encoding, as in URLEncoder.
+     */
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * Buffers larger than this are not kept between tags.
+     */
+    private static final int MAX_KEPT_URL_BUFFER = 4096;
+
+    /**
+     * Cache of the encoded categories, content IDs and names, shared by all handlers.
+     */
+    private static final UrlEncodingCache ENCODING_CACHE =
+            new UrlEncodingCache(TagStringsAndValues.DEFAULT_URL_ENCODING_CACHE_BYTES);
+
+    /**
+     * One reused buffer per thread building URLs.
+     */
+    private static final ThreadLocal<StringBuilder> URL_BUFFER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+
+    /**
+     * The parts of the tag URL that are the same for every tag, precompiled when the values
+     * they are built from change so that only cat, id and name are encoded per tag.
+     */
+    private static final class UrlTemplate {
+        final boolean codigo;
+        /**
+         * Everything up to the category value.
+         */
+        final String head;
+        /**
+         * Everything between the category and the content ID values.
+         */
+        final String middle;
+        /**
+         * Everything after the content ID value, and the name for Mobiletech.
+         */
+        final String tail;
+
+        UrlTemplate(boolean codigo, String head, String middle, String tail) {
+            this.codigo = codigo;
+            this.head = head;
+            this.middle = middle;
+            this.tail = tail;
+        }
+    }
+
+    private volatile UrlTemplate urlTemplate;
+
     private String urlBase;
     private String cpId;
     private String type;
@@ -39,7 +96,27 @@ class TagHandler {
     private String applicationName;
     private String applicationVersion;
 
-    private CookieStore cookies;
+    private volatile CookieStore cookies;
+
+    /**
+     * The headers sent with every request, null until first needed or after a refresh.
+     */
+    private volatile RequestHeaders requestHeaders;
+
+    /**
+     * The scheduler running the panelist cookie setup.
+     */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Notified each time the panelist cookies are ready.
+     */
+    private final CookieReadinessListener cookieReadinessListener;
+
+    /**
+     * Incremented each time the cookies are set up, so that a retry left from an earlier setup stops.
+     */
+    private final AtomicInteger cookieGeneration = new AtomicInteger();
 
 
     /**
@@ -49,9 +126,14 @@ class TagHandler {
      * @param cpId        The CPID to be used in all tags.
      * @param ref
      * @param panelistKey
+     * @param scheduler   The scheduler running the panelist cookie setup.
+     * @param listener    Notified each time the panelist cookies are ready.
      */
-    public TagHandler(Context c, String cpId, String ref, String panelistKey) {
+    public TagHandler(Context c, String cpId, String ref, String panelistKey,
+                      ScheduledExecutorService scheduler, CookieReadinessListener listener) {
         super();
+        this.scheduler = scheduler;
+        this.cookieReadinessListener = listener;
 
         generateEuid(c);
         this.cpId = cpId;
@@ -62,6 +144,7 @@ class TagHandler {
 
         this.euidq = TagStringsAndValues.EUIDQ;
         this.applicationName = ref;
+        compileUrlTemplate();
 
         List<HttpCookie> cookies = CookieHandler.createLegacyCookies(panelistKey);
         initCookies(c, cookies);
@@ -77,13 +160,18 @@ class TagHandler {
     /**
      * Create a new TagHandler with specified CPID and type, for the specified application context.
      *
-     * @param c       The context of this application.
-     * @param cpId    The CPID to be used in all tags.
+     * @param c         The context of this application.
+     * @param cpId      The CPID to be used in all tags.
      * @param ref
-     * @param cookies The list of cookies to send with measurement requests
+     * @param cookies   The list of cookies to send with measurement requests
+     * @param scheduler The scheduler running the panelist cookie setup.
+     * @param listener  Notified each time the panelist cookies are ready.
      */
-    public TagHandler(Context c, String cpId, String ref, List<HttpCookie> cookies) {
+    public TagHandler(Context c, String cpId, String ref, List<HttpCookie> cookies,
+                      ScheduledExecutorService scheduler, CookieReadinessListener listener) {
         super();
+        this.scheduler = scheduler;
+        this.cookieReadinessListener = listener;
 
         generateEuid(c);
         this.cpId = cpId;
@@ -94,6 +182,7 @@ class TagHandler {
 
         euidq = TagStringsAndValues.EUIDQ;
         this.applicationName = ref;
+        compileUrlTemplate();
 
         initCookies(c, cookies);
 
@@ -107,23 +196,51 @@ class TagHandler {
 
     public void refresh(Context context, String panelistKey) {
         List<HttpCookie> cookies = CookieHandler.createLegacyCookies(panelistKey);
+        requestHeaders = null;
         initCookies(context, cookies);
     }
 
     public void refresh(Context context, List<HttpCookie> cookies) {
+        requestHeaders = null;
         initCookies(context, cookies);
     }
 
+    /**
+     * Get the User-Agent and Cookie headers to send with a request. The headers are only
+     * built again after a refresh or when the cookie store has changed.
+     *
+     * @return The current headers.
+     */
+    public RequestHeaders getRequestHeaders() {
+        RequestHeaders headers = requestHeaders;
+        long cookieVersion = SifoCookieManager.getInstance().getVersion();
+        if (headers == null || headers.cookieVersion != cookieVersion) {
+            String userAgent = headers != null ? headers.userAgent
+                    : TagDataRequest.createUserAgent(applicationName, applicationVersion);
+            headers = new RequestHeaders(userAgent, TagDataRequest.createCookieHeader(), cookieVersion);
+            requestHeaders = headers;
+        }
+        return headers;
+    }
+
     /**
      * Workaround for NameNotFoundException when app tries to access
      * webview while it is reinstalling Android System Webview for Android Lollipop
      * @See <a https://code.google.com/p/android/issues/detail?id=175124">android Issue tracking</a>
      * @See <a https://code.google.com/p/chromium/issues/detail?id=506369">chromium Issue tracking</a>
+     * <p>
+     * The setup runs on the scheduler and is retried every two seconds while the webview package
+     * can not be found. The readiness listener is notified once the cookies are set up.
      */
     private void initCookies(final Context context, final List<HttpCookie> cookieList) {
 
-        final SetupPanelListCookies setupPanelListCookies = new SetupPanelListCookies(context, cookieList);
-        setupPanelListCookies.run();
+        final SetupPanelListCookies setupPanelListCookies = new SetupPanelListCookies(context, cookieList,
+                cookieGeneration.incrementAndGet());
+        try {
+            scheduler.execute(setupPanelListCookies);
+        } catch (RejectedExecutionException e) {
+            TSMobileAnalyticsBackend.errorToLog("Failed to setup panel list cookies - the framework has been shut down");
+        }
     }
 
 
@@ -135,18 +252,29 @@ class TagHandler {
 
         private final Context context;
         private final List<HttpCookie> cookieList;
+        private final int generation;
+        private final long startTime;
 
         private int retryCounter;
+        private int attempts;
 
-        public SetupPanelListCookies(Context context, List<HttpCookie> cookieList) {
+        public SetupPanelListCookies(Context context, List<HttpCookie> cookieList, int generation) {
             this.context = context;
             this.cookieList = cookieList;
+            this.generation = generation;
+            this.startTime = System.currentTimeMillis();
             this.retryCounter = 0;
         }
 
         @Override
         public void run() {
+            if (generation != cookieGeneration.get()) {
+                // The cookies have been refreshed since, that setup takes over
+                return;
+            }
+            attempts++;
             try {
+                // Once all retries are used the cookies are set up without checking the package
                 if (SDK_INT >= LOLLIPOP && retryCounter++ < MAX_WEBVIEW_PACKAGE_RETRY) {
 
                     context.getPackageManager().getPackageInfo(SYSTEM_WEBVIEW_PACKAGE_NAME,
@@ -154,9 +282,24 @@ class TagHandler {
                 }
 
                 cookies = CookieHandler.setupPanelistCookies(context, cookieList, urlBase);
+                onReady(true);
 
             } catch (PackageManager.NameNotFoundException e) {
-                TSMobileAnalyticsBackend.errorToLog("Failed to setup panel list cookies - " + String.format("Retry counter=%s", retryCounter));
+                TSMobileAnalyticsBackend.errorToLog("Failed to setup panel list cookies - Retry counter=" + retryCounter);
+                try {
+                    scheduler.schedule(this, TWO_SEC, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException ignored) {
+                    // The framework has been shut down
+                }
+            } catch (RuntimeException e) {
+                TSMobileAnalyticsBackend.errorToLog("Failed to setup panel list cookies - " + e);
+                onReady(false);
+            }
+        }
+
+        private void onReady(boolean success) {
+            if (cookieReadinessListener != null && generation == cookieGeneration.get()) {
+                cookieReadinessListener.onCookiesReady(success, attempts, System.currentTimeMillis() - startTime);
             }
         }
     }
@@ -189,31 +332,60 @@ class TagHandler {
         }
 
         if (result) {
-            String ref = urlEncode(this.ref.trim());
-            cat = urlEncode(cat.trim());
-            id = urlEncode(id.trim());
-
-            if (TagStringsAndValues.CODIGO_URL_BASE.equals(urlBase) || TagStringsAndValues.CODIGO_URL_BASE_HTTPS.equals(urlBase)) {
-                url = String.format("%ssiteId=%s&appClientId=%s&cp=%s&appId=%s&appName=%s&appRef=%s",
-                        urlBase, cpId, euid, cat, id, type, ref);
-            } else {
-                String nameTag = "";
-                if (!TextUtils.isEmpty(name)) {
-                    name = urlEncode(name.trim());
-                    nameTag = "&name=" + urlEncode(name.trim());
-                }
-
-//                url = urlBase + "cpid=" + cpId + "&cat=" + cat + "&ref=" + ref + "&id=" + id + nameTag + "&type=" + type +
-//                        "&euid=" + euid + "&euidq=" + euidq;
-                url = String.format("%scpid=%s&cat=%s&ref=%s&id=%s%s&type=%s&euid=%s&euidq=%s",
-                        urlBase, cpId, cat, ref, id, nameTag, type, euid, euidq);
-            }
+            url = buildURL(urlTemplate, cat.trim(), id.trim(), name);
         } else {
             url = null;
         }
         return url;
     }
 
+    /**
+     * Build a tag URL from the precompiled template in the reused buffer of the calling thread.
+     * The result is the same as encoding every value with URLEncoder, including the name being
+     * encoded twice for Mobiletech. Encoded values are taken from the encoding cache when possible.
+     */
+    private static String buildURL(UrlTemplate template, String cat, String id, String name) {
+        StringBuilder sb = URL_BUFFER.get();
+        sb.setLength(0);
+        sb.append(template.head);
+        sb.append(ENCODING_CACHE.encode(cat));
+        sb.append(template.middle);
+        sb.append(ENCODING_CACHE.encode(id));
+        if (!template.codigo && !TextUtils.isEmpty(name)) {
+            sb.append("&name=");
+            sb.append(ENCODING_CACHE.encodeTwice(name.trim()));
+        }
+        sb.append(template.tail);
+        String url = sb.toString();
+        if (sb.capacity() > MAX_KEPT_URL_BUFFER) {
+            URL_BUFFER.remove();
+        }
+        return url;
+    }
+
+    /**
+     * Precompile the constant parts of the tag URL. Called whenever one of the values they are
+     * built from is changed.
+     */
+    private void compileUrlTemplate() {
+        if (urlBase == null) {
+            // Still being constructed
+            return;
+        }
+        String encodedRef = urlEncode(ref.trim());
+        if (TagStringsAndValues.CODIGO_URL_BASE.equals(urlBase) || TagStringsAndValues.CODIGO_URL_BASE_HTTPS.equals(urlBase)) {
+            urlTemplate = new UrlTemplate(true,
+                    urlBase + "siteId=" + cpId + "&appClientId=" + euid + "&cp=",
+                    "&appId=",
+                    "&appName=" + type + "&appRef=" + encodedRef);
+        } else {
+            urlTemplate = new UrlTemplate(false,
+                    urlBase + "cpid=" + cpId + "&cat=",
+                    "&ref=" + encodedRef + "&id=",
+                    "&type=" + type + "&euid=" + euid + "&euidq=" + euidq);
+        }
+    }
+
     /**
      * Get the CPID set for this handler.
      *
@@ -230,6 +402,16 @@ class TagHandler {
      */
     public void setCpid(String cpid) {
         this.cpId = cpid;
+        compileUrlTemplate();
+    }
+
+    /**
+     * Get the reference value (ref) used by this handler, not URL-encoded.
+     *
+     * @return The reference value used by this handler.
+     */
+    public String getRef() {
+        return ref;
     }
 
     /**
@@ -248,6 +430,7 @@ class TagHandler {
      */
     public void setType(String type) {
         this.type = type;
+        compileUrlTemplate();
     }
 
     /**
@@ -270,6 +453,7 @@ class TagHandler {
         } catch (NullPointerException e) {
             euid = "";
         }
+        compileUrlTemplate();
     }
 
     /**
@@ -288,6 +472,7 @@ class TagHandler {
      */
     public void setEuidq(String euidq) {
         this.euidq = euidq;
+        compileUrlTemplate();
     }
 
     /**
@@ -313,6 +498,10 @@ class TagHandler {
     }
 
     public String getPanelistKey() {
+        CookieStore cookies = this.cookies;
+        if (cookies == null) {
+            return TagStringsAndValues.NO_PANELIST_ID;
+        }
         for (HttpCookie c : cookies.getCookies()) {
             if (TagStringsAndValues.SIFO_PANELIST_COOKIE.equals(c.getName())) {
                 return c.getValue();
@@ -323,20 +512,67 @@ class TagHandler {
 
     /**
      * Make UTF-8 encoding on a specified String.
+     * Recently used values are returned from a cache without being encoded again.
      *
      * @param s The String to encode.
      * @return The encoded String.
      */
     public static String urlEncode(String s) {
-        try {
-            return URLEncoder.encode(s, TagStringsAndValues.URL_ENCODING);
-        } catch (UnsupportedEncodingException e) {
-            // Since encoding UTF-8 is supported by android this should not happen
-            TSMobileAnalyticsBackend.printToLog("URL-Encoding not supported");
-            return s;
+        return ENCODING_CACHE.encode(s);
+    }
+
+    /**
+     * Get the cache of encoded values used by {@link #urlEncode(String)} and the tag URLs.
+     *
+     * @return The encoding cache.
+     */
+    static UrlEncodingCache getEncodingCache() {
+        return ENCODING_CACHE;
+    }
+
+    /**
+     * Append a String encoded the same way as URLEncoder does with UTF-8, without the
+     * intermediate objects URLEncoder creates.
+     *
+     * @param sb    The buffer to append to.
+     * @param s     The String to encode.
+     * @param twice True to append the result of encoding the String twice.
+     */
+    static void appendUrlEncoded(StringBuilder sb, String s, boolean twice) {
+        String percent = twice ? "%25" : "%";
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '.' || c == '-' || c == '*' || c == '_') {
+                sb.append(c);
+            } else if (c == ' ') {
+                sb.append(twice ? "%2B" : "+");
+            } else if (c < 0x80) {
+                appendEncodedByte(sb, percent, c);
+            } else if (c < 0x800) {
+                appendEncodedByte(sb, percent, 0xC0 | (c >> 6));
+                appendEncodedByte(sb, percent, 0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                appendEncodedByte(sb, percent, 0xF0 | (codePoint >> 18));
+                appendEncodedByte(sb, percent, 0x80 | ((codePoint >> 12) & 0x3F));
+                appendEncodedByte(sb, percent, 0x80 | ((codePoint >> 6) & 0x3F));
+                appendEncodedByte(sb, percent, 0x80 | (codePoint & 0x3F));
+            } else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+                // Unpaired surrogates are replaced by '?' by the UTF-8 encoder
+                appendEncodedByte(sb, percent, '?');
+            } else {
+                appendEncodedByte(sb, percent, 0xE0 | (c >> 12));
+                appendEncodedByte(sb, percent, 0x80 | ((c >> 6) & 0x3F));
+                appendEncodedByte(sb, percent, 0x80 | (c & 0x3F));
+            }
         }
     }
 
+    private static void appendEncodedByte(StringBuilder sb, String percent, int b) {
+        sb.append(percent).append(HEX_DIGITS[(b >> 4) & 0xF]).append(HEX_DIGITS[b & 0xF]);
+    }
 
     /**
      * To decide base url using the framework
@@ -0,0 +1,159 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import android.util.Log;
+
+/**
+ * The logging facade of the framework.
+ * <p>
+ * Log prints are off by default, so a disabled message must cost nothing. Messages are either
+ * guarded with {@link #isLoggable(TagLogLevel)} or passed as a pattern with "{}" placeholders and
+ * up to three arguments, which is only formatted if the message is logged. No varargs are used,
+ * so a disabled call does not even allocate an argument array. Primitive arguments are boxed by
+ * the caller, messages with numbers on the path of every tag are guarded instead.
+ */
+final class TagLog {
+
+    static final String TAG = "MobileAppTagging";
+
+    private static final String SEPARATOR = "***********************************";
+
+    /**
+     * Prints to LogCat following the framework's pattern.
+     */
+    private static final TagLogSink LOGCAT = new TagLogSink() {
+        @Override
+        public void log(TagLogLevel level, String tag, String message) {
+            switch (level) {
+                case DEBUG:
+                    Log.d(tag, message);
+                    Log.d(tag, SEPARATOR);
+                    break;
+                case INFO:
+                    Log.i(tag, message);
+                    Log.i(tag, SEPARATOR);
+                    break;
+                default:
+                    Log.e(tag, SEPARATOR);
+                    Log.e(tag, message);
+                    Log.e(tag, SEPARATOR);
+                    break;
+            }
+        }
+    };
+
+    private static volatile TagLogLevel level = TagLogLevel.DEBUG;
+    private static volatile TagLogSink sink = LOGCAT;
+
+    private TagLog() {
+    }
+
+    /**
+     * Set the lowest level logged while log prints are activated.
+     *
+     * @param level The level, null for {@link TagLogLevel#DEBUG}.
+     */
+    static void setLevel(TagLogLevel level) {
+        TagLog.level = level != null ? level : TagLogLevel.DEBUG;
+    }
+
+    /**
+     * Set the sink receiving the messages.
+     *
+     * @param sink The sink, null to print to LogCat.
+     */
+    static void setSink(TagLogSink sink) {
+        TagLog.sink = sink != null ? sink : LOGCAT;
+    }
+
+    /**
+     * Check if messages of a level are logged, to guard messages that are costly to build.
+     *
+     * @param messageLevel The level of the message.
+     * @return True if the message would be logged.
+     */
+    static boolean isLoggable(TagLogLevel messageLevel) {
+        return messageLevel == TagLogLevel.FATAL
+                || (TSMobileAnalytics.logPrintsActivated && messageLevel.compareTo(level) >= 0);
+    }
+
+    static void log(TagLogLevel messageLevel, String message) {
+        if (isLoggable(messageLevel)) {
+            write(messageLevel, message);
+        }
+    }
+
+    static void debug(String pattern, Object arg) {
+        if (isLoggable(TagLogLevel.DEBUG)) {
+            write(TagLogLevel.DEBUG, format(pattern, arg, null, null));
+        }
+    }
+
+    static void debug(String pattern, Object arg1, Object arg2) {
+        if (isLoggable(TagLogLevel.DEBUG)) {
+            write(TagLogLevel.DEBUG, format(pattern, arg1, arg2, null));
+        }
+    }
+
+    static void info(String pattern, Object arg) {
+        if (isLoggable(TagLogLevel.INFO)) {
+            write(TagLogLevel.INFO, format(pattern, arg, null, null));
+        }
+    }
+
+    static void info(String pattern, Object arg1, Object arg2) {
+        if (isLoggable(TagLogLevel.INFO)) {
+            write(TagLogLevel.INFO, format(pattern, arg1, arg2, null));
+        }
+    }
+
+    static void error(String pattern, Object arg) {
+        if (isLoggable(TagLogLevel.ERROR)) {
+            write(TagLogLevel.ERROR, format(pattern, arg, null, null));
+        }
+    }
+
+    static void error(String pattern, Object arg1, Object arg2) {
+        if (isLoggable(TagLogLevel.ERROR)) {
+            write(TagLogLevel.ERROR, format(pattern, arg1, arg2, null));
+        }
+    }
+
+    static void error(String pattern, Object arg1, Object arg2, Object arg3) {
+        if (isLoggable(TagLogLevel.ERROR)) {
+            write(TagLogLevel.ERROR, format(pattern, arg1, arg2, arg3));
+        }
+    }
+
+    /**
+     * Replace the "{}" placeholders of a pattern with the arguments, in order.
+     */
+    static String format(String pattern, Object arg1, Object arg2, Object arg3) {
+        StringBuilder sb = new StringBuilder(pattern.length() + 64);
+        int argIndex = 0;
+        int start = 0;
+        int placeholder;
+        while ((placeholder = pattern.indexOf("{}", start)) >= 0 && argIndex < 3) {
+            sb.append(pattern, start, placeholder);
+            sb.append(argIndex == 0 ? arg1 : argIndex == 1 ? arg2 : arg3);
+            argIndex++;
+            start = placeholder + 2;
+        }
+        sb.append(pattern, start, pattern.length());
+        return sb.toString();
+    }
+
+    private static void write(TagLogLevel messageLevel, String message) {
+        try {
+            sink.log(messageLevel, TAG, message);
+        } catch (RuntimeException e) {
+            // A failing sink must not break the framework
+            Log.e(TAG, "Log sink failed: " + e);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+/**
+ * TNS SIFO Mobile Application Tagging Framework :
+ * Debugging/Advanced features : TagLogLevel.java :
+ * <p>
+ * The levels of the log messages of the framework, lowest first.
+ *
+ * @see TSMobileAnalytics.Builder#setLogLevel(TagLogLevel)
+ */
+public enum TagLogLevel {
+    /**
+     * Details of every tag request, such as its URL and timing.
+     */
+    DEBUG,
+
+    /**
+     * Changes of the framework state, such as initialization and batch upload settings.
+     */
+    INFO,
+
+    /**
+     * Failed requests and other errors the framework recovers from.
+     */
+    ERROR,
+
+    /**
+     * Errors that stop the framework from working, such as a failed initialization.
+     * These are logged even when log prints are not activated.
+     */
+    FATAL
+}
@@ -0,0 +1,30 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+/**
+ * TNS SIFO Mobile Application Tagging Framework :
+ * Debugging/Advanced features : TagLogSink.java :
+ * <p>
+ * This interface is used to receive the log messages of the framework, for example to route them to
+ * the logger of the application. Set it with {@link TSMobileAnalytics.Builder#setLogSink(TagLogSink)}.
+ * By default messages are printed to LogCat.
+ * <p>
+ * Only messages at or above the log level are passed to the sink, and only while log prints are
+ * activated, except {@link TagLogLevel#FATAL} messages which are always passed.
+ * The sink is called from the background threads of the framework and must be thread-safe.
+ */
+public interface TagLogSink {
+    /**
+     * Handle a log message.
+     *
+     * @param level   The level of the message.
+     * @param tag     The tag of the framework's messages, "MobileAppTagging".
+     * @param message The message.
+     */
+    void log(TagLogLevel level, String tag, String message);
+}
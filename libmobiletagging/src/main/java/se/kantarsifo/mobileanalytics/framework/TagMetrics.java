@@ -0,0 +1,128 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Registry of the counters kept by the framework.
+ * <p>
+ * Every counter is an atomic updated without a lock from whichever thread records the event,
+ * and a snapshot only reads them, so taking snapshots never slows down sending tags.
+ */
+class TagMetrics {
+
+    /**
+     * Upper bounds, in milliseconds, of the latency histogram buckets. A last bucket holds
+     * everything slower.
+     */
+    static final long[] LATENCY_BUCKET_BOUNDS_MILLIS = {
+            10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000
+    };
+
+    final AtomicLong enqueued = new AtomicLong();
+    final AtomicLong sent = new AtomicLong();
+    final AtomicLong failed = new AtomicLong();
+    final AtomicLong retried = new AtomicLong();
+    final AtomicLong dropped = new AtomicLong();
+    final AtomicLong aborted = new AtomicLong();
+    final AtomicLong expired = new AtomicLong();
+    final AtomicLong bytesSent = new AtomicLong();
+
+    private final ConcurrentMap<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+
+    /**
+     * Latency histogram of the requests sent to one endpoint.
+     */
+    static final class LatencyHistogram {
+        final AtomicLongArray buckets = new AtomicLongArray(LATENCY_BUCKET_BOUNDS_MILLIS.length + 1);
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong totalMillis = new AtomicLong();
+        final AtomicLong maxMillis = new AtomicLong();
+
+        void record(long millis) {
+            int bucket = 0;
+            while (bucket < LATENCY_BUCKET_BOUNDS_MILLIS.length && millis > LATENCY_BUCKET_BOUNDS_MILLIS[bucket]) {
+                bucket++;
+            }
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            totalMillis.addAndGet(millis);
+            long max;
+            while (millis > (max = maxMillis.get()) && !maxMillis.compareAndSet(max, millis)) {
+                // Another thread raised the maximum, compare again
+            }
+        }
+
+        TagMetricsSnapshot.Latency snapshot() {
+            long[] counts = new long[buckets.length()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets.get(i);
+            }
+            return new TagMetricsSnapshot.Latency(LATENCY_BUCKET_BOUNDS_MILLIS, counts,
+                    count.get(), totalMillis.get(), maxMillis.get());
+        }
+    }
+
+    /**
+     * Record the time an attempt to send tags to an endpoint took.
+     *
+     * @param url    The URL the tags were sent to, only its host is used.
+     * @param millis The time from opening the connection until the response was handled.
+     */
+    void recordLatency(String url, long millis) {
+        String endpoint = getEndpoint(url);
+        LatencyHistogram histogram = latencies.get(endpoint);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = latencies.putIfAbsent(endpoint, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        histogram.record(Math.max(0, millis));
+    }
+
+    /**
+     * Take a snapshot of all counters.
+     */
+    TagMetricsSnapshot snapshot(int queueDepth, int concurrencyLimit, int inFlight, long newConnections, long reusedConnections,
+                                long encodingCacheHits, long encodingCacheMisses) {
+        Map<String, TagMetricsSnapshot.Latency> latencySnapshots = new HashMap<>();
+        for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+            latencySnapshots.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return new TagMetricsSnapshot(System.currentTimeMillis(), enqueued.get(), sent.get(), failed.get(),
+                retried.get(), dropped.get(), aborted.get(), expired.get(), queueDepth, concurrencyLimit, inFlight, bytesSent.get(), newConnections, reusedConnections,
+                encodingCacheHits, encodingCacheMisses, latencySnapshots);
+    }
+
+    /**
+     * Get the host of a URL without parsing the whole URL.
+     */
+    static String getEndpoint(String url) {
+        if (url == null) {
+            return "";
+        }
+        int start = url.indexOf("://");
+        start = start < 0 ? 0 : start + 3;
+        int end = start;
+        while (end < url.length()) {
+            char c = url.charAt(end);
+            if (c == '/' || c == '?' || c == ':' || c == '#') {
+                break;
+            }
+            end++;
+        }
+        return url.substring(start, end);
+    }
+}
@@ -0,0 +1,274 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * TNS SIFO Mobile Application Tagging Framework :
+ * Debugging/Advanced features : TagMetricsSnapshot.java :
+ * <p>
+ * An immutable snapshot of the framework's counters, taken with {@link TSMobileAnalytics#getMetrics()}.
+ * All counters are totals since the instance was created, so the activity during a period is the
+ * difference between two snapshots. Each counter is read once without stopping the framework, so
+ * tags being sent while the snapshot is taken may be included in some counters and not yet in others.
+ */
+public final class TagMetricsSnapshot {
+
+    /**
+     * Histogram of the time it took to send tags to one endpoint.
+     */
+    public static final class Latency {
+        private final long[] bucketBoundsMillis;
+        private final long[] bucketCounts;
+        private final long count;
+        private final long totalMillis;
+        private final long maxMillis;
+
+        Latency(long[] bucketBoundsMillis, long[] bucketCounts, long count, long totalMillis, long maxMillis) {
+            this.bucketBoundsMillis = bucketBoundsMillis.clone();
+            this.bucketCounts = bucketCounts;
+            this.count = count;
+            this.totalMillis = totalMillis;
+            this.maxMillis = maxMillis;
+        }
+
+        /**
+         * Get the upper bounds of the buckets in milliseconds. There is one more bucket than bounds,
+         * holding everything slower than the last bound.
+         *
+         * @return A copy of the bucket bounds.
+         */
+        public long[] getBucketBoundsMillis() {
+            return bucketBoundsMillis.clone();
+        }
+
+        /**
+         * Get the number of attempts in each bucket.
+         *
+         * @return A copy of the bucket counts.
+         */
+        public long[] getBucketCounts() {
+            return bucketCounts.clone();
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalMillis() {
+            return totalMillis;
+        }
+
+        public long getMaxMillis() {
+            return maxMillis;
+        }
+
+        public long getMeanMillis() {
+            return count > 0 ? totalMillis / count : 0;
+        }
+
+        /**
+         * Get an upper bound of the specified percentile, the bound of the bucket it falls in.
+         *
+         * @param percentile The percentile, between 0 and 100.
+         * @return The percentile in milliseconds, the maximum if it falls in the last bucket.
+         */
+        public long getPercentileMillis(double percentile) {
+            long total = 0;
+            for (long bucketCount : bucketCounts) {
+                total += bucketCount;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100);
+            long seen = 0;
+            for (int i = 0; i < bucketBoundsMillis.length; i++) {
+                seen += bucketCounts[i];
+                if (seen >= rank) {
+                    return Math.min(bucketBoundsMillis[i], maxMillis);
+                }
+            }
+            return maxMillis;
+        }
+    }
+
+    private final long timestamp;
+    private final long enqueued;
+    private final long sent;
+    private final long failed;
+    private final long retried;
+    private final long dropped;
+    private final long aborted;
+    private final long expired;
+    private final int queueDepth;
+    private final int concurrencyLimit;
+    private final int inFlight;
+    private final long bytesSent;
+    private final long newConnections;
+    private final long reusedConnections;
+    private final long encodingCacheHits;
+    private final long encodingCacheMisses;
+    private final Map<String, Latency> latencies;
+
+    TagMetricsSnapshot(long timestamp, long enqueued, long sent, long failed, long retried, long dropped,
+                       long aborted, long expired, int queueDepth, int concurrencyLimit, int inFlight, long bytesSent, long newConnections, long reusedConnections,
+                       long encodingCacheHits, long encodingCacheMisses, Map<String, Latency> latencies) {
+        this.timestamp = timestamp;
+        this.enqueued = enqueued;
+        this.sent = sent;
+        this.failed = failed;
+        this.retried = retried;
+        this.dropped = dropped;
+        this.aborted = aborted;
+        this.expired = expired;
+        this.queueDepth = queueDepth;
+        this.concurrencyLimit = concurrencyLimit;
+        this.inFlight = inFlight;
+        this.bytesSent = bytesSent;
+        this.newConnections = newConnections;
+        this.reusedConnections = reusedConnections;
+        this.encodingCacheHits = encodingCacheHits;
+        this.encodingCacheMisses = encodingCacheMisses;
+        this.latencies = Collections.unmodifiableMap(latencies);
+    }
+
+    /**
+     * @return The time the snapshot was taken, in milliseconds since epoch.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return The number of tags added to the queue of pending requests.
+     */
+    public long getEnqueued() {
+        return enqueued;
+    }
+
+    /**
+     * @return The number of tags successfully sent.
+     */
+    public long getSent() {
+        return sent;
+    }
+
+    /**
+     * @return The number of tags that failed for good.
+     */
+    public long getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return The number of times a failed tag was scheduled to be sent again.
+     */
+    public long getRetried() {
+        return retried;
+    }
+
+    /**
+     * @return The number of tags dropped because the queue was full.
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return The number of attempts aborted because they were in flight beyond the request deadline.
+     */
+    public long getAborted() {
+        return aborted;
+    }
+
+    /**
+     * @return The number of tags removed from the queue by the reaper, because they reached their
+     * maximum age or the queue used more memory than allowed.
+     */
+    public long getExpired() {
+        return expired;
+    }
+
+    /**
+     * @return The number of requests, or batches, allowed in flight at the same time when the snapshot
+     * was taken. The limit adapts to the latency and errors of the network.
+     */
+    public int getConcurrencyLimit() {
+        return concurrencyLimit;
+    }
+
+    /**
+     * @return The number of requests, or batches, in flight when the snapshot was taken.
+     */
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return The number of pending requests when the snapshot was taken.
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * @return The number of bytes of tag data sent: the URLs of single tags and the bodies of batches.
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * @return The number of new HTTPS connections opened.
+     */
+    public long getNewConnections() {
+        return newConnections;
+    }
+
+    /**
+     * @return The number of HTTPS requests sent on a reused keep-alive connection.
+     */
+    public long getReusedConnections() {
+        return reusedConnections;
+    }
+
+    /**
+     * @return The number of URL-encoded values found in the encoding cache.
+     */
+    public long getEncodingCacheHits() {
+        return encodingCacheHits;
+    }
+
+    /**
+     * @return The number of values that had to be URL-encoded.
+     */
+    public long getEncodingCacheMisses() {
+        return encodingCacheMisses;
+    }
+
+    /**
+     * Get the latency histograms keyed by host, with the time of every attempt to send a tag,
+     * successful or not. Tags sent in the same batch each count the time of the batch request.
+     *
+     * @return An unmodifiable map of the histograms.
+     */
+    public Map<String, Latency> getLatencies() {
+        return latencies;
+    }
+
+    @Override
+    public String toString() {
+        return "TagMetricsSnapshot{enqueued=" + enqueued + ", sent=" + sent + ", failed=" + failed +
+                ", retried=" + retried + ", dropped=" + dropped + ", aborted=" + aborted + ", expired=" + expired + ", queueDepth=" + queueDepth +
+                ", concurrencyLimit=" + concurrencyLimit + ", inFlight=" + inFlight +
+                ", bytesSent=" + bytesSent + ", newConnections=" + newConnections +
+                ", reusedConnections=" + reusedConnections + "}";
+    }
+}
@@ -0,0 +1,540 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only on-disk journal of tags that have not yet been delivered.
+ * <p>
+ * Every tag is appended to the journal before it is sent and an acknowledgement record is
+ * appended once the tag no longer needs to be delivered. Tags without an acknowledgement are
+ * replayed the next time the framework is initiated.
+ * <p>
+ * The journal is split into segments of {@link #RECORDS_PER_SEGMENT} tags. Acknowledgements
+ * are appended to the segment holding the tag, and a segment file is deleted as soon as all
+ * of its tags have been acknowledged, so the journal is never rewritten.
+ * <p>
+ * All methods are synchronized and perform disk I/O, they must not be called from the main thread.
+ */
+class TagOutbox {
+
+    /**
+     * Name of the directory, inside the application files directory, holding the journal.
+     */
+    static final String DIRECTORY_NAME = "sifo_tag_outbox";
+
+    /**
+     * The number of tags stored in each segment file.
+     */
+    private static final int RECORDS_PER_SEGMENT = 1000;
+
+    /**
+     * Upper limit of a single record, anything larger is treated as a corrupt journal.
+     */
+    private static final int MAX_RECORD_LENGTH = 64 * 1024;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final byte RECORD_ADD = 1;
+    private static final byte RECORD_ACK = 2;
+
+    /**
+     * A stored tag followed by its request ID. Tags read from {@link #RECORD_ADD} records have
+     * no ID and are given a new one when replayed.
+     */
+    private static final byte RECORD_ADD_WITH_ID = 3;
+
+    /**
+     * A tag read back from the journal.
+     */
+    static final class Entry {
+        final long seq;
+        final long createdAt;
+        final String cat;
+        final String id;
+        final String name;
+        final String url;
+
+        /**
+         * The request ID, or a sequence of -1 if the record has none.
+         */
+        long requestIdPrefix;
+        long requestSequence = -1;
+
+        Entry(long seq, long createdAt, String cat, String id, String name, String url) {
+            this.seq = seq;
+            this.createdAt = createdAt;
+            this.cat = cat;
+            this.id = id;
+            this.name = name;
+            this.url = url;
+        }
+    }
+
+    /**
+     * Book-keeping for one segment file.
+     */
+    private static final class Segment {
+        final long index;
+        final File file;
+        int records;
+        int pending;
+
+        /**
+         * The length of the file already read for tags to replay.
+         */
+        long readOffset;
+
+        Segment(long index, File file) {
+            this.index = index;
+            this.file = file;
+        }
+    }
+
+    private final File directory;
+
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+
+    /**
+     * Sequence numbers of the tags handed out to the sender during this process, mapped to the
+     * entry for tags returned by {@link #replay(long, int)}. These are not replayed again until
+     * they have been acknowledged or released.
+     */
+    private final Map<Long, Entry> live = new HashMap<>();
+
+    /**
+     * Tags read from the segment files that have not been handed out yet, by sequence number.
+     */
+    private final TreeMap<Long, Entry> backlog = new TreeMap<>();
+
+    private boolean opened = false;
+
+    private boolean disabled = false;
+
+    private Segment activeSegment;
+
+    private DataOutputStream activeOut;
+
+    private long nextSeq = 0;
+
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Create a new outbox stored in the specified directory. The directory is not touched
+     * until the outbox is first used.
+     *
+     * @param directory The directory holding the segment files.
+     */
+    TagOutbox(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Append a tag to the journal.
+     *
+     * @param request The request to store.
+     * @param live    True if the tag is handed out to the sender now, false if it should be
+     *                returned by the next call to {@link #replay(long, int)}.
+     * @return The sequence number of the stored tag, or -1 if it could not be stored.
+     */
+    synchronized long append(TagDataRequest request, boolean live) {
+        if (!open()) {
+            return -1;
+        }
+        try {
+            if (activeSegment == null || activeSegment.records >= RECORDS_PER_SEGMENT) {
+                rotate();
+            }
+            long seq = nextSeq;
+            byte[] record = encode(RECORD_ADD_WITH_ID, seq, request);
+            activeOut.write(record);
+            activeOut.flush();
+
+            nextSeq++;
+            activeSegment.records++;
+            activeSegment.pending++;
+            if (live) {
+                this.live.put(seq, null);
+            }
+            return seq;
+        } catch (IOException e) {
+            TSMobileAnalyticsBackend.errorToLog("Failed to store tag in outbox:\n" + e.toString());
+            closeActive();
+            return -1;
+        }
+    }
+
+    /**
+     * Mark a tag as delivered, or as no longer deliverable, so it will not be replayed.
+     *
+     * @param seq The sequence number returned by {@link #append(TagDataRequest, boolean)}.
+     */
+    synchronized void ack(long seq) {
+        if (seq < 0 || !open()) {
+            return;
+        }
+        live.remove(seq);
+        backlog.remove(seq);
+        Segment segment = segments.get(seq / RECORDS_PER_SEGMENT);
+        if (segment == null) {
+            return;
+        }
+        try {
+            byte[] record = encode(RECORD_ACK, seq, null);
+            if (segment == activeSegment) {
+                activeOut.write(record);
+                activeOut.flush();
+            } else {
+                FileOutputStream out = new FileOutputStream(segment.file, true);
+                try {
+                    out.write(record);
+                } finally {
+                    out.close();
+                }
+            }
+        } catch (IOException e) {
+            TSMobileAnalyticsBackend.errorToLog("Failed to acknowledge tag in outbox:\n" + e.toString());
+            return;
+        }
+
+        segment.pending--;
+        if (segment.pending <= 0 && segment.records >= RECORDS_PER_SEGMENT) {
+            if (segment == activeSegment) {
+                closeActive();
+            } else {
+                deleteSegment(segment);
+            }
+        }
+    }
+
+    /**
+     * Get the tags that are stored in the journal but not handed out during this process.
+     * The returned tags are considered handed out until they are acknowledged. Tags older
+     * than the maximum age are acknowledged and left out.
+     * <p>
+     * Only the records appended since the previous call are read from disk, the tags left over
+     * from earlier calls are kept in memory.
+     *
+     * @param maxAgeMillis The maximum age of a tag to send again.
+     * @param limit        The maximum number of tags to return.
+     * @return The tags to send again, in the order they were stored.
+     */
+    synchronized List<Entry> replay(long maxAgeMillis, int limit) {
+        List<Entry> result = new ArrayList<>();
+        if (!open()) {
+            return result;
+        }
+        if (backlog.size() < limit) {
+            for (Segment segment : segments.values()) {
+                readNew(segment);
+            }
+        }
+
+        long oldest = System.currentTimeMillis() - maxAgeMillis;
+        List<Entry> expired = new ArrayList<>();
+        Iterator<Entry> it = backlog.values().iterator();
+        while (it.hasNext() && result.size() < limit) {
+            Entry entry = it.next();
+            it.remove();
+            if (entry.createdAt < oldest) {
+                expired.add(entry);
+            } else {
+                live.put(entry.seq, entry);
+                result.add(entry);
+            }
+        }
+        for (Entry entry : expired) {
+            TSMobileAnalyticsBackend.printToLog("Dropping expired tag from outbox: " + entry.url);
+            ack(entry.seq);
+        }
+        return result;
+    }
+
+    /**
+     * Hand a tag returned by {@link #replay(long, int)} back, so it is returned again by the next replay.
+     *
+     * @param seq The sequence number of the tag.
+     */
+    synchronized void release(long seq) {
+        Entry entry = live.remove(seq);
+        if (entry != null) {
+            backlog.put(seq, entry);
+        }
+    }
+
+    /**
+     * Close the journal file. The outbox is not used again: tags appended or acknowledged afterwards
+     * are ignored, and the tags left are replayed by the next outbox opened on the directory.
+     */
+    synchronized void close() {
+        closeActive();
+        opened = true;
+        disabled = true;
+        live.clear();
+        backlog.clear();
+    }
+
+    /**
+     * Open the journal and recover the state of the segment files.
+     *
+     * @return True if the journal is usable.
+     */
+    private boolean open() {
+        if (opened) {
+            return !disabled;
+        }
+        opened = true;
+        if (directory == null || (!directory.isDirectory() && !directory.mkdirs())) {
+            TSMobileAnalyticsBackend.errorToLog("Tag outbox disabled - could not create " + directory);
+            disabled = true;
+            return false;
+        }
+
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                long index = parseSegmentIndex(file.getName());
+                if (index >= 0) {
+                    Segment segment = new Segment(index, file);
+                    // Segments from earlier processes are never appended to again
+                    segment.records = RECORDS_PER_SEGMENT;
+                    segments.put(index, segment);
+                }
+            }
+        }
+
+        for (Segment segment : new ArrayList<>(segments.values())) {
+            Map<Long, Entry> pending = new TreeMap<>();
+            segment.readOffset = scan(segment, 0, pending, true);
+            segment.pending = pending.size();
+            backlog.putAll(pending);
+            if (segment.pending <= 0) {
+                deleteSegment(segment);
+            }
+        }
+        if (!segments.isEmpty()) {
+            nextSeq = (segments.lastKey() + 1) * RECORDS_PER_SEGMENT;
+        }
+        return true;
+    }
+
+    /**
+     * Read the records appended to a segment file since it was last read, adding the tags that are
+     * neither acknowledged nor handed out to the backlog.
+     */
+    private void readNew(Segment segment) {
+        if (segment.file.length() <= segment.readOffset) {
+            return;
+        }
+        Map<Long, Entry> pending = new TreeMap<>();
+        segment.readOffset = scan(segment, segment.readOffset, pending, false);
+        for (Entry entry : pending.values()) {
+            if (!live.containsKey(entry.seq)) {
+                backlog.put(entry.seq, entry);
+            }
+        }
+    }
+
+    /**
+     * Read a segment file from the specified offset, collecting the tags that are not acknowledged
+     * by a later record. A torn record at the end of the file, left by a process killed while
+     * writing, is truncated if requested.
+     *
+     * @return The offset following the last valid record.
+     */
+    private long scan(Segment segment, long offset, Map<Long, Entry> pending, boolean truncate) {
+        long validLength = offset;
+        boolean truncated = false;
+
+        DataInputStream in = null;
+        try {
+            FileInputStream file = new FileInputStream(segment.file);
+            in = new DataInputStream(new BufferedInputStream(file));
+            if (offset > 0) {
+                file.getChannel().position(offset);
+            }
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length <= 0 || length > MAX_RECORD_LENGTH) {
+                    truncated = true;
+                    break;
+                }
+                byte[] body = new byte[length];
+                int checksum;
+                try {
+                    in.readFully(body);
+                    checksum = in.readInt();
+                } catch (EOFException e) {
+                    truncated = true;
+                    break;
+                }
+                crc.reset();
+                crc.update(body, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    truncated = true;
+                    break;
+                }
+                validLength += length + 8;
+
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+                byte type = record.readByte();
+                long seq = record.readLong();
+                if (type == RECORD_ADD || type == RECORD_ADD_WITH_ID) {
+                    Entry entry = new Entry(seq, record.readLong(), record.readUTF(),
+                            record.readUTF(), record.readUTF(), record.readUTF());
+                    if (type == RECORD_ADD_WITH_ID) {
+                        entry.requestIdPrefix = record.readLong();
+                        entry.requestSequence = record.readLong();
+                    }
+                    pending.put(seq, entry);
+                } else if (type == RECORD_ACK) {
+                    pending.remove(seq);
+                }
+            }
+        } catch (IOException e) {
+            TSMobileAnalyticsBackend.errorToLog("Failed to read tag outbox segment " + segment.file.getName() + ":\n" + e.toString());
+        } finally {
+            closeQuietly(in);
+        }
+
+        if (truncated && truncate) {
+            truncate(segment.file, validLength);
+        }
+        return validLength;
+    }
+
+    /**
+     * Start writing to a new segment file.
+     */
+    private void rotate() throws IOException {
+        closeActive();
+        long index = nextSeq / RECORDS_PER_SEGMENT;
+        if (nextSeq % RECORDS_PER_SEGMENT != 0) {
+            index++;
+            nextSeq = index * RECORDS_PER_SEGMENT;
+        }
+        Segment segment = new Segment(index, new File(directory, SEGMENT_PREFIX + index + SEGMENT_SUFFIX));
+        activeOut = new DataOutputStream(new FileOutputStream(segment.file, true));
+        activeSegment = segment;
+        segments.put(index, segment);
+    }
+
+    private void closeActive() {
+        closeQuietly(activeOut);
+        activeOut = null;
+        if (activeSegment != null) {
+            // Never append to a segment again once it has been closed
+            activeSegment.records = RECORDS_PER_SEGMENT;
+            if (activeSegment.pending <= 0) {
+                deleteSegment(activeSegment);
+            }
+        }
+        activeSegment = null;
+    }
+
+    private void deleteSegment(Segment segment) {
+        segments.remove(segment.index);
+        if (!segment.file.delete() && segment.file.exists()) {
+            TSMobileAnalyticsBackend.errorToLog("Failed to delete tag outbox segment " + segment.file.getName());
+        }
+    }
+
+    /**
+     * Encode a record as [length][type, seq, payload][crc32].
+     */
+    private byte[] encode(byte type, long seq, TagDataRequest request) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(body);
+        out.writeByte(type);
+        out.writeLong(seq);
+        if (request != null) {
+            out.writeLong(request.getCreationTime());
+            out.writeUTF(nullToEmpty(request.getCat()));
+            out.writeUTF(nullToEmpty(request.getID()));
+            out.writeUTF(nullToEmpty(request.getName()));
+            out.writeUTF(nullToEmpty(request.getURL()));
+            out.writeLong(request.getRequestIDPrefix());
+            out.writeLong(request.getRequestIDAsLong());
+        }
+        out.flush();
+        byte[] bytes = body.toByteArray();
+
+        crc.reset();
+        crc.update(bytes, 0, bytes.length);
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream(bytes.length + 8);
+        DataOutputStream recordOut = new DataOutputStream(record);
+        recordOut.writeInt(bytes.length);
+        recordOut.write(bytes);
+        recordOut.writeInt((int) crc.getValue());
+        recordOut.flush();
+        return record.toByteArray();
+    }
+
+    private static long parseSegmentIndex(String fileName) {
+        if (!fileName.startsWith(SEGMENT_PREFIX) || !fileName.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(fileName.substring(SEGMENT_PREFIX.length(), fileName.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void truncate(File file, long length) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(length);
+        } catch (IOException e) {
+            TSMobileAnalyticsBackend.errorToLog("Failed to truncate tag outbox segment " + file.getName());
+        } finally {
+            closeQuietly(raf);
+        }
+    }
+
+    private static String nullToEmpty(String s) {
+        return s != null ? s : "";
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                //Should never happen
+                TSMobileAnalyticsBackend.printToLog("Error closing tag outbox file");
+            }
+        }
+    }
+}
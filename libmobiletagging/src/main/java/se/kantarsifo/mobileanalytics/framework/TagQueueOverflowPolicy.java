@@ -0,0 +1,35 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+/**
+ * TNS SIFO Mobile Application Tagging Framework :
+ * Debugging/Advanced features : TagQueueOverflowPolicy.java :
+ * <p>
+ * Decides what happens to a new tag when the queue of pending requests is full.
+ *
+ * @see TSMobileAnalytics.Builder#setQueueOverflowPolicy(TagQueueOverflowPolicy)
+ */
+public enum TagQueueOverflowPolicy {
+    /**
+     * The oldest request waiting to be sent is dropped to make room for the new tag. Requests
+     * that are being sent are never dropped, if every request in the queue is being sent the
+     * new tag is refused like with {@link #DROP_NEWEST}.
+     */
+    DROP_OLDEST,
+
+    /**
+     * The new tag is dropped and sendTag returns {@link TagStringsAndValues#ERROR_QUEUE_FULL}.
+     */
+    DROP_NEWEST,
+
+    /**
+     * The new tag is only stored in the framework's outbox on disk and sent once the queue
+     * has room again. This is the default.
+     */
+    SPILL_TO_DISK
+}
@@ -0,0 +1,170 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded, lock-free queue of the requests that are waiting to be sent or are being sent.
+ * <p>
+ * Any thread may add requests and any thread may remove them, without taking a lock.
+ * Membership is a flag on the request, so both operations are O(1). The insertion order is kept
+ * in a {@link ConcurrentLinkedQueue} where removed requests are only unlinked lazily, either when
+ * they reach the head or by an occasional sweep once removed entries outnumber live ones.
+ */
+class TagRequestQueue {
+
+    private final ConcurrentLinkedQueue<TagDataRequest> order = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The number of requests in the queue.
+     */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * The number of entries in the order queue, including removed requests not yet unlinked.
+     */
+    private final AtomicInteger entries = new AtomicInteger();
+
+    private final AtomicInteger sweeping = new AtomicInteger();
+
+    private final int capacity;
+
+    /**
+     * Create a new queue.
+     *
+     * @param capacity The maximum number of requests in the queue.
+     */
+    TagRequestQueue(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Add a request to the queue if there is room for it.
+     *
+     * @param request The request to add.
+     * @return True if the request was added, false if the queue is full.
+     */
+    boolean offer(TagDataRequest request) {
+        while (true) {
+            int current = size.get();
+            if (current >= capacity) {
+                return false;
+            }
+            if (size.compareAndSet(current, current + 1)) {
+                break;
+            }
+        }
+        request.setQueued(true);
+        order.offer(request);
+        if (entries.incrementAndGet() > 2 * capacity) {
+            sweep();
+        }
+        return true;
+    }
+
+    /**
+     * Remove a request from the queue.
+     *
+     * @param request The request to remove.
+     * @return True if the request was in the queue.
+     */
+    boolean remove(TagDataRequest request) {
+        if (!request.setQueued(false)) {
+            return false;
+        }
+        size.decrementAndGet();
+        pruneHead();
+        return true;
+    }
+
+    /**
+     * Remove the oldest request that is waiting to be sent from the queue, moving it to
+     * {@link TagRequestState#EXPIRED}. Requests that are being sent are skipped.
+     *
+     * @return The removed request, or null if no request in the queue is waiting to be sent.
+     */
+    TagDataRequest removeOldest() {
+        for (TagDataRequest request : order) {
+            if (request.isQueued() && request.evict()) {
+                remove(request);
+                return request;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the number of requests in the queue.
+     *
+     * @return The number of requests.
+     */
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * Get the maximum number of requests in the queue.
+     *
+     * @return The capacity of the queue.
+     */
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Get a copy of the requests in the queue, oldest first.
+     *
+     * @return The list of requests.
+     */
+    List<TagDataRequest> toList() {
+        List<TagDataRequest> list = new ArrayList<>(size.get());
+        for (TagDataRequest request : order) {
+            if (request.isQueued()) {
+                list.add(request);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Unlink removed requests from the head of the order queue.
+     */
+    private void pruneHead() {
+        TagDataRequest head;
+        while ((head = order.peek()) != null && !head.isQueued()) {
+            if (order.remove(head)) {
+                entries.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Unlink all removed requests, done when requests complete out of order.
+     * Only one thread sweeps at a time, others carry on.
+     */
+    private void sweep() {
+        if (!sweeping.compareAndSet(0, 1)) {
+            return;
+        }
+        try {
+            Iterator<TagDataRequest> iterator = order.iterator();
+            while (iterator.hasNext()) {
+                if (!iterator.next().isQueued()) {
+                    iterator.remove();
+                    entries.decrementAndGet();
+                }
+            }
+        } finally {
+            sweeping.set(0);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+/**
+ * TNS SIFO Mobile Application Tagging Framework :
+ * Debugging/Advanced features : TagRequestState.java :
+ * <p>
+ * The lifecycle of a tag request. A request starts {@link #QUEUED}, is {@link #SENDING} during each
+ * attempt and goes back to {@link #QUEUED} while it waits for a new attempt. It always ends in one of
+ * the terminal states {@link #SUCCEEDED}, {@link #FAILED} or {@link #EXPIRED}, and the callback
+ * listener is called once when it does.
+ *
+ * @see TagDataRequest#getState()
+ */
+public enum TagRequestState {
+    /**
+     * The request is waiting to be sent, for the first time or again after a failed attempt.
+     */
+    QUEUED(false),
+
+    /**
+     * An attempt to send the request is in progress.
+     */
+    SENDING(false),
+
+    /**
+     * The server received the tag.
+     */
+    SUCCEEDED(true),
+
+    /**
+     * The tag was rejected by the server, or could not be sent because of an error in the framework.
+     */
+    FAILED(true),
+
+    /**
+     * The tag was given up without being delivered: it reached its maximum age, or it was dropped
+     * to keep the queue within its limits.
+     */
+    EXPIRED(true);
+
+    private final boolean terminal;
+
+    TagRequestState(boolean terminal) {
+        this.terminal = terminal;
+    }
+
+    /**
+     * Check if the request has reached its final state.
+     *
+     * @return True for {@link #SUCCEEDED}, {@link #FAILED} and {@link #EXPIRED}.
+     */
+    public boolean isTerminal() {
+        return terminal;
+    }
+}
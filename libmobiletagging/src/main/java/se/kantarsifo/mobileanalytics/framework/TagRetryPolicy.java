@@ -0,0 +1,92 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import java.util.Random;
+
+/**
+ * Decides if and when a failed tag request is sent again.
+ * <p>
+ * Requests that failed with an exception (the server could not be reached), a 5xx status or
+ * 429 Too Many Requests are retried with exponential backoff and jitter. Other status codes
+ * mean the server rejected the tag and are not retried. No attempt is scheduled after the
+ * deadline of the tag, its creation time plus the maximum age.
+ */
+class TagRetryPolicy {
+
+    /**
+     * The delay before the first retry.
+     */
+    static final long INITIAL_BACKOFF_MILLIS = 2000;
+
+    /**
+     * The longest delay between two attempts.
+     */
+    static final long MAX_BACKOFF_MILLIS = 5 * 60 * 1000;
+
+    static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private final long maxAgeMillis;
+
+    private final Random random = new Random();
+
+    /**
+     * Create a new policy.
+     *
+     * @param maxAgeMillis The maximum time, counted from creation, a tag is kept trying.
+     */
+    TagRetryPolicy(long maxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Get the maximum time, counted from creation, a tag is kept trying.
+     *
+     * @return The maximum age in milliseconds.
+     */
+    long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    /**
+     * Check if the last attempt of a request failed in a way a new attempt can fix.
+     *
+     * @param request The failed request.
+     * @return True for exceptions, 5xx and 429 responses, false for other responses.
+     */
+    boolean isRetryable(TagDataRequest request) {
+        if (request.getFailureReason() == TagFailureReason.INTERNAL_ERROR) {
+            return false;
+        }
+        int statusCode = request.getHttpStatusCode();
+        return statusCode == 0 || statusCode == HTTP_TOO_MANY_REQUESTS || statusCode >= 500;
+    }
+
+    /**
+     * Get the delay before the next attempt of a failed request.
+     *
+     * @param request The failed request.
+     * @return The delay in milliseconds, or -1 if the request should not be sent again.
+     */
+    long getRetryDelay(TagDataRequest request) {
+        if (!isRetryable(request)) {
+            return -1;
+        }
+        long delay = request.getRetryAfterMillis();
+        if (delay < 0) {
+            // Exponential backoff with jitter, the delay is picked between half and all of the backoff
+            int exponent = Math.min(request.getAttemptCount() - 1, 16);
+            long backoff = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.max(0, exponent));
+            delay = backoff / 2 + (long) (random.nextDouble() * (backoff / 2));
+        }
+        long deadline = request.getCreationTime() + maxAgeMillis;
+        if (System.currentTimeMillis() + delay >= deadline) {
+            return -1;
+        }
+        return delay;
+    }
+}
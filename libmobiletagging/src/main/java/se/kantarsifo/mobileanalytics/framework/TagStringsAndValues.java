@@ -125,6 +125,103 @@ public final class TagStringsAndValues {
 
     public static final int ERROR_FRAMEWORK_INSTANCE_IS_NULL = 8;
 
+    /**
+     * The request queue was full and the tag was dropped.
+     */
+    public static final int ERROR_QUEUE_FULL = 9;
+
+    /**
+     * The default maximum time, in milliseconds counted from when the tag was sent by the application,
+     * the framework keeps trying to deliver a tag.
+     */
+    public static final long DEFAULT_TAG_MAX_AGE_MILLIS = 24L * 60 * 60 * 1000;
+
+    /**
+     * The default maximum number of pending requests held in memory.
+     */
+    public static final int DEFAULT_MAX_QUEUE_SIZE = 500;
+
+    /**
+     * The default time, in milliseconds, a tag is held before the batch is sent when batch upload is activated.
+     */
+    public static final long DEFAULT_BATCH_WINDOW_MILLIS = 30000;
+
+    /**
+     * The default maximum number of tags in one batch when batch upload is activated.
+     */
+    public static final int DEFAULT_BATCH_MAX_SIZE = 50;
+
+    /**
+     * The default time, in milliseconds, to wait for a connection to the server to be established.
+     */
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 15000;
+
+    /**
+     * The default time, in milliseconds, to wait for data from the server once connected.
+     */
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = 15000;
+
+    /**
+     * The default time, in milliseconds, an attempt to send a tag may be in flight before it is aborted.
+     */
+    public static final long DEFAULT_REQUEST_DEADLINE_MILLIS = 60000;
+
+    /**
+     * The shortest interval, in milliseconds, between two checks for requests in flight beyond the deadline.
+     */
+    public static final long MIN_WATCHDOG_INTERVAL_MILLIS = 1000;
+
+    /**
+     * The default lowest number of tag requests in flight at the same time.
+     */
+    public static final int DEFAULT_MIN_CONCURRENCY = 1;
+
+    /**
+     * The default highest number of tag requests in flight at the same time.
+     */
+    public static final int DEFAULT_MAX_CONCURRENCY = 4;
+
+    /**
+     * The time, in milliseconds, an idle request thread is kept.
+     */
+    public static final long THREAD_KEEP_ALIVE_MILLIS = 30000;
+
+    /**
+     * The longest time, in milliseconds, the requests in flight are waited for when the framework is destroyed.
+     */
+    public static final long SHUTDOWN_TIMEOUT_MILLIS = 1000;
+
+    /**
+     * The default maximum memory, in bytes, used by the requests in the queue.
+     */
+    public static final long DEFAULT_MAX_QUEUE_BYTES = 512 * 1024;
+
+    /**
+     * The interval, in milliseconds, between two checks for expired requests.
+     */
+    public static final long REAPER_INTERVAL_MILLIS = 5000;
+
+    /**
+     * The default number of trace events kept by the trace recorder, 0 when tracing is off.
+     */
+    public static final int DEFAULT_TRACE_BUFFER_SIZE = 0;
+
+    /**
+     * The delay, in milliseconds, before changes of the cookie store are written to disk.
+     * All the changes made in the meantime are written at once.
+     */
+    public static final long COOKIE_STORE_WRITE_DELAY_MILLIS = 1000;
+
+    /**
+     * The size, in bytes, from which the cookie store file is memory-mapped rather than read.
+     */
+    public static final long COOKIE_STORE_MAP_THRESHOLD_BYTES = 64 * 1024;
+
+    /**
+     * The default maximum memory, in bytes, used to cache URL-encoded categories, content IDs and names.
+     */
+    public static final long DEFAULT_URL_ENCODING_CACHE_BYTES = 64 * 1024;
+
     /**
      * The URL-encoding to be used
      */
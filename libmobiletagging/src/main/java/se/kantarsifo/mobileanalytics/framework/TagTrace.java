@@ -0,0 +1,260 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A recorder of structured trace events: the phases of the initialization and, for every tag,
+ * the URL build, enqueue, send and callback, with nanosecond timestamps and the recording thread.
+ * <p>
+ * The events are kept in a ring buffer of preallocated arrays, so recording an event allocates
+ * nothing and takes no lock, and the oldest events are overwritten once the buffer is full.
+ * Tracing is off unless a buffer size is set, and a disabled recorder costs one volatile read.
+ * The buffer is written on demand in the Chrome trace-event format, which can be opened in
+ * chrome://tracing or Perfetto.
+ */
+final class TagTrace {
+
+    static final String CATEGORY_INIT = "init";
+    static final String CATEGORY_TAG = "tag";
+
+    /**
+     * The id of an event not related to a tag.
+     */
+    static final long NO_ID = -1;
+
+    private static final char PHASE_COMPLETE = 'X';
+    private static final char PHASE_INSTANT = 'i';
+
+    private static volatile TagTrace recorder;
+
+    private final int mask;
+    private final long originNanos;
+    private final AtomicLong next = new AtomicLong();
+
+    /**
+     * The index + 1 of the event held by each slot, 0 while the slot is empty or being written.
+     */
+    private final AtomicLongArray stamps;
+    private final String[] names;
+    private final String[] categories;
+    private final char[] phases;
+    private final long[] startNanos;
+    private final long[] durationNanos;
+    private final long[] ids;
+    private final long[] threadIds;
+    private final String[] threadNames;
+
+    private TagTrace(int capacity) {
+        mask = capacity - 1;
+        originNanos = System.nanoTime();
+        stamps = new AtomicLongArray(capacity);
+        names = new String[capacity];
+        categories = new String[capacity];
+        phases = new char[capacity];
+        startNanos = new long[capacity];
+        durationNanos = new long[capacity];
+        ids = new long[capacity];
+        threadIds = new long[capacity];
+        threadNames = new String[capacity];
+    }
+
+    /**
+     * Start recording into a new buffer, discarding the events recorded so far.
+     *
+     * @param bufferSize The number of events kept, rounded up to a power of two, 0 to stop recording.
+     */
+    static void setBufferSize(int bufferSize) {
+        if (bufferSize <= 0) {
+            recorder = null;
+            return;
+        }
+        int size = Math.min(bufferSize, 1 << 20);
+        int capacity = Integer.highestOneBit(size);
+        if (capacity < size) {
+            capacity <<= 1;
+        }
+        recorder = new TagTrace(capacity);
+    }
+
+    /**
+     * Get the start time of a span.
+     *
+     * @return The current time in nanoseconds, 0 if tracing is off.
+     */
+    static long begin() {
+        return recorder != null ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Record a span started with {@link #begin()}.
+     *
+     * @param name       The name of the span, a constant.
+     * @param category   The category of the span, a constant.
+     * @param startNanos The time returned by {@link #begin()}.
+     * @param id         The {@link TagDataRequest#getRequestIDAsLong()} of the tag, or {@link #NO_ID}.
+     */
+    static void end(String name, String category, long startNanos, long id) {
+        TagTrace trace = recorder;
+        if (trace != null && startNanos != 0) {
+            trace.record(PHASE_COMPLETE, name, category, startNanos, System.nanoTime() - startNanos, id);
+        }
+    }
+
+    /**
+     * Record an event without duration.
+     *
+     * @param name     The name of the event, a constant.
+     * @param category The category of the event, a constant.
+     * @param id       The {@link TagDataRequest#getRequestIDAsLong()} of the tag, or {@link #NO_ID}.
+     */
+    static void instant(String name, String category, long id) {
+        TagTrace trace = recorder;
+        if (trace != null) {
+            trace.record(PHASE_INSTANT, name, category, System.nanoTime(), 0, id);
+        }
+    }
+
+    private void record(char phase, String name, String category, long start, long duration, long id) {
+        long index = next.getAndIncrement();
+        int slot = (int) index & mask;
+        Thread thread = Thread.currentThread();
+        stamps.set(slot, 0);
+        names[slot] = name;
+        categories[slot] = category;
+        phases[slot] = phase;
+        startNanos[slot] = start;
+        durationNanos[slot] = duration;
+        ids[slot] = id;
+        threadIds[slot] = thread.getId();
+        threadNames[slot] = thread.getName();
+        stamps.set(slot, index + 1);
+    }
+
+    /**
+     * Write the recorded events to a file in the Chrome trace-event format, oldest first.
+     * Recording goes on while the file is written; an event overwritten in the meantime is left out.
+     *
+     * @param file The file to write, replaced if it exists.
+     * @return True if the file was written, false if tracing is off or the file could not be written.
+     */
+    static boolean export(File file) {
+        TagTrace trace = recorder;
+        if (trace == null) {
+            TSMobileAnalyticsBackend.errorToLog("Failed to export trace - tracing is not activated");
+            return false;
+        }
+        Writer out = null;
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+            trace.write(out);
+            out.flush();
+            return true;
+        } catch (IOException e) {
+            TSMobileAnalyticsBackend.errorToLog("Failed to export trace:\n" + e.toString());
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void write(Writer out) throws IOException {
+        int pid = android.os.Process.myPid();
+        long last = next.get();
+        long first = Math.max(0, last - (mask + 1));
+        Set<Long> namedThreads = new HashSet<>();
+        StringBuilder event = new StringBuilder(192);
+        boolean separator = false;
+
+        out.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        for (long index = first; index < last; index++) {
+            int slot = (int) index & mask;
+            if (stamps.get(slot) != index + 1) {
+                continue;
+            }
+            char phase = phases[slot];
+            String name = names[slot];
+            String category = categories[slot];
+            long start = startNanos[slot];
+            long duration = durationNanos[slot];
+            long id = ids[slot];
+            long threadId = threadIds[slot];
+            String threadName = threadNames[slot];
+            if (stamps.get(slot) != index + 1) {
+                // Overwritten while it was read
+                continue;
+            }
+
+            event.setLength(0);
+            if (namedThreads.add(threadId)) {
+                event.append("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":").append(pid)
+                        .append(",\"tid\":").append(threadId)
+                        .append(",\"args\":{\"name\":").append(JSONObject.quote(threadName)).append("}},\n");
+            }
+            event.append("{\"name\":\"").append(name)
+                    .append("\",\"cat\":\"").append(category)
+                    .append("\",\"ph\":\"").append(phase)
+                    .append("\",\"ts\":");
+            appendMicros(event, start - originNanos);
+            if (phase == PHASE_COMPLETE) {
+                event.append(",\"dur\":");
+                appendMicros(event, duration);
+            } else {
+                event.append(",\"s\":\"t\"");
+            }
+            event.append(",\"pid\":").append(pid).append(",\"tid\":").append(threadId);
+            if (id != NO_ID) {
+                // As a string, JavaScript numbers cannot hold every request ID
+                event.append(",\"args\":{\"id\":\"").append(id).append("\"}");
+            }
+            event.append('}');
+
+            if (separator) {
+                out.write(",\n");
+            }
+            out.write(event.toString());
+            separator = true;
+        }
+        out.write("]}\n");
+    }
+
+    /**
+     * Append a time in nanoseconds as microseconds with three decimals, the unit of the format.
+     */
+    private static void appendMicros(StringBuilder sb, long nanos) {
+        if (nanos < 0) {
+            sb.append('-');
+            nanos = -nanos;
+        }
+        sb.append(nanos / 1000).append('.');
+        long fraction = nanos % 1000;
+        if (fraction < 100) {
+            sb.append('0');
+        }
+        if (fraction < 10) {
+            sb.append('0');
+        }
+        sb.append(fraction);
+    }
+}
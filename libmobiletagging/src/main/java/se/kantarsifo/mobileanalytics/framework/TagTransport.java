@@ -0,0 +1,211 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * TNS SIFO Mobile Application Tagging Framework :
+ * Debugging/Advanced features : TagTransport.java :
+ * <p>
+ * This interface is used to send the tag requests with an HTTP client of the application, so that
+ * tags share its connection pool, DNS cache and HTTP/2 sessions. Set it with
+ * {@link TSMobileAnalytics.Builder#setTransport(TagTransport)}. By default tags are sent with
+ * {@link java.net.HttpURLConnection}.
+ * <p>
+ * Implementations are called from the background threads of the framework, possibly concurrently,
+ * and must be thread-safe. The timeouts set on the builder only apply to the default transport,
+ * a custom transport uses the timeouts of its client.
+ */
+public interface TagTransport {
+
+    /**
+     * Send a request and wait for the response. The response body is not used by the framework
+     * and must be consumed or closed before returning, so the connection can be reused.
+     *
+     * @param request The request to send.
+     * @return The status of the response.
+     * @throws IOException If the request could not be sent or no response was received.
+     */
+    Response execute(Request request) throws IOException;
+
+    /**
+     * Abort a request in flight, called from another thread when the request has been in flight
+     * longer than the request deadline. {@link #execute(Request)} should then throw an IOException.
+     * Implementations that can not abort requests do nothing.
+     *
+     * @param request The request passed to {@link #execute(Request)}.
+     */
+    void abort(Request request);
+
+    /**
+     * A request to send: the method, URL, headers and the body of batches.
+     */
+    final class Request {
+        private final String method;
+        private final String url;
+        private final Map<String, String> headers;
+        private final byte[] body;
+
+        /**
+         * Object kept by the transport while the request is in flight, such as the call to cancel in
+         * {@link TagTransport#abort(Request)}.
+         */
+        private volatile Object tag;
+
+        /**
+         * The tags sent by this request, whose phase times are stamped.
+         */
+        private List<TagDataRequest> tags = Collections.emptyList();
+
+        /**
+         * The transport executing the request, used to abort it.
+         */
+        private volatile TagTransport transport;
+
+        /**
+         * Set by the first {@link #abort()}, the request is aborted only once.
+         */
+        private final AtomicBoolean aborted = new AtomicBoolean();
+
+        /**
+         * Create a new request.
+         *
+         * @param method  The HTTP method, GET for single tags and POST for batches.
+         * @param url     The URL to send the request to.
+         * @param headers The request headers.
+         * @param body    The request body, null for none.
+         */
+        public Request(String method, String url, Map<String, String> headers, byte[] body) {
+            this.method = method;
+            this.url = url;
+            this.headers = Collections.unmodifiableMap(new LinkedHashMap<>(headers));
+            this.body = body;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        /**
+         * @return The request headers: User-Agent, Cookie and for batches Content-Type.
+         */
+        public Map<String, String> getHeaders() {
+            return headers;
+        }
+
+        /**
+         * @return The request body, null if the request has none.
+         */
+        public byte[] getBody() {
+            return body;
+        }
+
+        public Object getTag() {
+            return tag;
+        }
+
+        /**
+         * Keep an object with the request while it is in flight, for the transport's own use.
+         *
+         * @param tag The object, null to clear it.
+         */
+        public void setTag(Object tag) {
+            this.tag = tag;
+        }
+
+        /**
+         * Called by the transport when the connection to the server is open, either a new or a
+         * reused connection. Optional, the network time of the tags is unknown if it is not called.
+         */
+        public void onConnected() {
+            for (TagDataRequest request : tags) {
+                request.markConnectionOpen();
+            }
+        }
+
+        /**
+         * Called by the transport when the status line of the response is received.
+         * If it is not called the time {@link TagTransport#execute(Request)} returned is used.
+         */
+        public void onResponseStarted() {
+            for (TagDataRequest request : tags) {
+                request.markFirstByte();
+            }
+        }
+
+        void setTags(List<TagDataRequest> tags) {
+            this.tags = tags;
+        }
+
+        void setTransport(TagTransport transport) {
+            this.transport = transport;
+        }
+
+        /**
+         * Abort the request through the transport executing it.
+         *
+         * @return True if the request was aborted by this call, false if it was already aborted.
+         */
+        boolean abort() {
+            if (!aborted.compareAndSet(false, true)) {
+                return false;
+            }
+            for (TagDataRequest request : tags) {
+                request.markAborted();
+            }
+            TagTransport t = transport;
+            if (t != null) {
+                t.abort(this);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The status of a response.
+     */
+    final class Response {
+        private final int statusCode;
+        private final String message;
+        private final String retryAfter;
+
+        /**
+         * Create a new response.
+         *
+         * @param statusCode The HTTP status code.
+         * @param message    The HTTP status message, may be null.
+         * @param retryAfter The value of the Retry-After header, null if the response has none.
+         */
+        public Response(int statusCode, String message, String retryAfter) {
+            this.statusCode = statusCode;
+            this.message = message;
+            this.retryAfter = retryAfter;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public String getRetryAfter() {
+            return retryAfter;
+        }
+    }
+}
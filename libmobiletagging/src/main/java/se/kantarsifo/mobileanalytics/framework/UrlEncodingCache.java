@@ -0,0 +1,189 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe least recently used cache of URL-encoded values.
+ * <p>
+ * Applications send the same categories, content IDs and names over and over, so the encoded
+ * values are kept and reused instead of being encoded for every tag. The cache is bounded by an
+ * estimate of the memory its entries use, and the least recently used entries are evicted first.
+ */
+class UrlEncodingCache {
+
+    /**
+     * Estimated memory used by an entry besides its characters: map entry, value object and
+     * the String objects.
+     */
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    /**
+     * The encoded forms of one value.
+     */
+    private static final class Entry {
+        final String once;
+        /**
+         * The value encoded twice, null until requested.
+         */
+        String twice;
+        int bytes;
+
+        Entry(String once, int bytes) {
+            this.once = once;
+            this.bytes = bytes;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private long maxBytes;
+    private long bytes;
+
+    /**
+     * Create a new cache.
+     *
+     * @param maxBytes The maximum estimated memory used by the cache, 0 to not cache anything.
+     */
+    UrlEncodingCache(long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+    }
+
+    /**
+     * Get a value URL-encoded with UTF-8.
+     *
+     * @param s The value to encode.
+     * @return The encoded value.
+     */
+    String encode(String s) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(s);
+        }
+        if (entry != null) {
+            hits.incrementAndGet();
+            return entry.once;
+        }
+        misses.incrementAndGet();
+        String once = encodeUncached(s);
+        put(s, new Entry(once, cost(s) + cost(once)));
+        return once;
+    }
+
+    /**
+     * Get a value URL-encoded twice with UTF-8, as the Mobiletech name parameter.
+     *
+     * @param s The value to encode.
+     * @return The value encoded twice.
+     */
+    String encodeTwice(String s) {
+        Entry entry;
+        String twice = null;
+        synchronized (this) {
+            entry = entries.get(s);
+            if (entry != null) {
+                twice = entry.twice;
+            }
+        }
+        if (twice != null) {
+            hits.incrementAndGet();
+            return twice;
+        }
+        misses.incrementAndGet();
+        if (entry == null) {
+            entry = new Entry(encodeUncached(s), cost(s));
+            entry.bytes += cost(entry.once);
+        }
+        twice = encodeUncached(entry.once);
+        synchronized (this) {
+            if (entry.twice == null) {
+                entry.twice = twice;
+                entry.bytes += cost(twice);
+                if (entries.get(s) == entry) {
+                    bytes += cost(twice);
+                    evict();
+                    return twice;
+                }
+            }
+        }
+        put(s, entry);
+        return twice;
+    }
+
+    /**
+     * Change the maximum estimated memory used by the cache, evicting entries if needed.
+     *
+     * @param maxBytes The maximum memory in bytes, 0 to not cache anything.
+     */
+    synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+        evict();
+    }
+
+    synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Get the estimated memory currently used by the cache.
+     *
+     * @return The memory in bytes.
+     */
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    private synchronized void put(String key, Entry entry) {
+        if (entry.bytes > maxBytes) {
+            // Larger than the whole cache, not worth keeping
+            return;
+        }
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            bytes -= previous.bytes;
+        }
+        bytes += entry.bytes;
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            bytes -= iterator.next().getValue().bytes;
+            iterator.remove();
+        }
+    }
+
+    private static int cost(String s) {
+        return ENTRY_OVERHEAD_BYTES / 2 + 2 * s.length();
+    }
+
+    private static String encodeUncached(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 16);
+        TagHandler.appendUrlEncoded(sb, s, false);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,98 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+
+public class AdaptiveConcurrencyLimitTest {
+
+    /**
+     * Collects the tasks handed to the executor instead of running them.
+     */
+    private static class CollectingExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+    }
+
+    private static final Runnable NOOP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    /**
+     * Complete rounds of requests using the whole limit, without congestion.
+     */
+    private static void saturate(AdaptiveConcurrencyLimit limit, int rounds) {
+        for (int round = 0; round < rounds; round++) {
+            int n = limit.getLimit();
+            for (int i = 0; i < n; i++) {
+                limit.submit(NOOP);
+            }
+            for (int i = 0; i < n; i++) {
+                limit.release(System.nanoTime(), 50, false);
+            }
+        }
+    }
+
+    @Test
+    public void limitGrowsWhileUsedWithoutCongestion() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(1, 4, new CollectingExecutor());
+        limit.submit(NOOP);
+        limit.release(System.nanoTime(), 50, false);
+        limit.submit(NOOP);
+        limit.release(System.nanoTime(), 50, false);
+        assertEquals(2, limit.getLimit());
+        limit.submit(NOOP);
+        limit.release(System.nanoTime(), 50, false);
+        // Not grown while only one of two slots is used
+        assertEquals(2, limit.getLimit());
+
+        saturate(limit, 10);
+        assertEquals(4, limit.getLimit());
+    }
+
+    @Test
+    public void congestionHalvesTheLimit() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(1, 4, new CollectingExecutor());
+        saturate(limit, 10);
+
+        limit.submit(NOOP);
+        limit.release(System.nanoTime(), 50, true);
+
+        assertEquals(2, limit.getLimit());
+    }
+
+    @Test
+    public void requestThatWasNeverSentLeavesTheLimitUnchanged() {
+        CollectingExecutor executor = new CollectingExecutor();
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(1, 4, executor);
+        saturate(limit, 10);
+        int before = limit.getLimit();
+
+        // One slot in use and one task waiting for it, the slot is given up without a latency
+        for (int i = 0; i < before; i++) {
+            limit.submit(NOOP);
+        }
+        limit.submit(NOOP);
+        limit.release(System.nanoTime(), -1, true);
+
+        assertEquals(before, limit.getLimit());
+        assertEquals(before, limit.getInFlight());
+        assertEquals(1, executor.tasks.size());
+    }
+}
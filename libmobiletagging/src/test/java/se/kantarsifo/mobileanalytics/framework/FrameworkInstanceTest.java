@@ -0,0 +1,141 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.pm.PackageManager.NameNotFoundException;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FrameworkInstanceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final TestFramework.GateTransport transport = new TestFramework.GateTransport();
+
+    @After
+    public void tearDown() {
+        transport.open();
+        TSMobileAnalyticsBackend.destroyInstance();
+    }
+
+    @Test
+    public void concurrentCallersShareOneInitialization() throws Exception {
+        final Context context = new NoPanelistContext(folder.getRoot());
+        final AtomicInteger initiated = new AtomicInteger();
+        final TSMobileAnalytics settings = new TSMobileAnalytics.Builder(context)
+                .setTransport(transport)
+                .setLogPrintsActivated(true)
+                .setLogSink(new TagLogSink() {
+                    @Override
+                    public void log(TagLogLevel level, String tag, String message) {
+                        if (message.startsWith("Mobile Application Tagging Framework initiated")) {
+                            initiated.incrementAndGet();
+                        }
+                    }
+                })
+                .build();
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService callers = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<TSMobileAnalyticsBackend>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(callers.submit(new Callable<TSMobileAnalyticsBackend>() {
+                    @Override
+                    public TSMobileAnalyticsBackend call() throws Exception {
+                        start.await();
+                        return TSMobileAnalyticsBackend.createInstance(context, "1234", "app", false, settings);
+                    }
+                }));
+            }
+            transport.open();
+            start.countDown();
+
+            TSMobileAnalyticsBackend instance = results.get(0).get();
+            assertNotNull(instance);
+            for (Future<TSMobileAnalyticsBackend> result : results) {
+                assertSame(instance, result.get());
+            }
+            assertSame(instance, TSMobileAnalytics.frameworkInstance);
+        } finally {
+            callers.shutdown();
+            TSMobileAnalytics.logPrintsActivated = false;
+            TagLog.setSink(null);
+        }
+        assertEquals(1, initiated.get());
+    }
+
+    @Test
+    public void tagsInFlightAtShutdownAreSentByTheNextInstance() throws Exception {
+        TSMobileAnalytics settings = new TSMobileAnalytics.Builder(TestFramework.context(folder.getRoot()))
+                .setCpId("1234")
+                .setApplicationName("app")
+                .setTransport(transport)
+                .build();
+        TagDataRequestHandler handler = TestFramework.start(settings).dataRequestHandler;
+        assertEquals(TagStringsAndValues.RESULT_SUCCESS, handler.performMetricsRequest("tag-a"));
+        assertNotNull(transport.next());
+
+        // The request is still held by the transport when the outbox is closed
+        TSMobileAnalyticsBackend.destroyInstance();
+        assertNull(TSMobileAnalytics.frameworkInstance);
+
+        TestFramework.GateTransport next = new TestFramework.GateTransport();
+        next.open();
+        TestFramework.start(new TSMobileAnalytics.Builder(TestFramework.context(folder.getRoot()))
+                .setCpId("1234")
+                .setApplicationName("app")
+                .setTransport(next)
+                .build());
+        String url = next.next();
+        assertNotNull(url);
+        assertTrue(url, url.contains("tag-a"));
+    }
+
+    /**
+     * A context of a device without the panelist applications.
+     */
+    private static class NoPanelistContext extends ContextWrapper {
+        private final File filesDir;
+
+        NoPanelistContext(File filesDir) {
+            super(null);
+            this.filesDir = filesDir;
+        }
+
+        @Override
+        public File getFilesDir() {
+            return filesDir;
+        }
+
+        @Override
+        public Context createPackageContext(String packageName, int flags) throws NameNotFoundException {
+            throw new NameNotFoundException(packageName);
+        }
+    }
+}
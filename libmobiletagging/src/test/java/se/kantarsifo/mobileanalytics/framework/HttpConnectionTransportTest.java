@@ -0,0 +1,154 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Collections;
+
+import javax.net.ssl.HttpsURLConnection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HttpConnectionTransportTest {
+
+    private StubCollector collector;
+
+    @Before
+    public void setUp() throws IOException {
+        collector = new StubCollector();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        collector.close();
+    }
+
+    @Test
+    public void newAndReusedHttpsConnectionsAreCounted() throws Exception {
+        HttpConnectionTransport transport = new HttpConnectionTransport();
+        HttpsURLConnection first = (HttpsURLConnection) transport.open("https://bh.mobiletech.no/tag");
+        HttpsURLConnection second = (HttpsURLConnection) transport.open("https://bh.mobiletech.no/tag");
+        transport.open(collector.url("/tag"));
+        assertSame(first.getSSLSocketFactory(), second.getSSLSocketFactory());
+
+        // Only the first request opens a socket, the second one is sent on the pooled connection
+        Socket plain = new Socket("127.0.0.1", new URL(collector.url("/")).getPort());
+        first.getSSLSocketFactory().createSocket(plain, "bh.mobiletech.no", 443, true).close();
+
+        HttpConnectionTransport.HostStats stats = transport.getHostStats().get("bh.mobiletech.no");
+        assertEquals(2, stats.requests.get());
+        assertEquals(1, stats.newConnections.get());
+        assertEquals(1, transport.getHostStats().size());
+        assertEquals(1, transport.getNbrOfNewConnections());
+        assertEquals(1, transport.getNbrOfReusedConnections());
+    }
+
+    @Test
+    public void bodyUpToTheDrainLimitIsReadAndClosed() throws Exception {
+        FakeConnection con = new FakeConnection();
+        Body body = new Body(HttpConnectionTransport.MAX_DRAINED_BYTES);
+
+        new HttpConnectionTransport().release(con, body);
+
+        assertEquals(0, body.available());
+        assertTrue(body.closed);
+        assertFalse(con.disconnected);
+    }
+
+    @Test
+    public void bodyOverTheDrainLimitClosesTheConnection() throws Exception {
+        FakeConnection con = new FakeConnection();
+        Body body = new Body(HttpConnectionTransport.MAX_DRAINED_BYTES * 2);
+
+        new HttpConnectionTransport().release(con, body);
+
+        assertTrue(body.available() > 0);
+        assertTrue(con.disconnected);
+    }
+
+    @Test
+    public void readErrorClosesTheConnection() throws Exception {
+        FakeConnection con = new FakeConnection();
+
+        new HttpConnectionTransport().release(con, new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("connection reset");
+            }
+        });
+
+        assertTrue(con.disconnected);
+    }
+
+    @Test
+    public void connectionWithABodyOfTheDrainLimitIsReused() throws Exception {
+        HttpConnectionTransport transport = new HttpConnectionTransport();
+        collector.respond(200, "OK", "", new byte[HttpConnectionTransport.MAX_DRAINED_BYTES]);
+
+        for (int i = 0; i < 2; i++) {
+            TagTransport.Request request = new TagTransport.Request("GET", collector.url("/tag?i=" + i),
+                    Collections.<String, String>emptyMap(), null);
+            assertEquals(200, transport.execute(request).getStatusCode());
+        }
+
+        assertEquals(1, collector.getConnections());
+    }
+
+    /**
+     * A connection that only records whether it was disconnected.
+     */
+    private static class FakeConnection extends HttpURLConnection {
+        boolean disconnected;
+
+        FakeConnection() throws IOException {
+            super(new URL("http://127.0.0.1/"));
+        }
+
+        @Override
+        public void disconnect() {
+            disconnected = true;
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return false;
+        }
+
+        @Override
+        public void connect() {
+        }
+    }
+
+    /**
+     * A response body of the specified size that records whether it was closed.
+     */
+    private static class Body extends ByteArrayInputStream {
+        boolean closed;
+
+        Body(int size) {
+            super(new byte[size]);
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            super.close();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpCookie;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reads panelist cookie files with the android.util.JsonReader of Robolectric, the one of the
+ * mockable android.jar does not parse anything.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class PanelistCookieFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String entry(String key, String value) {
+        return "{\"key\":\"" + key + "\",\"value\":\"" + value + "\",\"domain\":\"mobiletech.no\",\"path\":\"/\"}";
+    }
+
+    private ClosingStream open(String content) throws IOException {
+        File file = folder.newFile();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return new ClosingStream(file);
+    }
+
+    @Test
+    public void everyEntryBecomesACookie() throws Exception {
+        ClosingStream stream = open("[" + entry("sifo_a", "1") + ",\n" + entry("sifo_b", "2") + "]");
+
+        List<HttpCookie> cookies = TSMobileAnalyticsBackend.PanelistHandler.readCookieStore(stream);
+
+        assertEquals(2, cookies.size());
+        assertEquals("sifo_a", cookies.get(0).getName());
+        assertEquals("1", cookies.get(0).getValue());
+        assertEquals("mobiletech.no", cookies.get(0).getDomain());
+        assertEquals("/", cookies.get(0).getPath());
+        assertEquals("sifo_b", cookies.get(1).getName());
+        assertTrue(stream.closed);
+    }
+
+    @Test
+    public void invalidEntriesAreSkippedOneAtATime() throws Exception {
+        ClosingStream stream = open("["
+                + "\"not an object\","
+                + entry("sifo_a", "1") + ","
+                + "{\"key\":\"sifo_nopath\",\"value\":\"1\",\"domain\":\"mobiletech.no\"},"
+                + "{\"key\":\"sifo_null\",\"value\":null,\"domain\":\"mobiletech.no\",\"path\":\"/\"},"
+                + entry("invalid name", "1") + ","
+                + "{\"key\":\"sifo_n\",\"value\":42,\"domain\":\"mobiletech.no\",\"path\":\"/\","
+                + "\"extra\":{\"nested\":[1,{\"key\":\"x\"}]}}"
+                + "]");
+
+        List<HttpCookie> cookies = TSMobileAnalyticsBackend.PanelistHandler.readCookieStore(stream);
+
+        assertEquals(2, cookies.size());
+        assertEquals("sifo_a", cookies.get(0).getName());
+        assertEquals("sifo_n", cookies.get(1).getName());
+        assertEquals("42", cookies.get(1).getValue());
+        assertTrue(stream.closed);
+    }
+
+    @Test
+    public void truncatedFileKeepsTheCookiesReadBeforeTheError() throws Exception {
+        ClosingStream stream = open("[" + entry("sifo_a", "1") + "," + entry("sifo_b", "2") + ",{\"key\":\"sifo_c\",\"va");
+
+        List<HttpCookie> cookies = TSMobileAnalyticsBackend.PanelistHandler.readCookieStore(stream);
+
+        assertEquals(2, cookies.size());
+        assertEquals("sifo_b", cookies.get(1).getName());
+        assertTrue(stream.closed);
+    }
+
+    @Test
+    public void fileThatIsNotAnArrayGivesNoCookies() throws Exception {
+        ClosingStream stream = open(entry("sifo_a", "1"));
+
+        List<HttpCookie> cookies = TSMobileAnalyticsBackend.PanelistHandler.readCookieStore(stream);
+
+        assertTrue(cookies.isEmpty());
+        assertTrue(stream.closed);
+    }
+
+    /**
+     * A file stream that records whether it was closed.
+     */
+    private static class ClosingStream extends FileInputStream {
+        boolean closed;
+
+        ClosingStream(File file) throws IOException {
+            super(file);
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            super.close();
+        }
+    }
+}
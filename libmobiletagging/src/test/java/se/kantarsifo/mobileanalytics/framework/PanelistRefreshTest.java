@@ -0,0 +1,168 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.pm.PackageManager.NameNotFoundException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the panelist files of a stand-in TNS Sifo-Panelen application, kept in a temporary folder.
+ */
+public class PanelistRefreshTest {
+
+    private static final String REFRESHED = "Refreshing panelist keys";
+    private static final String UNCHANGED = "Panelist keys unchanged";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final BlockingQueue<String> checks = new LinkedBlockingQueue<>();
+    private final TagLogSink sink = new TagLogSink() {
+        @Override
+        public void log(TagLogLevel level, String tag, String message) {
+            if (REFRESHED.equals(message) || UNCHANGED.equals(message)) {
+                checks.add(message);
+            }
+        }
+    };
+    private final TestFramework.GateTransport transport = new TestFramework.GateTransport();
+    private PanelistContext context;
+
+    @Before
+    public void setUp() {
+        context = new PanelistContext(folder.getRoot());
+    }
+
+    @After
+    public void tearDown() {
+        transport.open();
+        TSMobileAnalyticsBackend.destroyInstance();
+        TSMobileAnalytics.logPrintsActivated = false;
+        TagLog.setSink(null);
+    }
+
+    @Test
+    public void fingerprintChangesWithThePanelistFiles() throws Exception {
+        TSMobileAnalyticsBackend.PanelistHandler.Fingerprint missing = TSMobileAnalyticsBackend.PanelistHandler.Fingerprint.of(context);
+        assertEquals(missing, TSMobileAnalyticsBackend.PanelistHandler.Fingerprint.of(context));
+        assertEquals(missing.hashCode(), TSMobileAnalyticsBackend.PanelistHandler.Fingerprint.of(context).hashCode());
+
+        context.write(TagStringsAndValues.SIFO_PANELIST_CREDENTIALS_FILENAME_V2, "[]");
+        TSMobileAnalyticsBackend.PanelistHandler.Fingerprint written = TSMobileAnalyticsBackend.PanelistHandler.Fingerprint.of(context);
+        assertFalse(written.equals(missing));
+
+        File file = context.getFile(TagStringsAndValues.SIFO_PANELIST_CREDENTIALS_FILENAME_V2);
+        assertTrue(file.setLastModified(file.lastModified() - 60000));
+        assertFalse(written.equals(TSMobileAnalyticsBackend.PanelistHandler.Fingerprint.of(context)));
+
+        // An application that is not installed differs from one without files
+        context.installed = false;
+        assertFalse(missing.equals(TSMobileAnalyticsBackend.PanelistHandler.Fingerprint.of(context)));
+    }
+
+    @Test
+    public void repeatedCallsRunOneCheckAndRefreshOnlyOnChange() throws Exception {
+        TSMobileAnalytics settings = new TSMobileAnalytics.Builder(context)
+                .setCpId("1234")
+                .setApplicationName("app")
+                .setTransport(transport)
+                .setLogPrintsActivated(true)
+                .setLogSink(sink)
+                .build();
+        TSMobileAnalyticsBackend instance = TestFramework.start(settings);
+
+        // Hold the only request thread while the framework is created again and again
+        instance.dataRequestHandler.performMetricsRequest("tag-a");
+        assertNotNull(transport.next());
+        for (int i = 0; i < 5; i++) {
+            assertSame(instance, TSMobileAnalyticsBackend.createInstance(context, "1234", "app", false, settings));
+        }
+        transport.open();
+        assertEquals(REFRESHED, checks.poll(5, TimeUnit.SECONDS));
+        assertNull(checks.poll(200, TimeUnit.MILLISECONDS));
+
+        TSMobileAnalyticsBackend.createInstance(context, "1234", "app", false, settings);
+        assertEquals(UNCHANGED, checks.poll(5, TimeUnit.SECONDS));
+
+        context.write(TagStringsAndValues.SIFO_PANELIST_CREDENTIALS_FILENAME_V2, "[]");
+        TSMobileAnalyticsBackend.createInstance(context, "1234", "app", false, settings);
+        assertEquals(REFRESHED, checks.poll(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * An application context whose TNS Sifo-Panelen packages keep their files in one directory.
+     */
+    private static class PanelistContext extends ContextWrapper {
+        private final File dir;
+        volatile boolean installed = true;
+
+        PanelistContext(File dir) {
+            super(null);
+            this.dir = dir;
+        }
+
+        File getFile(String name) {
+            return new File(dir, name);
+        }
+
+        void write(String name, String content) throws IOException {
+            OutputStream out = new FileOutputStream(getFile(name));
+            try {
+                out.write(content.getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+        }
+
+        @Override
+        public File getFilesDir() {
+            return dir;
+        }
+
+        @Override
+        public Context createPackageContext(String packageName, int flags) throws NameNotFoundException {
+            if (!installed) {
+                throw new NameNotFoundException(packageName);
+            }
+            return new ContextWrapper(null) {
+                @Override
+                public File getFileStreamPath(String name) {
+                    return getFile(name);
+                }
+
+                @Override
+                public FileInputStream openFileInput(String name) throws FileNotFoundException {
+                    return new FileInputStream(getFile(name));
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PersistentCookieStoreTest {
+
+    private static final URI URI = java.net.URI.create("https://trafficgateway.research-int.se/");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static HttpCookie cookie(String name, String value, long maxAge) {
+        HttpCookie cookie = new HttpCookie(name, value);
+        cookie.setDomain(".research-int.se");
+        cookie.setPath("/");
+        cookie.setMaxAge(maxAge);
+        return cookie;
+    }
+
+    private static HttpCookie find(List<HttpCookie> cookies, String name) {
+        for (HttpCookie cookie : cookies) {
+            if (cookie.getName().equals(name)) {
+                return cookie;
+            }
+        }
+        return null;
+    }
+
+    private PersistentCookieStore newStore() {
+        PersistentCookieStore store = new PersistentCookieStore();
+        store.setDirectory(folder.getRoot());
+        return store;
+    }
+
+    /**
+     * Wait until the store has been written, after the write delay.
+     */
+    private void awaitWritten(long lastModified) throws InterruptedException {
+        File file = new File(folder.getRoot(), PersistentCookieStore.FILE_NAME);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!file.exists() || file.lastModified() == lastModified) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("The cookie store was not written");
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    @Test
+    public void persistentCookiesAreReadBack() throws Exception {
+        PersistentCookieStore store = newStore();
+        HttpCookie persistent = cookie("sifo", "a=b c", 3600);
+        persistent.setSecure(true);
+        persistent.setVersion(1);
+        store.add(URI, persistent);
+        store.add(URI, cookie("session", "s", -1));
+        store.setPanelCookies(100, 2000, Collections.singletonList(cookie("panel", "p", 3600)));
+        awaitWritten(0);
+
+        PersistentCookieStore loaded = newStore();
+        List<HttpCookie> cookies = loaded.getCookies();
+
+        assertEquals(2, cookies.size());
+        HttpCookie read = find(cookies, "sifo");
+        assertNotNull(read);
+        assertEquals("a=b c", read.getValue());
+        assertEquals(".research-int.se", read.getDomain());
+        assertEquals("/", read.getPath());
+        assertTrue(read.getSecure());
+        assertEquals(1, read.getVersion());
+        assertTrue(read.getMaxAge() > 3590 && read.getMaxAge() <= 3600);
+
+        List<HttpCookie> panel = loaded.getPanelCookies(100, 2000);
+        assertNotNull(panel);
+        assertEquals(1, panel.size());
+        assertEquals("p", panel.get(0).getValue());
+        assertNull(loaded.getPanelCookies(100, 3000));
+    }
+
+    @Test
+    public void sessionCookiesAreKeptInMemoryOnly() throws Exception {
+        PersistentCookieStore store = newStore();
+        store.add(URI, cookie("session", "s", -1));
+        store.add(URI, cookie("sifo", "v", 3600));
+
+        assertEquals(2, store.getCookies().size());
+        awaitWritten(0);
+
+        List<HttpCookie> cookies = newStore().getCookies();
+        assertEquals(1, cookies.size());
+        assertEquals("sifo", cookies.get(0).getName());
+    }
+
+    @Test
+    public void expiredPanelCookiesAreNotReturned() {
+        PersistentCookieStore store = newStore();
+        store.setPanelCookies(100, 2000, Arrays.asList(cookie("panel", "p", 3600), cookie("old", "o", 0)));
+
+        List<HttpCookie> panel = store.getPanelCookies(100, 2000);
+
+        assertEquals(1, panel.size());
+        assertEquals("panel", panel.get(0).getName());
+        assertNull(find(store.getCookies(), "old"));
+    }
+
+    @Test
+    public void expiredCookiesAreDroppedWhenRead() throws Exception {
+        PersistentCookieStore store = newStore();
+        store.add(URI, cookie("short", "s", 1));
+        store.add(URI, cookie("long", "l", 3600));
+        long version = store.getVersion();
+
+        Thread.sleep(1100);
+
+        List<HttpCookie> cookies = store.getCookies();
+        assertEquals(1, cookies.size());
+        assertEquals("long", cookies.get(0).getName());
+        assertTrue(store.getVersion() > version);
+        awaitWritten(0);
+        assertNull(find(newStore().getCookies(), "short"));
+    }
+
+    @Test
+    public void damagedFileIsDiscarded() throws Exception {
+        FileOutputStream out = new FileOutputStream(new File(folder.getRoot(), PersistentCookieStore.FILE_NAME));
+        try {
+            out.write(new byte[]{1, 2, 3, 4, 5});
+        } finally {
+            out.close();
+        }
+
+        PersistentCookieStore store = newStore();
+        assertEquals(0, store.getCookies().size());
+        store.add(URI, cookie("sifo", "v", 3600));
+        assertEquals(1, store.getCookies().size());
+    }
+}
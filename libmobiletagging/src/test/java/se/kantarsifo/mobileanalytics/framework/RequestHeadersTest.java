@@ -0,0 +1,70 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.HttpCookie;
+import java.net.URI;
+import java.util.Collections;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RequestHeadersTest {
+
+    private ScheduledThreadPoolExecutor scheduler;
+    private TagHandler tagHandler;
+
+    @Before
+    public void setUp() {
+        scheduler = new ScheduledThreadPoolExecutor(1);
+        // The context is only read for the euid and the application version, both left empty here
+        tagHandler = new TagHandler(null, "1234", "app", Collections.<HttpCookie>emptyList(), scheduler, null);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+        SifoCookieManager.getInstance().clearCookies();
+    }
+
+    @Test
+    public void headersAreReusedUntilTheCookieStoreChanges() throws Exception {
+        RequestHeaders first = tagHandler.getRequestHeaders();
+        assertSame(first, tagHandler.getRequestHeaders());
+
+        HttpCookie cookie = new HttpCookie("SIFO_TEST", "42");
+        cookie.setDomain("bh.mobiletech.no");
+        cookie.setPath("/");
+        SifoCookieManager.getInstance().addCookie(new URI("https://bh.mobiletech.no"), cookie);
+
+        RequestHeaders second = tagHandler.getRequestHeaders();
+        assertNotSame(first, second);
+        assertEquals(SifoCookieManager.getInstance().getVersion(), second.cookieVersion);
+        assertTrue(second.cookie, second.cookie.contains("SIFO_TEST=42"));
+        assertSame(first.userAgent, second.userAgent);
+        assertSame(second, tagHandler.getRequestHeaders());
+    }
+
+    @Test
+    public void refreshBuildsTheHeadersAgain() {
+        RequestHeaders first = tagHandler.getRequestHeaders();
+
+        tagHandler.refresh(null, Collections.<HttpCookie>emptyList());
+
+        RequestHeaders second = tagHandler.getRequestHeaders();
+        assertNotSame(first, second);
+        assertEquals(first.userAgent, second.userAgent);
+        assertEquals(first.cookie, second.cookie);
+    }
+}
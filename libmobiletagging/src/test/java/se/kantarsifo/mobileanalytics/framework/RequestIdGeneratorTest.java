@@ -0,0 +1,155 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RequestIdGeneratorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * The generator of a new process: the class loaded again in its own class loader, so its
+     * static state is initialized again as after a restart of the application.
+     */
+    private static class Process {
+        private final Method loadInstallPrefix;
+        private final Method getPrefix;
+        private final Method nextSequence;
+        private final Method toLeastSignificantBits;
+
+        Process() throws Exception {
+            URL classes = RequestIdGenerator.class.getProtectionDomain().getCodeSource().getLocation();
+            ClassLoader loader = new URLClassLoader(new URL[]{classes}, null);
+            Class<?> generator = loader.loadClass(RequestIdGenerator.class.getName());
+            loadInstallPrefix = accessible(generator.getDeclaredMethod("loadInstallPrefix", File.class));
+            getPrefix = accessible(generator.getDeclaredMethod("getPrefix"));
+            nextSequence = accessible(generator.getDeclaredMethod("nextSequence"));
+            toLeastSignificantBits = accessible(generator.getDeclaredMethod("toLeastSignificantBits", long.class));
+        }
+
+        private static Method accessible(Method method) {
+            method.setAccessible(true);
+            return method;
+        }
+
+        void loadInstallPrefix(File filesDir) throws Exception {
+            loadInstallPrefix.invoke(null, filesDir);
+        }
+
+        long getPrefix() throws Exception {
+            return (Long) getPrefix.invoke(null);
+        }
+
+        UUID nextId() throws Exception {
+            long sequence = (Long) nextSequence.invoke(null);
+            return new UUID(getPrefix(), (Long) toLeastSignificantBits.invoke(null, sequence));
+        }
+    }
+
+    @Test
+    public void idsAreVersion4Uuids() {
+        for (int i = 0; i < 1000; i++) {
+            UUID id = new UUID(RequestIdGenerator.getPrefix(),
+                    RequestIdGenerator.toLeastSignificantBits(RequestIdGenerator.nextSequence()));
+            assertEquals(4, id.version());
+            assertEquals(2, id.variant());
+        }
+    }
+
+    @Test
+    public void sequenceIsUniqueAcrossThreads() throws Exception {
+        final Set<Long> sequences = new HashSet<>();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        long sequence = RequestIdGenerator.nextSequence();
+                        synchronized (sequences) {
+                            sequences.add(sequence);
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(40000, sequences.size());
+    }
+
+    @Test
+    public void installPrefixIsKeptAcrossRestarts() throws Exception {
+        File filesDir = folder.getRoot();
+        Process first = new Process();
+        first.loadInstallPrefix(filesDir);
+        long prefix = first.getPrefix();
+        assertEquals(8, new File(filesDir, RequestIdGenerator.INSTALL_ID_FILE_NAME).length());
+
+        Process second = new Process();
+        long before = second.getPrefix();
+        second.loadInstallPrefix(filesDir);
+
+        assertNotEquals(prefix, before);
+        assertEquals(prefix, second.getPrefix());
+    }
+
+    @Test
+    public void idsAreUniqueAcrossRestarts() throws Exception {
+        File filesDir = folder.getRoot();
+        Set<UUID> ids = new HashSet<>();
+        for (int restart = 0; restart < 5; restart++) {
+            Process process = new Process();
+            process.loadInstallPrefix(filesDir);
+            for (int i = 0; i < 2000; i++) {
+                UUID id = process.nextId();
+                assertEquals(4, id.version());
+                assertTrue("Duplicate request ID " + id, ids.add(id));
+            }
+        }
+        assertEquals(10000, ids.size());
+    }
+
+    @Test
+    public void damagedInstallIdIsReplaced() throws Exception {
+        File filesDir = folder.getRoot();
+        FileOutputStream out = new FileOutputStream(new File(filesDir, RequestIdGenerator.INSTALL_ID_FILE_NAME));
+        try {
+            out.write(new byte[]{1, 2, 3});
+        } finally {
+            out.close();
+        }
+
+        Process first = new Process();
+        first.loadInstallPrefix(filesDir);
+        Process second = new Process();
+        second.loadInstallPrefix(filesDir);
+
+        assertEquals(8, new File(filesDir, RequestIdGenerator.INSTALL_ID_FILE_NAME).length());
+        assertEquals(first.getPrefix(), second.getPrefix());
+        assertEquals(4, new UUID(second.getPrefix(), 0).version());
+    }
+}
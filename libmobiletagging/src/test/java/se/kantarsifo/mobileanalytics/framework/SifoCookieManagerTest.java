@@ -0,0 +1,53 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SifoCookieManagerTest {
+
+    private static final Map<String, List<String>> HEADERS = Collections.singletonMap("Set-Cookie",
+            Collections.singletonList("SIFO_TEST=42; Path=/"));
+
+    @Test
+    public void responseCookiesAreIgnoredUntilCookiesAreActivated() throws Exception {
+        SifoCookieManager manager = new SifoCookieManager();
+        URL url = new URL("https://bh.mobiletech.no/sifo/img");
+
+        manager.storeResponseCookies(url, HEADERS);
+        assertFalse(manager.isCookiesActivated());
+        assertEquals("", manager.getCookieValue());
+
+        manager.activateCookies();
+        long version = manager.getVersion();
+        manager.storeResponseCookies(url, HEADERS);
+        assertTrue(manager.getCookieValue(), manager.getCookieValue().contains("SIFO_TEST=42"));
+        assertTrue(manager.getVersion() != version);
+    }
+
+    @Test
+    public void defaultCookieHandlerIsNeverInstalled() throws Exception {
+        java.net.CookieHandler before = java.net.CookieHandler.getDefault();
+
+        SifoCookieManager.getInstance();
+        SifoCookieManager manager = new SifoCookieManager();
+        manager.activateCookies();
+        manager.storeResponseCookies(new URL("https://bh.mobiletech.no/sifo/img"), HEADERS);
+
+        assertSame(before, java.net.CookieHandler.getDefault());
+    }
+}
@@ -0,0 +1,245 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A local HTTP/1.1 server on a loopback server socket, standing in for the tag servers and for a
+ * batch collector. It records every request and answers with the configured response, keeping the
+ * connection open between requests so connection reuse can be observed.
+ */
+final class StubCollector implements Closeable {
+
+    /**
+     * A request received by the collector.
+     */
+    static final class Exchange {
+        final String method;
+        final String path;
+        final Map<String, String> headers;
+        final byte[] body;
+
+        Exchange(String method, String path, Map<String, String> headers, byte[] body) {
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        String header(String name) {
+            return headers.get(name.toLowerCase(Locale.US));
+        }
+
+        String bodyAsString() {
+            try {
+                return new String(body, "UTF-8");
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    private final ServerSocket server;
+    private final BlockingQueue<Exchange> received = new LinkedBlockingQueue<>();
+    private final List<Socket> sockets = new ArrayList<>();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger closedByClient = new AtomicInteger();
+
+    private volatile int status = 200;
+    private volatile String reason = "OK";
+    private volatile String extraHeaders = "";
+    private volatile byte[] responseBody = new byte[0];
+    private volatile boolean hang = false;
+
+    StubCollector() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "StubCollector");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Get the URL of a path on the collector.
+     */
+    String url(String path) {
+        return "http://127.0.0.1:" + server.getLocalPort() + path;
+    }
+
+    /**
+     * Answer the next requests with the specified response.
+     *
+     * @param status  The status code.
+     * @param reason  The reason phrase.
+     * @param headers Extra header lines, each ending with CRLF.
+     * @param body    The response body.
+     */
+    void respond(int status, String reason, String headers, byte[] body) {
+        this.status = status;
+        this.reason = reason;
+        this.extraHeaders = headers;
+        this.responseBody = body;
+    }
+
+    /**
+     * Never answer the next requests, until the client closes the connection.
+     */
+    void hang() {
+        hang = true;
+    }
+
+    /**
+     * Wait for the next request.
+     *
+     * @return The request, null if none was received within five seconds.
+     */
+    Exchange take() throws InterruptedException {
+        return received.poll(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return The number of requests received and not yet taken.
+     */
+    int pending() {
+        return received.size();
+    }
+
+    /**
+     * @return The number of connections accepted.
+     */
+    int getConnections() {
+        return connections.get();
+    }
+
+    /**
+     * @return The number of connections closed by the client while a response was awaited.
+     */
+    int getClosedByClient() {
+        return closedByClient.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        synchronized (sockets) {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            final Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                return;
+            }
+            connections.incrementAndGet();
+            synchronized (sockets) {
+                sockets.add(socket);
+            }
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }, "StubCollector-connection");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            while (true) {
+                String requestLine = readLine(in);
+                if (requestLine == null) {
+                    return;
+                }
+                String[] parts = requestLine.split(" ");
+                Map<String, String> headers = new LinkedHashMap<>();
+                String line;
+                while ((line = readLine(in)) != null && line.length() > 0) {
+                    int colon = line.indexOf(':');
+                    headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+                }
+                String length = headers.get("content-length");
+                byte[] body = new byte[length != null ? Integer.parseInt(length) : 0];
+                int read = 0;
+                while (read < body.length) {
+                    int n = in.read(body, read, body.length - read);
+                    if (n < 0) {
+                        return;
+                    }
+                    read += n;
+                }
+                received.add(new Exchange(parts[0], parts[1], headers, body));
+
+                if (hang) {
+                    // Wait for the client to give up
+                    while (in.read() != -1) {
+                    }
+                    closedByClient.incrementAndGet();
+                    return;
+                }
+                byte[] responseBody = this.responseBody;
+                String head = "HTTP/1.1 " + status + " " + reason + "\r\n"
+                        + "Content-Length: " + responseBody.length + "\r\n"
+                        + extraHeaders + "\r\n";
+                out.write(head.getBytes("ISO-8859-1"));
+                out.write(responseBody);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The connection was closed
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                String s = line.toString("ISO-8859-1");
+                return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+            }
+            line.write(b);
+        }
+        return null;
+    }
+}
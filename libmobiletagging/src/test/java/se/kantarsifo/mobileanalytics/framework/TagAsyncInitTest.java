@@ -0,0 +1,98 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.HttpCookie;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sends tags to a handler before its asynchronous initialization has completed.
+ */
+public class TagAsyncInitTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final TestFramework.GateTransport transport = new TestFramework.GateTransport();
+    private TagDataRequestHandler handler;
+
+    @After
+    public void tearDown() {
+        transport.open();
+        if (handler != null) {
+            handler.shutdown();
+        }
+    }
+
+    private TSMobileAnalytics settings(int maxQueueSize) {
+        // One request in flight at a time, so the tags reach the transport in the order they were sent
+        return new TSMobileAnalytics.Builder(TestFramework.context(folder.getRoot()))
+                .setCpId("1234")
+                .setApplicationName("app")
+                .setMaxQueueSize(maxQueueSize)
+                .setMinConcurrency(1)
+                .setMaxConcurrency(1)
+                .setTransport(transport)
+                .build();
+    }
+
+    @Test
+    public void tagsSentBeforeInitAreSentInOrderOnceStarted() throws Exception {
+        TSMobileAnalytics settings = settings(10);
+        handler = new TagDataRequestHandler(settings);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(TagStringsAndValues.RESULT_SUCCESS, handler.performMetricsRequest("tag-" + i));
+        }
+        assertFalse(handler.isInitialized());
+        assertTrue(handler.getDataRequestQueue().isEmpty());
+        assertNull(transport.urls.poll());
+
+        transport.open();
+        handler.start(settings.context, "1234", "app", Collections.<HttpCookie>emptyList(), settings);
+
+        assertTrue(handler.isInitialized());
+        for (int i = 0; i < 5; i++) {
+            String url = transport.next();
+            assertNotNull("Tag " + i + " was not sent", url);
+            assertTrue(url, url.contains("tag-" + i));
+        }
+        assertEquals(0, handler.getMetrics().getDropped());
+    }
+
+    @Test
+    public void tagsBeyondTheQueueSizeAreRefusedBeforeInit() {
+        handler = new TagDataRequestHandler(settings(2));
+        assertEquals(TagStringsAndValues.RESULT_SUCCESS, handler.performMetricsRequest("tag-a"));
+        assertEquals(TagStringsAndValues.RESULT_SUCCESS, handler.performMetricsRequest("tag-b"));
+
+        assertEquals(TagStringsAndValues.ERROR_QUEUE_FULL, handler.performMetricsRequest("tag-c"));
+        assertEquals(1, handler.getMetrics().getDropped());
+    }
+
+    @Test
+    public void failedInitDropsTheBufferedTags() {
+        handler = new TagDataRequestHandler(settings(10));
+        assertEquals(TagStringsAndValues.RESULT_SUCCESS, handler.performMetricsRequest("tag-a"));
+
+        handler.abortInit();
+
+        assertFalse(handler.isInitialized());
+        assertEquals(TagStringsAndValues.ERROR_FRAMEWORK_INSTANCE_IS_NULL, handler.performMetricsRequest("tag-b"));
+        assertNull(transport.urls.poll());
+    }
+}
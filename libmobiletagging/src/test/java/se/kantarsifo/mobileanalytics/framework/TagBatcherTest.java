@@ -0,0 +1,143 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.HttpCookie;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sends batches to a local stub collector.
+ */
+public class TagBatcherTest {
+
+    private static final RequestHeaders HEADERS = new RequestHeaders("app/1.0", "SIFO_PANEL=abc", 0);
+
+    private StubCollector collector;
+    private ScheduledThreadPoolExecutor scheduler;
+    private TagHandler tagHandler;
+    private TagDataRequestTest.RecordingListener listener;
+
+    @Before
+    public void setUp() throws Exception {
+        collector = new StubCollector();
+        scheduler = new ScheduledThreadPoolExecutor(2);
+        // The context is only read for the euid and the application version, both left empty here
+        tagHandler = new TagHandler(null, "1234", "app", Collections.<HttpCookie>emptyList(), scheduler, null) {
+            @Override
+            public RequestHeaders getRequestHeaders() {
+                return HEADERS;
+            }
+        };
+        listener = new TagDataRequestTest.RecordingListener();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        scheduler.shutdownNow();
+        collector.close();
+    }
+
+    private TagBatcher newBatcher(long windowMillis, int maxSize) {
+        return new TagBatcher(tagHandler, new HttpConnectionTransport(), new TagMetrics(),
+                new AdaptiveConcurrencyLimit(1, 1, scheduler), scheduler, new JsonTagBatchEncoder(),
+                collector.url("/batch"), windowMillis, maxSize);
+    }
+
+    private List<TagDataRequest> addTags(TagBatcher batcher, int count) {
+        List<TagDataRequest> requests = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            TagDataRequest request = new TagDataRequest("cat" + i, "id" + i, "name" + i,
+                    "http://127.0.0.1/tag?cat=cat" + i, "app", "1.0", listener, null);
+            requests.add(request);
+            batcher.add(request);
+        }
+        return requests;
+    }
+
+    @Test
+    public void fullBatchIsPostedToTheCollectorInOneRequest() throws Exception {
+        List<TagDataRequest> requests = addTags(newBatcher(60000, 3), 3);
+
+        StubCollector.Exchange exchange = collector.take();
+        assertNotNull(exchange);
+        assertEquals("POST", exchange.method);
+        assertEquals("/batch", exchange.path);
+        assertEquals("application/json; charset=utf-8", exchange.header("Content-Type"));
+        assertEquals("SIFO_PANEL=abc", exchange.header("Cookie"));
+        JSONObject body = new JSONObject(exchange.bodyAsString());
+        assertEquals("1234", body.getString("cpid"));
+        JSONArray tags = body.getJSONArray("tags");
+        assertEquals(3, tags.length());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("cat" + i, tags.getJSONObject(i).getString("cat"));
+            assertEquals(requests.get(i).getRequestID().toString(), tags.getJSONObject(i).getString("rid"));
+        }
+
+        listener.awaitCalls(3);
+        assertEquals(3, listener.completed.size());
+        for (TagDataRequest request : requests) {
+            assertSame(TagRequestState.SUCCEEDED, request.getState());
+            assertEquals(200, request.getHttpStatusCode());
+        }
+        assertEquals(0, collector.pending());
+    }
+
+    @Test
+    public void batchWindowSendsAPartialBatch() throws Exception {
+        addTags(newBatcher(50, 10), 2);
+
+        StubCollector.Exchange exchange = collector.take();
+        assertNotNull(exchange);
+        assertEquals(2, new JSONObject(exchange.bodyAsString()).getJSONArray("tags").length());
+        listener.awaitCalls(2);
+        assertEquals(2, listener.completed.size());
+    }
+
+    @Test
+    public void rejectedBatchFailsEveryTag() throws Exception {
+        collector.respond(503, "Service Unavailable", "Retry-After: 3\r\n", "busy".getBytes("UTF-8"));
+        List<TagDataRequest> requests = addTags(newBatcher(60000, 2), 2);
+
+        listener.awaitCalls(2);
+        assertEquals(0, listener.completed.size());
+        for (TagDataRequest request : requests) {
+            assertEquals(503, request.getHttpStatusCode());
+            assertSame(TagFailureReason.HTTP_STATUS, request.getFailureReason());
+            assertEquals(3000, request.getRetryAfterMillis());
+        }
+    }
+
+    @Test
+    public void batchUsesTheSameSuccessRuleAsASingleTag() throws Exception {
+        collector.respond(204, "No Content", "", new byte[0]);
+        List<TagDataRequest> requests = addTags(newBatcher(60000, 2), 2);
+
+        listener.awaitCalls(2);
+        assertEquals(0, listener.completed.size());
+        for (TagDataRequest request : requests) {
+            assertEquals(204, request.getHttpStatusCode());
+            assertSame(TagFailureReason.HTTP_STATUS, request.getFailureReason());
+        }
+        assertFalse(TagDataRequest.isDelivered(204));
+        assertTrue(TagDataRequest.isDelivered(200));
+    }
+}
@@ -0,0 +1,154 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.HttpCookie;
+import java.util.AbstractList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sends tags while the panelist cookie setup is held on a request thread.
+ */
+public class TagCookieGateTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final TestFramework.GateTransport transport = new TestFramework.GateTransport();
+    private final HeldCookies cookies = new HeldCookies();
+    private final ReadinessRecorder readiness = new ReadinessRecorder();
+    private TagDataRequestHandler handler;
+
+    @After
+    public void tearDown() {
+        cookies.release.countDown();
+        transport.open();
+        if (handler != null) {
+            handler.shutdown();
+        }
+    }
+
+    private void start() {
+        // Two request threads, the cookie setup holds one of them
+        TSMobileAnalytics settings = new TSMobileAnalytics.Builder(TestFramework.context(folder.getRoot()))
+                .setCpId("1234")
+                .setApplicationName("app")
+                .setMinConcurrency(2)
+                .setMaxConcurrency(2)
+                .setTransport(transport)
+                .build();
+        transport.open();
+        handler = new TagDataRequestHandler(settings.context, "1234", "app", cookies, settings);
+        handler.setCookieReadinessListener(readiness);
+    }
+
+    @Test
+    public void tagsAreHeldUntilTheCookiesAreReady() throws Exception {
+        start();
+        assertEquals(TagStringsAndValues.RESULT_SUCCESS, handler.performMetricsRequest("tag-a"));
+
+        assertNull(transport.urls.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(1, readiness.ready.getCount());
+
+        cookies.release.countDown();
+        assertTrue(readiness.ready.await(5, TimeUnit.SECONDS));
+        assertTrue(readiness.success);
+        assertEquals(1, readiness.attempts);
+        String url = transport.next();
+        assertNotNull(url);
+        assertTrue(url, url.contains("tag-a"));
+    }
+
+    @Test
+    public void failedCookieSetupStillReleasesTheTags() throws Exception {
+        cookies.failure = new IllegalStateException("cookie store unavailable");
+        start();
+        assertEquals(TagStringsAndValues.RESULT_SUCCESS, handler.performMetricsRequest("tag-a"));
+
+        cookies.release.countDown();
+        assertTrue(readiness.ready.await(5, TimeUnit.SECONDS));
+        assertFalse(readiness.success);
+        String url = transport.next();
+        assertNotNull(url);
+        assertTrue(url, url.contains("tag-a"));
+    }
+
+    @Test
+    public void listenerSetLaterIsNotifiedRightAway() throws Exception {
+        start();
+        cookies.release.countDown();
+        assertTrue(readiness.ready.await(5, TimeUnit.SECONDS));
+
+        ReadinessRecorder late = new ReadinessRecorder();
+        handler.setCookieReadinessListener(late);
+        assertEquals(0, late.ready.getCount());
+        assertTrue(late.success);
+    }
+
+    /**
+     * An empty cookie list, iterated by the cookie setup, that holds the setup until it is released.
+     */
+    private static class HeldCookies extends AbstractList<HttpCookie> {
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile RuntimeException failure;
+
+        @Override
+        public Iterator<HttpCookie> iterator() {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return Collections.<HttpCookie>emptyList().iterator();
+        }
+
+        @Override
+        public HttpCookie get(int index) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        @Override
+        public int size() {
+            return 0;
+        }
+    }
+
+    /**
+     * Records the first readiness callback.
+     */
+    private static class ReadinessRecorder implements CookieReadinessListener {
+        final CountDownLatch ready = new CountDownLatch(1);
+        volatile boolean success;
+        volatile int attempts;
+
+        @Override
+        public void onCookiesReady(boolean success, int attempts, long elapsedMillis) {
+            if (ready.getCount() > 0) {
+                this.success = success;
+                this.attempts = attempts;
+                ready.countDown();
+            }
+        }
+    }
+}
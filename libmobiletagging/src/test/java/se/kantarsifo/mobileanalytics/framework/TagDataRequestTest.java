@@ -0,0 +1,156 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TagDataRequestTest {
+
+    private static final RequestHeaders HEADERS = new RequestHeaders("app/1.0", "", 0);
+
+    /**
+     * Records the callbacks made by a request.
+     */
+    static class RecordingListener implements TagDataRequestCallbackListener {
+        final List<TagDataRequest> completed = new ArrayList<>();
+        final List<TagDataRequest> failed = new ArrayList<>();
+
+        @Override
+        public synchronized void onDataRequestComplete(TagDataRequest request) {
+            completed.add(request);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onDataRequestFailed(TagDataRequest request) {
+            failed.add(request);
+            notifyAll();
+        }
+
+        /**
+         * Wait until the specified number of callbacks have been made, at most five seconds.
+         */
+        synchronized void awaitCalls(int calls) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (completed.size() + failed.size() < calls) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    throw new AssertionError("Expected " + calls + " callbacks, got " + (completed.size() + failed.size()));
+                }
+                wait(left);
+            }
+        }
+    }
+
+    /**
+     * Answers every request with the same response, or throws the same exception.
+     */
+    static class FixedTransport implements TagTransport {
+        private final Response response;
+        private final IOException exception;
+        int calls;
+
+        FixedTransport(Response response) {
+            this.response = response;
+            this.exception = null;
+        }
+
+        FixedTransport(IOException exception) {
+            this.response = null;
+            this.exception = exception;
+        }
+
+        @Override
+        public Response execute(Request request) throws IOException {
+            calls++;
+            if (exception != null) {
+                throw exception;
+            }
+            return response;
+        }
+
+        @Override
+        public void abort(Request request) {
+        }
+    }
+
+    static TagDataRequest newRequest(TagDataRequestCallbackListener listener) {
+        return new TagDataRequest("cat", "id", "name", "http://127.0.0.1/tag?cat=cat", "app", "1.0", listener, null);
+    }
+
+    @Test
+    public void successIsReportedAsComplete() {
+        RecordingListener listener = new RecordingListener();
+        TagDataRequest request = newRequest(listener);
+
+        request.initRequest(new FixedTransport(new TagTransport.Response(200, null, null)), HEADERS);
+
+        assertEquals(1, listener.completed.size());
+        assertEquals(0, listener.failed.size());
+        assertEquals(200, request.getHttpStatusCode());
+        assertEquals(TagRequestState.SUCCEEDED, request.getState());
+    }
+
+    @Test
+    public void clientErrorIsReportedWithItsStatusCode() {
+        RecordingListener listener = new RecordingListener();
+        TagDataRequest request = newRequest(listener);
+
+        request.initRequest(new FixedTransport(new TagTransport.Response(404, "Not Found", null)), HEADERS);
+
+        assertEquals(1, listener.failed.size());
+        assertEquals(404, request.getHttpStatusCode());
+        assertSame(TagFailureReason.HTTP_STATUS, request.getFailureReason());
+    }
+
+    @Test
+    public void serverErrorIsReportedWithItsStatusCodeAndRetryAfter() {
+        RecordingListener listener = new RecordingListener();
+        TagDataRequest request = newRequest(listener);
+
+        request.initRequest(new FixedTransport(new TagTransport.Response(503, "Unavailable", "7")), HEADERS);
+
+        assertEquals(1, listener.failed.size());
+        assertEquals(503, request.getHttpStatusCode());
+        assertSame(TagFailureReason.HTTP_STATUS, request.getFailureReason());
+        assertEquals(7000, request.getRetryAfterMillis());
+    }
+
+    @Test
+    public void networkErrorHasNoStatusCode() {
+        RecordingListener listener = new RecordingListener();
+        TagDataRequest request = newRequest(listener);
+
+        request.initRequest(new FixedTransport(new IOException("unreachable")), HEADERS);
+
+        assertEquals(1, listener.failed.size());
+        assertEquals(0, request.getHttpStatusCode());
+        assertSame(TagFailureReason.NETWORK_ERROR, request.getFailureReason());
+    }
+
+    @Test
+    public void eachAttemptStartsWithoutTheResultOfThePreviousOne() {
+        RecordingListener listener = new RecordingListener();
+        TagDataRequest request = newRequest(listener);
+        request.initRequest(new FixedTransport(new TagTransport.Response(500, "Error", null)), HEADERS);
+        assertTrue(request.requeue());
+
+        request.initRequest(new FixedTransport(new IOException("unreachable")), HEADERS);
+
+        assertEquals(2, request.getAttemptCount());
+        assertEquals(0, request.getHttpStatusCode());
+        assertEquals(-1, request.getRetryAfterMillis());
+    }
+}
@@ -0,0 +1,94 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TagDataRequestTimingTest {
+
+    private static final RequestHeaders HEADERS = new RequestHeaders("app/1.0", "", 0);
+
+    @Test
+    public void phasesAreRecordedInOrder() throws Exception {
+        TagDataRequest request = TagDataRequestTest.newRequest(new TagDataRequestTest.RecordingListener());
+        assertEquals(0, request.getEnqueueNanos());
+        assertEquals(-1, request.getQueueTimeMillis());
+        assertEquals(-1, request.getNetworkTimeMillis());
+
+        request.markEnqueued();
+        Thread.sleep(5);
+        request.markDequeued();
+        request.initRequest(new PhasedTransport(200), HEADERS);
+
+        assertTrue(request.getEnqueueNanos() > 0);
+        assertTrue(request.getDequeueNanos() > request.getEnqueueNanos());
+        assertTrue(request.getConnectionOpenNanos() >= request.getDequeueNanos());
+        assertTrue(request.getFirstByteNanos() > request.getConnectionOpenNanos());
+        assertTrue(request.getCompletionNanos() >= request.getFirstByteNanos());
+        assertTrue(request.getQueueTimeMillis() >= 5);
+        assertTrue(request.getNetworkTimeMillis() >= 5);
+    }
+
+    @Test
+    public void aNewAttemptKeepsOnlyTheQueueTimes() throws Exception {
+        TagDataRequest request = TagDataRequestTest.newRequest(new TagDataRequestTest.RecordingListener());
+        request.markEnqueued();
+        request.markDequeued();
+        long enqueued = request.getEnqueueNanos();
+        long dequeued = request.getDequeueNanos();
+        request.initRequest(new PhasedTransport(503), HEADERS);
+        assertTrue(request.requeue());
+
+        // The transport fails before it reports an open connection
+        request.initRequest(new TagDataRequestTest.FixedTransport(new IOException("unreachable")), HEADERS);
+
+        assertEquals(enqueued, request.getEnqueueNanos());
+        assertEquals(dequeued, request.getDequeueNanos());
+        assertEquals(0, request.getConnectionOpenNanos());
+        assertEquals(0, request.getFirstByteNanos());
+        assertTrue(request.getCompletionNanos() > dequeued);
+        assertEquals(-1, request.getNetworkTimeMillis());
+    }
+
+    /**
+     * Reports each phase of the request with a pause in between, then answers with a status code.
+     */
+    private static class PhasedTransport implements TagTransport {
+        private final int statusCode;
+
+        PhasedTransport(int statusCode) {
+            this.statusCode = statusCode;
+        }
+
+        @Override
+        public Response execute(Request request) throws IOException {
+            pause();
+            request.onConnected();
+            pause();
+            request.onResponseStarted();
+            pause();
+            return new Response(statusCode, null, null);
+        }
+
+        @Override
+        public void abort(Request request) {
+        }
+
+        private static void pause() throws IOException {
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+}
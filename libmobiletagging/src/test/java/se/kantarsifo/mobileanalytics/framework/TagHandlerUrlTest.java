@@ -0,0 +1,161 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.HttpCookie;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the hand-written encoder and the URL template give the same result as
+ * {@link URLEncoder} with UTF-8 and the String.format URLs they replaced.
+ */
+public class TagHandlerUrlTest {
+
+    private static final String CPID_CODIGO = "0123456789abcdef0123456789abcdef";
+    private static final String CPID_MOBILETECH = "1234";
+
+    private static final String[] SPECIAL_CASES = {
+            "", "abc", "a b", "  ", "*", "~", "+", "%", "a+b=c&d", ".-_*", "/?#[]@!$'()",
+            "Malmö FF", "Ünïcödé", "日本語", "\u0000", "\u007f", "\u0080", "߿", "ࠀ", "￿", "�",
+            "😀", "a😀b", "\uD83D", "\uDE00", "a\uD83Dz", "\uDE00\uD83D", "\uD83D😀",
+            "x\uD83D", "􏿿"
+    };
+
+    private ScheduledThreadPoolExecutor scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = new ScheduledThreadPoolExecutor(1);
+        TagHandler.getEncodingCache().setMaxBytes(TagStringsAndValues.DEFAULT_URL_ENCODING_CACHE_BYTES);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    private TagHandler newTagHandler(String cpId) {
+        // The context is only read for the euid and the application version, both left empty here
+        return new TagHandler(null, cpId, "Test app", Collections.<HttpCookie>emptyList(), scheduler, null);
+    }
+
+    private static String encode(String s) throws Exception {
+        return URLEncoder.encode(s, "UTF-8");
+    }
+
+    private static String appendUrlEncoded(String s, boolean twice) {
+        StringBuilder sb = new StringBuilder();
+        TagHandler.appendUrlEncoded(sb, s, twice);
+        return sb.toString();
+    }
+
+    /**
+     * Create a string mixing ASCII, reserved characters, Latin-1, CJK, emoji and unpaired surrogates.
+     */
+    private static String randomString(Random random) {
+        int length = random.nextInt(40);
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            switch (random.nextInt(7)) {
+                case 0:
+                    sb.append((char) (0x20 + random.nextInt(0x5f)));
+                    break;
+                case 1:
+                    sb.append(" *+%&=/?".charAt(random.nextInt(8)));
+                    break;
+                case 2:
+                    sb.append((char) (0x80 + random.nextInt(0x780)));
+                    break;
+                case 3:
+                    sb.append((char) (0x800 + random.nextInt(0xd000)));
+                    break;
+                case 4:
+                    sb.appendCodePoint(0x10000 + random.nextInt(0x100000));
+                    break;
+                case 5:
+                    sb.append((char) (0xd800 + random.nextInt(0x800)));
+                    break;
+                default:
+                    sb.append((char) random.nextInt(0x10000));
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void specialCasesAreEncodedLikeURLEncoder() throws Exception {
+        for (String s : SPECIAL_CASES) {
+            assertEquals(s, encode(s), appendUrlEncoded(s, false));
+            assertEquals(s, encode(encode(s)), appendUrlEncoded(s, true));
+            assertEquals(s, encode(s), TagHandler.urlEncode(s));
+        }
+    }
+
+    @Test
+    public void randomStringsAreEncodedLikeURLEncoder() throws Exception {
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            String s = randomString(random);
+            assertEquals(s, encode(s), appendUrlEncoded(s, false));
+            assertEquals(s, encode(encode(s)), appendUrlEncoded(s, true));
+        }
+    }
+
+    @Test
+    public void cachedValuesAreEncodedLikeURLEncoder() throws Exception {
+        Random random = new Random(7);
+        String[] values = new String[50];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = randomString(random);
+        }
+        // Every value is encoded several times, so most results come from the cache
+        for (int i = 0; i < 1000; i++) {
+            String s = values[random.nextInt(values.length)];
+            assertEquals(s, encode(s), TagHandler.urlEncode(s));
+        }
+    }
+
+    @Test
+    public void mobiletechUrlMatchesTheFormattedUrl() throws Exception {
+        TagHandler handler = newTagHandler(CPID_MOBILETECH);
+        Random random = new Random(1);
+        for (int i = 0; i < 2000; i++) {
+            String cat = randomString(random);
+            String id = randomString(random);
+            String name = "n" + randomString(random);
+            String expected = String.format("%scpid=%s&cat=%s&ref=%s&id=%s%s&type=%s&euid=%s&euidq=%s",
+                    handler.decideUrl(CPID_MOBILETECH), CPID_MOBILETECH, encode(cat.trim()),
+                    encode(handler.getRef().trim()), encode(id.trim()), "&name=" + encode(encode(name.trim())),
+                    handler.getType(), handler.getEuid(), handler.getEuidq());
+            assertEquals(expected, handler.getURL(cat, id, name));
+        }
+    }
+
+    @Test
+    public void codigoUrlMatchesTheFormattedUrl() throws Exception {
+        TagHandler handler = newTagHandler(CPID_CODIGO);
+        Random random = new Random(2);
+        for (int i = 0; i < 2000; i++) {
+            String cat = randomString(random);
+            String id = randomString(random);
+            String expected = String.format("%ssiteId=%s&appClientId=%s&cp=%s&appId=%s&appName=%s&appRef=%s",
+                    handler.decideUrl(CPID_CODIGO), CPID_CODIGO, handler.getEuid(), encode(cat.trim()),
+                    encode(id.trim()), handler.getType(), encode(handler.getRef().trim()));
+            assertEquals(expected, handler.getURL(cat, id, "name"));
+        }
+    }
+}
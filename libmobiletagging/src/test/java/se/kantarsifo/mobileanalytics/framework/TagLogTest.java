@@ -0,0 +1,114 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TagLogTest {
+
+    private final RecordingSink sink = new RecordingSink();
+
+    @Before
+    public void setUp() {
+        TagLog.setSink(sink);
+    }
+
+    @After
+    public void tearDown() {
+        TSMobileAnalytics.logPrintsActivated = false;
+        TagLog.setLevel(null);
+        TagLog.setSink(null);
+    }
+
+    @Test
+    public void onlyFatalMessagesAreLoggedWhilePrintsAreOff() {
+        TSMobileAnalytics.logPrintsActivated = false;
+        CountingArgument argument = new CountingArgument();
+
+        TagLog.debug("debug {}", argument);
+        TagLog.info("info {}", argument, argument);
+        TagLog.error("error {} {} {}", argument, argument, argument);
+        TagLog.log(TagLogLevel.FATAL, "fatal");
+
+        assertEquals(0, argument.formatted);
+        assertEquals(1, sink.messages.size());
+        assertEquals("FATAL fatal", sink.messages.get(0));
+        assertFalse(TagLog.isLoggable(TagLogLevel.ERROR));
+    }
+
+    @Test
+    public void messagesBelowTheLevelAreNotFormatted() {
+        TSMobileAnalytics.logPrintsActivated = true;
+        TagLog.setLevel(TagLogLevel.ERROR);
+        CountingArgument argument = new CountingArgument();
+
+        TagLog.debug("debug {}", argument);
+        TagLog.info("info {}", argument);
+        TagLog.error("error {}", argument);
+
+        assertEquals(1, argument.formatted);
+        assertEquals(1, sink.messages.size());
+        assertEquals("ERROR error argument", sink.messages.get(0));
+        assertFalse(TagLog.isLoggable(TagLogLevel.INFO));
+        assertTrue(TagLog.isLoggable(TagLogLevel.ERROR));
+    }
+
+    @Test
+    public void placeholdersAreReplacedInOrder() {
+        assertEquals("a 1, b 2", TagLog.format("a {}, b {}", 1, 2, null));
+        assertEquals("a null", TagLog.format("a {}", null, null, null));
+        assertEquals("x y z {}", TagLog.format("{} {} {} {}", "x", "y", "z"));
+        assertEquals("no placeholder", TagLog.format("no placeholder", "x", null, null));
+    }
+
+    @Test
+    public void failingSinkIsIgnored() {
+        TSMobileAnalytics.logPrintsActivated = true;
+        TagLog.setSink(new TagLogSink() {
+            @Override
+            public void log(TagLogLevel level, String tag, String message) {
+                throw new IllegalStateException("sink closed");
+            }
+        });
+
+        TagLog.error("error {}", "message");
+    }
+
+    /**
+     * Records the logged messages prefixed with their level.
+     */
+    private static class RecordingSink implements TagLogSink {
+        final List<String> messages = new ArrayList<>();
+
+        @Override
+        public void log(TagLogLevel level, String tag, String message) {
+            messages.add(level + " " + message);
+        }
+    }
+
+    /**
+     * An argument counting how many times it is formatted.
+     */
+    private static class CountingArgument {
+        int formatted;
+
+        @Override
+        public String toString() {
+            formatted++;
+            return "argument";
+        }
+    }
+}
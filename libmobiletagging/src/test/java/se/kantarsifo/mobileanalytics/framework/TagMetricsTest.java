@@ -0,0 +1,125 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class TagMetricsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+        TSMobileAnalyticsBackend.destroyInstance();
+    }
+
+    @Test
+    public void latenciesAreCountedPerEndpoint() {
+        TagMetrics metrics = new TagMetrics();
+        metrics.recordLatency("https://bh.mobiletech.no/sifo/img?cat=a", 5);
+        metrics.recordLatency("https://bh.mobiletech.no/sifo/img?cat=b", 30);
+        metrics.recordLatency("https://bh.mobiletech.no:443/sifo/img", 30);
+        metrics.recordLatency("https://bh.mobiletech.no/sifo/img", 40000);
+        metrics.recordLatency("https://trafficgateway.research-int.se/TrafficCollector?cat=c", -1);
+
+        TagMetricsSnapshot snapshot = metrics.snapshot(0, 1, 0, 0, 0, 0, 0);
+        assertEquals(2, snapshot.getLatencies().size());
+        TagMetricsSnapshot.Latency latency = snapshot.getLatencies().get("bh.mobiletech.no");
+        assertNotNull(latency);
+        assertEquals(4, latency.getCount());
+        assertArrayEquals(new long[]{1, 0, 2, 0, 0, 0, 0, 0, 0, 0, 0, 1}, latency.getBucketCounts());
+        assertEquals(40000, latency.getMaxMillis());
+        assertEquals(10016, latency.getMeanMillis());
+        assertEquals(50, latency.getPercentileMillis(50));
+        assertEquals(40000, latency.getPercentileMillis(100));
+
+        // A negative time, from a clock adjustment, is counted as zero
+        TagMetricsSnapshot.Latency other = snapshot.getLatencies().get("trafficgateway.research-int.se");
+        assertEquals(1, other.getCount());
+        assertEquals(0, other.getMaxMillis());
+    }
+
+    @Test
+    public void endpointIsTheHostOfTheUrl() {
+        assertEquals("bh.mobiletech.no", TagMetrics.getEndpoint("https://bh.mobiletech.no/sifo/img?cat=a"));
+        assertEquals("127.0.0.1", TagMetrics.getEndpoint("http://127.0.0.1:8080/batch"));
+        assertEquals("example.com", TagMetrics.getEndpoint("example.com?x=1"));
+        assertEquals("", TagMetrics.getEndpoint(null));
+    }
+
+    @Test
+    public void handlerCountsEveryOutcome() throws Exception {
+        TSMobileAnalytics settings = new TSMobileAnalytics.Builder(TestFramework.context(folder.getRoot()))
+                .setCpId("1234")
+                .setApplicationName("app")
+                .setTransport(new OutcomeTransport())
+                .build();
+        TagDataRequestHandler handler = TestFramework.start(settings).dataRequestHandler;
+        handler.performMetricsRequest("tag-ok");
+        handler.performMetricsRequest("tag-rejected");
+        handler.performMetricsRequest("tag-busy");
+
+        TagMetricsSnapshot snapshot = awaitFinished(handler, 3);
+        assertEquals(3, snapshot.getEnqueued());
+        assertEquals(2, snapshot.getSent());
+        assertEquals(1, snapshot.getFailed());
+        assertEquals(1, snapshot.getRetried());
+        assertEquals(0, snapshot.getDropped());
+        assertEquals(0, snapshot.getQueueDepth());
+        assertEquals(4, snapshot.getLatencies().get("bh.mobiletech.no").getCount());
+        assertEquals(2, handler.getNbrOfSuccessfulRequests());
+        assertEquals(1, handler.getNbrOfFailedRequests());
+    }
+
+    private static TagMetricsSnapshot awaitFinished(TagDataRequestHandler handler, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (true) {
+            TagMetricsSnapshot snapshot = handler.getMetrics();
+            if (snapshot.getSent() + snapshot.getFailed() >= count && snapshot.getQueueDepth() == 0) {
+                return snapshot;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Not all tags finished: " + snapshot);
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Answers by category: rejected with 404, busy once with 503 and then 200, anything else 200.
+     */
+    private static class OutcomeTransport implements TagTransport {
+        private final AtomicInteger busyCalls = new AtomicInteger();
+
+        @Override
+        public Response execute(Request request) throws IOException {
+            String url = request.getUrl();
+            if (url.contains("tag-rejected")) {
+                return new Response(404, "Not Found", null);
+            }
+            if (url.contains("tag-busy") && busyCalls.getAndIncrement() == 0) {
+                return new Response(503, "Service Unavailable", "0");
+            }
+            return new Response(200, null, null);
+        }
+
+        @Override
+        public void abort(Request request) {
+        }
+    }
+}
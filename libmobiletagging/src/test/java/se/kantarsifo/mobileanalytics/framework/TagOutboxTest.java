@@ -0,0 +1,185 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TagOutboxTest {
+
+    private static final long MAX_AGE_MILLIS = 60 * 60 * 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final TestFramework.GateTransport transport = new TestFramework.GateTransport();
+
+    @After
+    public void tearDown() {
+        transport.open();
+        TSMobileAnalyticsBackend.destroyInstance();
+    }
+
+    private TagDataRequestHandler start(int concurrency, TagTransport transport) {
+        TSMobileAnalytics settings = new TSMobileAnalytics.Builder(TestFramework.context(folder.getRoot()))
+                .setCpId("1234")
+                .setApplicationName("app")
+                .setMinConcurrency(concurrency)
+                .setMaxConcurrency(concurrency)
+                .setTransport(transport)
+                .build();
+        return TestFramework.start(settings).dataRequestHandler;
+    }
+
+    private File directory() {
+        return new File(folder.getRoot(), TagOutbox.DIRECTORY_NAME);
+    }
+
+    private static TagDataRequest newRequest(String cat) {
+        return new TagDataRequest(cat, "id", "name", "http://127.0.0.1/tag?cat=" + cat, "app", "1.0",
+                new TagDataRequestTest.RecordingListener(), null);
+    }
+
+    @Test
+    public void closedOutboxIsNotUsedAgain() {
+        TagOutbox outbox = new TagOutbox(directory());
+        long delivered = outbox.append(newRequest("delivered"), true);
+        long pending = outbox.append(newRequest("pending"), true);
+        outbox.ack(delivered);
+
+        outbox.close();
+
+        assertEquals(-1, outbox.append(newRequest("late"), true));
+        outbox.ack(pending);
+        assertEquals(0, outbox.replay(MAX_AGE_MILLIS, 10).size());
+        List<TagOutbox.Entry> entries = new TagOutbox(directory()).replay(MAX_AGE_MILLIS, 10);
+        assertEquals(1, entries.size());
+        assertEquals("pending", entries.get(0).cat);
+    }
+
+    @Test
+    public void nextInstanceReplaysEachUndeliveredTagOnce() throws Exception {
+        // One request in flight at a time, the first tag is delivered while the instance is destroyed
+        TagDataRequestHandler handler = start(1, transport);
+        for (int i = 0; i < 5; i++) {
+            handler.performMetricsRequest("tag-" + i);
+        }
+        assertTrue(transport.next().contains("tag-0"));
+        awaitStored(handler, 5);
+        Thread opener = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                transport.open();
+            }
+        });
+        opener.start();
+        TSMobileAnalyticsBackend.destroyInstance();
+        opener.join();
+        assertNull(transport.urls.poll());
+
+        TestFramework.GateTransport next = new TestFramework.GateTransport();
+        next.open();
+        start(4, next);
+        List<String> sent = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            String url = next.next();
+            assertTrue("Tag " + i + " was not replayed", url != null);
+            sent.add(url.substring(url.indexOf("tag-"), url.indexOf("tag-") + 5));
+        }
+        Collections.sort(sent);
+        assertEquals("[tag-1, tag-2, tag-3, tag-4]", sent.toString());
+        TSMobileAnalyticsBackend.destroyInstance();
+        assertNull(next.urls.poll());
+
+        // All delivered, nothing left for a third instance
+        assertEquals(0, new TagOutbox(directory()).replay(MAX_AGE_MILLIS, 10).size());
+    }
+
+    @Test
+    public void tagsAreStoredInTheOrderTheyWereSent() throws Exception {
+        TagDataRequestHandler handler = start(4, transport);
+        int count = 40;
+        for (int i = 0; i < count; i++) {
+            assertEquals(TagStringsAndValues.RESULT_SUCCESS, handler.performMetricsRequest("tag-" + i));
+        }
+
+        List<TagDataRequest> queued = awaitStored(handler, count);
+        long previous = -1;
+        for (TagDataRequest request : queued) {
+            assertTrue(request.getCat() + " stored out of order", request.getOutboxSeq() > previous);
+            previous = request.getOutboxSeq();
+        }
+
+        List<TagOutbox.Entry> entries = new TagOutbox(directory()).replay(MAX_AGE_MILLIS, count);
+        assertEquals(count, entries.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals("tag-" + i, entries.get(i).cat);
+        }
+    }
+
+    @Test
+    public void replayReadsEachStoredTagOnceAcrossBatches() {
+        TagOutbox outbox = new TagOutbox(directory());
+        outbox.append(newRequest("spilled-0"), false);
+        outbox.append(newRequest("sending"), true);
+        outbox.append(newRequest("spilled-1"), false);
+        outbox.append(newRequest("spilled-2"), false);
+
+        List<TagOutbox.Entry> first = outbox.replay(MAX_AGE_MILLIS, 2);
+        assertEquals(2, first.size());
+        assertEquals("spilled-0", first.get(0).cat);
+        assertEquals("spilled-1", first.get(1).cat);
+
+        outbox.append(newRequest("spilled-3"), false);
+        outbox.release(first.get(1).seq);
+        outbox.ack(first.get(0).seq);
+
+        List<TagOutbox.Entry> second = outbox.replay(MAX_AGE_MILLIS, 10);
+        assertEquals(3, second.size());
+        assertEquals("spilled-1", second.get(0).cat);
+        assertEquals("spilled-2", second.get(1).cat);
+        assertEquals("spilled-3", second.get(2).cat);
+        assertEquals(0, outbox.replay(MAX_AGE_MILLIS, 10).size());
+    }
+
+    /**
+     * Wait until all queued requests have been stored in the outbox.
+     */
+    private static List<TagDataRequest> awaitStored(TagDataRequestHandler handler, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (true) {
+            List<TagDataRequest> queued = handler.getDataRequestQueue();
+            boolean stored = queued.size() == count;
+            for (TagDataRequest request : queued) {
+                stored &= request.getOutboxSeq() >= 0;
+            }
+            if (stored) {
+                return queued;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("The tags were not stored in the outbox");
+            }
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fills a queue of two requests while the transport holds every request.
+ */
+public class TagQueueOverflowPolicyTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final TestFramework.GateTransport transport = new TestFramework.GateTransport();
+    private final TagDataRequestTest.RecordingListener listener = new TagDataRequestTest.RecordingListener();
+    private TagDataRequestHandler handler;
+
+    private void start(TagQueueOverflowPolicy policy) {
+        start(policy, 2);
+    }
+
+    private void start(TagQueueOverflowPolicy policy, int concurrency) {
+        TSMobileAnalytics settings = new TSMobileAnalytics.Builder(TestFramework.context(folder.getRoot()))
+                .setCpId("1234")
+                .setApplicationName("app")
+                .setMaxQueueSize(2)
+                .setQueueOverflowPolicy(policy)
+                .setMinConcurrency(concurrency)
+                .setMaxConcurrency(concurrency)
+                .setTransport(transport)
+                .build();
+        TSMobileAnalyticsBackend instance = TestFramework.start(settings);
+        instance.setCallbackListener(listener);
+        handler = instance.dataRequestHandler;
+    }
+
+    @After
+    public void tearDown() {
+        transport.open();
+        TSMobileAnalyticsBackend.destroyInstance();
+    }
+
+    private static List<String> categories(List<TagDataRequest> requests) {
+        List<String> categories = new ArrayList<>();
+        for (TagDataRequest request : requests) {
+            categories.add(request.getCat());
+        }
+        return categories;
+    }
+
+    @Test
+    public void dropNewestRefusesTheNewTag() {
+        start(TagQueueOverflowPolicy.DROP_NEWEST);
+        assertEquals(TagStringsAndValues.RESULT_SUCCESS, handler.performMetricsRequest("tag-a"));
+        assertEquals(TagStringsAndValues.RESULT_SUCCESS, handler.performMetricsRequest("tag-b"));
+
+        assertEquals(TagStringsAndValues.ERROR_QUEUE_FULL, handler.performMetricsRequest("tag-c"));
+        assertEquals(1, handler.getMetrics().getDropped());
+        assertEquals("[tag-a, tag-b]", categories(handler.getDataRequestQueue()).toString());
+    }
+
+    @Test
+    public void dropOldestMakesRoomForTheNewTag() throws Exception {
+        // One request in flight at a time, tag-a is being sent while tag-b waits
+        start(TagQueueOverflowPolicy.DROP_OLDEST, 1);
+        handler.performMetricsRequest("tag-a");
+        handler.performMetricsRequest("tag-b");
+        assertTrue(transport.next().contains("tag-a"));
+        List<TagDataRequest> queued = handler.getDataRequestQueue();
+
+        assertEquals(TagStringsAndValues.RESULT_SUCCESS, handler.performMetricsRequest("tag-c"));
+        assertEquals("[tag-a, tag-c]", categories(handler.getDataRequestQueue()).toString());
+        assertSame(TagRequestState.SENDING, queued.get(0).getState());
+        assertSame(TagRequestState.EXPIRED, queued.get(1).getState());
+        assertEquals(1, handler.getMetrics().getDropped());
+
+        // The only request thread is held by tag-a, the dropped tag is reported once it is released
+        transport.open();
+        listener.awaitCalls(3);
+        assertEquals(1, listener.failed.size());
+        assertSame(queued.get(1), listener.failed.get(0));
+        assertEquals(2, listener.completed.size());
+    }
+
+    @Test
+    public void dropOldestNeverDropsARequestBeingSent() throws Exception {
+        start(TagQueueOverflowPolicy.DROP_OLDEST, 2);
+        handler.performMetricsRequest("tag-a");
+        handler.performMetricsRequest("tag-b");
+        assertNotNull(transport.next());
+        assertNotNull(transport.next());
+
+        assertEquals(TagStringsAndValues.ERROR_QUEUE_FULL, handler.performMetricsRequest("tag-c"));
+        assertEquals("[tag-a, tag-b]", categories(handler.getDataRequestQueue()).toString());
+        assertEquals(1, handler.getMetrics().getDropped());
+
+        transport.open();
+        listener.awaitCalls(2);
+        assertEquals(2, listener.completed.size());
+        assertEquals(0, listener.failed.size());
+    }
+
+    @Test
+    public void spillToDiskSendsTheTagOnceThereIsRoom() throws Exception {
+        start(TagQueueOverflowPolicy.SPILL_TO_DISK);
+        handler.performMetricsRequest("tag-a");
+        handler.performMetricsRequest("tag-b");
+
+        assertEquals(TagStringsAndValues.RESULT_SUCCESS, handler.performMetricsRequest("tag-c"));
+        assertEquals("[tag-a, tag-b]", categories(handler.getDataRequestQueue()).toString());
+
+        transport.open();
+        List<String> sent = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            String url = transport.next();
+            assertNotNull("only sent " + sent, url);
+            sent.add(url);
+        }
+        assertTrue(sent.toString(), sent.toString().contains("tag-c"));
+        assertEquals(0, handler.getMetrics().getDropped());
+    }
+}
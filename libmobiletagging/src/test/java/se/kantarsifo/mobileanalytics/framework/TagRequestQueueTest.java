@@ -0,0 +1,152 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TagRequestQueueTest {
+
+    private static TagDataRequest newRequest() {
+        return TagDataRequestTest.newRequest(null);
+    }
+
+    @Test
+    public void offerIsRefusedOnceTheQueueIsFull() {
+        TagRequestQueue queue = new TagRequestQueue(2);
+        assertTrue(queue.offer(newRequest()));
+        assertTrue(queue.offer(newRequest()));
+        TagDataRequest third = newRequest();
+
+        assertFalse(queue.offer(third));
+        assertEquals(2, queue.size());
+        assertFalse(third.isQueued());
+    }
+
+    @Test
+    public void removeOldestKeepsTheInsertionOrder() {
+        TagRequestQueue queue = new TagRequestQueue(3);
+        TagDataRequest first = newRequest();
+        TagDataRequest second = newRequest();
+        TagDataRequest third = newRequest();
+        queue.offer(first);
+        queue.offer(second);
+        queue.offer(third);
+        queue.remove(second);
+
+        assertSame(first, queue.removeOldest());
+        assertSame(third, queue.removeOldest());
+        assertNull(queue.removeOldest());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void removeOldestSkipsRequestsBeingSent() {
+        TagRequestQueue queue = new TagRequestQueue(2);
+        TagDataRequest sending = newRequest();
+        TagDataRequest waiting = newRequest();
+        queue.offer(sending);
+        queue.offer(waiting);
+        assertTrue(sending.startAttempt());
+
+        assertSame(waiting, queue.removeOldest());
+        assertSame(TagRequestState.EXPIRED, waiting.getState());
+        assertNull(queue.removeOldest());
+        assertSame(TagRequestState.SENDING, sending.getState());
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void aRequestIsRemovedOnlyOnce() {
+        TagRequestQueue queue = new TagRequestQueue(2);
+        TagDataRequest request = newRequest();
+        queue.offer(request);
+
+        assertTrue(queue.remove(request));
+        assertFalse(queue.remove(request));
+        assertEquals(0, queue.size());
+        assertTrue(queue.offer(newRequest()));
+        assertTrue(queue.offer(newRequest()));
+    }
+
+    @Test
+    public void outOfOrderRemovalsDoNotLeakEntries() {
+        TagRequestQueue queue = new TagRequestQueue(4);
+        TagDataRequest head = newRequest();
+        queue.offer(head);
+        // The head stays while many later requests complete, the sweep unlinks them
+        for (int i = 0; i < 10000; i++) {
+            TagDataRequest request = newRequest();
+            assertTrue(queue.offer(request));
+            assertTrue(queue.remove(request));
+        }
+        List<TagDataRequest> list = queue.toList();
+        assertEquals(1, list.size());
+        assertSame(head, list.get(0));
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void concurrentProducersNeverExceedTheCapacity() throws Exception {
+        final int threads = 8;
+        final int capacity = 16;
+        final TagRequestQueue queue = new TagRequestQueue(capacity);
+        final CyclicBarrier barrier = new CyclicBarrier(threads);
+        final AtomicInteger maxSize = new AtomicInteger();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        barrier.await();
+                    } catch (Exception e) {
+                        throw new AssertionError(e);
+                    }
+                    for (int i = 0; i < 5000; i++) {
+                        TagDataRequest request = newRequest();
+                        if (queue.offer(request)) {
+                            int size = queue.size();
+                            while (true) {
+                                int max = maxSize.get();
+                                if (size <= max || maxSize.compareAndSet(max, size)) {
+                                    break;
+                                }
+                            }
+                            if (i % 2 == 0) {
+                                queue.remove(request);
+                            } else {
+                                queue.removeOldest();
+                            }
+                        }
+                    }
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertTrue("max size " + maxSize.get(), maxSize.get() <= capacity);
+        assertEquals(queue.size(), queue.toList().size());
+        while (queue.removeOldest() != null) {
+        }
+        assertEquals(0, queue.size());
+    }
+}
@@ -0,0 +1,153 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TagRequestStateTest {
+
+    private static final RequestHeaders HEADERS = new RequestHeaders("app/1.0", "", 0);
+
+    private static final TagTransport.Response OK = new TagTransport.Response(200, null, null);
+
+    private static TagDataRequest newRequest(TagDataRequestCallbackListener listener,
+                                             TagDataRequestCallbackListener userListener) {
+        return new TagDataRequest("cat", "id", "name", "http://127.0.0.1/tag?cat=cat", "app", "1.0", listener, userListener);
+    }
+
+    @Test
+    public void requestMovesBetweenQueuedAndSendingUntilFinished() {
+        TagDataRequest request = newRequest(new TagDataRequestTest.RecordingListener(), null);
+        assertEquals(TagRequestState.QUEUED, request.getState());
+        assertFalse(request.requeue());
+
+        assertTrue(request.startAttempt());
+        assertEquals(TagRequestState.SENDING, request.getState());
+        assertFalse(request.startAttempt());
+
+        assertTrue(request.requeue());
+        assertEquals(TagRequestState.QUEUED, request.getState());
+        assertTrue(request.startAttempt());
+        assertEquals(2, request.getAttemptCount());
+    }
+
+    @Test
+    public void onlyTheFirstFinishSucceeds() {
+        TagDataRequest request = newRequest(new TagDataRequestTest.RecordingListener(), null);
+        request.startAttempt();
+
+        assertTrue(request.finish(TagRequestState.FAILED));
+        assertFalse(request.finish(TagRequestState.SUCCEEDED));
+        assertFalse(request.finish(TagRequestState.EXPIRED));
+        assertEquals(TagRequestState.FAILED, request.getState());
+
+        assertFalse(request.requeue());
+        assertFalse(request.startAttempt());
+        assertEquals(TagRequestState.FAILED, request.getState());
+    }
+
+    @Test
+    public void finishedRequestIsNotSentAgain() {
+        TagDataRequestTest.RecordingListener listener = new TagDataRequestTest.RecordingListener();
+        TagDataRequest request = newRequest(listener, null);
+        request.finish(TagRequestState.EXPIRED);
+        TagDataRequestTest.FixedTransport transport = new TagDataRequestTest.FixedTransport(OK);
+
+        request.initRequest(transport, HEADERS);
+
+        assertEquals(0, transport.calls);
+        assertEquals(0, listener.completed.size() + listener.failed.size());
+        assertEquals(TagRequestState.EXPIRED, request.getState());
+    }
+
+    @Test
+    public void responseAfterTheRequestExpiredDoesNotNotifyAgain() {
+        TagDataRequestTest.RecordingListener listener = new TagDataRequestTest.RecordingListener();
+        final TagDataRequestTest.RecordingListener userListener = new TagDataRequestTest.RecordingListener();
+        final TagDataRequest request = newRequest(listener, userListener);
+        TagTransport transport = new TagTransport() {
+            @Override
+            public Response execute(Request call) throws IOException {
+                // The reaper gives the request up while it is in flight
+                if (request.finish(TagRequestState.EXPIRED)) {
+                    request.notifyFinished();
+                }
+                return OK;
+            }
+
+            @Override
+            public void abort(Request call) {
+            }
+        };
+
+        request.initRequest(transport, HEADERS);
+
+        assertEquals(TagRequestState.EXPIRED, request.getState());
+        assertEquals(0, listener.completed.size());
+        assertEquals(0, userListener.completed.size());
+        assertEquals(1, userListener.failed.size());
+    }
+
+    @Test
+    public void userListenerIsCalledOnceOnSuccess() {
+        TagDataRequestTest.RecordingListener userListener = new TagDataRequestTest.RecordingListener();
+        TagDataRequest request = newRequest(new TagDataRequestTest.RecordingListener(), userListener);
+
+        request.initRequest(new TagDataRequestTest.FixedTransport(OK), HEADERS);
+        request.initRequest(new TagDataRequestTest.FixedTransport(OK), HEADERS);
+
+        assertEquals(1, userListener.completed.size());
+        assertEquals(0, userListener.failed.size());
+    }
+
+    @Test
+    public void concurrentFinishHasExactlyOneWinner() throws Exception {
+        for (int round = 0; round < 200; round++) {
+            final TagDataRequest request = newRequest(new TagDataRequestTest.RecordingListener(), null);
+            request.startAttempt();
+            final CountDownLatch start = new CountDownLatch(1);
+            final AtomicInteger winners = new AtomicInteger();
+            final TagRequestState[] terminals = {TagRequestState.SUCCEEDED, TagRequestState.FAILED, TagRequestState.EXPIRED};
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                final TagRequestState terminal = terminals[i % terminals.length];
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        if (request.finish(terminal)) {
+                            winners.incrementAndGet();
+                        }
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            assertEquals(1, winners.get());
+            assertTrue(request.getState().isTerminal());
+        }
+    }
+}
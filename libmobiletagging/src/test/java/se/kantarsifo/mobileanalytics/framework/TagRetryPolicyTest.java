@@ -0,0 +1,131 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TagRetryPolicyTest {
+
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+    private static final RequestHeaders HEADERS = new RequestHeaders("app/1.0", "", 0);
+
+    private final TagRetryPolicy policy = new TagRetryPolicy(DAY_MILLIS);
+
+    /**
+     * Create a request that failed the specified number of attempts with the same result.
+     */
+    private static TagDataRequest failed(int attempts, TagTransport transport) {
+        TagDataRequest request = TagDataRequestTest.newRequest(new TagDataRequestTest.RecordingListener());
+        for (int i = 0; i < attempts; i++) {
+            if (i > 0) {
+                assertTrue(request.requeue());
+            }
+            request.initRequest(transport, HEADERS);
+        }
+        return request;
+    }
+
+    private static TagTransport status(int statusCode, String retryAfter) {
+        return new TagDataRequestTest.FixedTransport(new TagTransport.Response(statusCode, "", retryAfter));
+    }
+
+    private static TagTransport unreachable() {
+        return new TagDataRequestTest.FixedTransport(new IOException("unreachable"));
+    }
+
+    @Test
+    public void networkErrorsServerErrorsAndThrottlingAreRetried() {
+        assertTrue(policy.isRetryable(failed(1, unreachable())));
+        assertTrue(policy.isRetryable(failed(1, status(500, null))));
+        assertTrue(policy.isRetryable(failed(1, status(503, null))));
+        assertTrue(policy.isRetryable(failed(1, status(429, null))));
+    }
+
+    @Test
+    public void rejectedTagsAreNotRetried() {
+        assertFalse(policy.isRetryable(failed(1, status(400, null))));
+        assertFalse(policy.isRetryable(failed(1, status(404, null))));
+        assertEquals(-1, policy.getRetryDelay(failed(1, status(403, "5"))));
+    }
+
+    @Test
+    public void internalErrorsAreNotRetried() {
+        TagTransport failing = new TagTransport() {
+            @Override
+            public Response execute(Request request) {
+                throw new IllegalStateException("bug");
+            }
+
+            @Override
+            public void abort(Request request) {
+            }
+        };
+        TagDataRequest request = failed(1, failing);
+        assertEquals(TagFailureReason.INTERNAL_ERROR, request.getFailureReason());
+        assertEquals(-1, policy.getRetryDelay(request));
+    }
+
+    @Test
+    public void backoffDoublesWithJitterBetweenHalfAndAllOfIt() {
+        for (int attempt = 1; attempt <= 12; attempt++) {
+            long backoff = Math.min(TagRetryPolicy.MAX_BACKOFF_MILLIS,
+                    TagRetryPolicy.INITIAL_BACKOFF_MILLIS << (attempt - 1));
+            TagDataRequest request = failed(attempt, unreachable());
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (int i = 0; i < 500; i++) {
+                long delay = policy.getRetryDelay(request);
+                min = Math.min(min, delay);
+                max = Math.max(max, delay);
+            }
+            assertTrue("attempt " + attempt + " min " + min, min >= backoff / 2);
+            assertTrue("attempt " + attempt + " max " + max, max <= backoff);
+            // The jitter spreads the delays over the range
+            assertTrue("attempt " + attempt + " spread " + (max - min), max - min > backoff / 4);
+        }
+    }
+
+    @Test
+    public void backoffIsCappedAfterManyAttempts() {
+        TagDataRequest request = failed(40, unreachable());
+        for (int i = 0; i < 100; i++) {
+            long delay = policy.getRetryDelay(request);
+            assertTrue(delay >= TagRetryPolicy.MAX_BACKOFF_MILLIS / 2);
+            assertTrue(delay <= TagRetryPolicy.MAX_BACKOFF_MILLIS);
+        }
+    }
+
+    @Test
+    public void retryAfterReplacesTheBackoff() {
+        assertEquals(7000, policy.getRetryDelay(failed(1, status(503, "7"))));
+        assertEquals(120000, policy.getRetryDelay(failed(5, status(429, " 120 "))));
+    }
+
+    @Test
+    public void retryAfterDateFallsBackToTheBackoff() {
+        long delay = policy.getRetryDelay(failed(1, status(503, "Wed, 21 Oct 2015 07:28:00 GMT")));
+        assertTrue(delay >= TagRetryPolicy.INITIAL_BACKOFF_MILLIS / 2);
+        assertTrue(delay <= TagRetryPolicy.INITIAL_BACKOFF_MILLIS);
+    }
+
+    @Test
+    public void noAttemptIsScheduledAfterTheDeadline() {
+        TagDataRequest request = failed(1, unreachable());
+        request.setCreationTime(System.currentTimeMillis() - DAY_MILLIS + 500);
+        assertEquals(-1, policy.getRetryDelay(request));
+
+        TagDataRequest throttled = failed(1, status(503, "3600"));
+        throttled.setCreationTime(System.currentTimeMillis() - DAY_MILLIS + 60000);
+        assertEquals(-1, policy.getRetryDelay(throttled));
+    }
+}
@@ -0,0 +1,162 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TagTraceTest {
+
+    private static final String CATEGORY = "test";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+        TagTrace.setBufferSize(0);
+    }
+
+    /**
+     * Export the trace and parse it.
+     *
+     * @return The events of the test category, oldest first.
+     */
+    private List<JSONObject> export() throws IOException {
+        File file = folder.newFile();
+        assertTrue(TagTrace.export(file));
+        InputStream in = new FileInputStream(file);
+        byte[] bytes = new byte[(int) file.length()];
+        try {
+            int read = 0;
+            while (read < bytes.length) {
+                read += in.read(bytes, read, bytes.length - read);
+            }
+        } finally {
+            in.close();
+        }
+        JSONObject trace = new JSONObject(new String(bytes, "UTF-8"));
+        assertEquals("ms", trace.getString("displayTimeUnit"));
+        JSONArray events = trace.getJSONArray("traceEvents");
+        List<JSONObject> result = new ArrayList<>();
+        for (int i = 0; i < events.length(); i++) {
+            JSONObject event = events.getJSONObject(i);
+            if (CATEGORY.equals(event.optString("cat"))) {
+                result.add(event);
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void nothingIsRecordedWhenDisabled() throws IOException {
+        TagTrace.setBufferSize(0);
+
+        assertEquals(0, TagTrace.begin());
+        TagTrace.instant("event", CATEGORY, 1);
+        assertFalse(TagTrace.export(folder.newFile()));
+    }
+
+    @Test
+    public void spansAndInstantsAreExported() throws Exception {
+        TagTrace.setBufferSize(16);
+        long start = TagTrace.begin();
+        Thread.sleep(2);
+        TagTrace.end("span", CATEGORY, start, 42);
+        TagTrace.instant("event", CATEGORY, TagTrace.NO_ID);
+
+        List<JSONObject> events = export();
+
+        assertEquals(2, events.size());
+        JSONObject span = events.get(0);
+        assertEquals("span", span.getString("name"));
+        assertEquals("X", span.getString("ph"));
+        assertTrue(span.getDouble("dur") >= 2000);
+        assertEquals("42", span.getJSONObject("args").getString("id"));
+        assertEquals(Thread.currentThread().getId(), span.getLong("tid"));
+        JSONObject instant = events.get(1);
+        assertEquals("event", instant.getString("name"));
+        assertEquals("i", instant.getString("ph"));
+        assertFalse(instant.has("args"));
+        assertTrue(instant.getDouble("ts") >= span.getDouble("ts"));
+    }
+
+    @Test
+    public void bufferKeepsTheNewestEvents() throws Exception {
+        // Rounded up to 8 events
+        TagTrace.setBufferSize(5);
+        for (int i = 0; i < 20; i++) {
+            TagTrace.instant("event", CATEGORY, i);
+        }
+
+        List<JSONObject> events = export();
+
+        assertEquals(8, events.size());
+        for (int i = 0; i < 8; i++) {
+            assertEquals(String.valueOf(12 + i), events.get(i).getJSONObject("args").getString("id"));
+        }
+    }
+
+    @Test
+    public void newBufferDiscardsTheRecordedEvents() throws Exception {
+        TagTrace.setBufferSize(8);
+        TagTrace.instant("event", CATEGORY, 1);
+        TagTrace.setBufferSize(8);
+
+        assertEquals(0, export().size());
+    }
+
+    @Test
+    public void concurrentRecordingExportsValidEvents() throws Exception {
+        TagTrace.setBufferSize(1024);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long base = t * 100000L;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 20000; i++) {
+                        long start = TagTrace.begin();
+                        TagTrace.end("span", CATEGORY, start, base + i);
+                    }
+                }
+            }, "trace-" + t);
+            threads[t].start();
+        }
+        // Exported while the threads are recording
+        List<JSONObject> during = export();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        List<JSONObject> after = export();
+
+        assertTrue(during.size() <= 1024);
+        assertEquals(1024, after.size());
+        Set<String> ids = new HashSet<>();
+        for (JSONObject event : after) {
+            assertTrue(ids.add(event.getJSONObject("args").getString("id")));
+            assertTrue(event.getDouble("dur") >= 0);
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the default transport and a custom transport against a local collector.
+ */
+public class TagTransportTest {
+
+    private static final RequestHeaders HEADERS = new RequestHeaders("app/1.0", "sifo=1", 0);
+
+    private StubCollector collector;
+
+    @Before
+    public void setUp() throws IOException {
+        collector = new StubCollector();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        collector.close();
+    }
+
+    private static TagTransport.Request get(String url) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("User-Agent", "app/1.0");
+        return new TagTransport.Request("GET", url, headers, null);
+    }
+
+    private static HttpConnectionTransport newTransport() {
+        HttpConnectionTransport transport = new HttpConnectionTransport();
+        transport.setTimeouts(5000, 10000);
+        return transport;
+    }
+
+    @Test
+    public void statusAndRetryAfterAreReturned() throws Exception {
+        HttpConnectionTransport transport = newTransport();
+
+        TagTransport.Response ok = transport.execute(get(collector.url("/tag?cat=a")));
+        assertEquals(200, ok.getStatusCode());
+        assertNull(ok.getRetryAfter());
+        StubCollector.Exchange exchange = collector.take();
+        assertEquals("GET", exchange.method);
+        assertEquals("/tag?cat=a", exchange.path);
+        assertEquals("app/1.0", exchange.header("User-Agent"));
+
+        collector.respond(503, "Service Unavailable", "Retry-After: 7\r\n", "busy".getBytes("UTF-8"));
+        TagTransport.Response unavailable = transport.execute(get(collector.url("/tag?cat=b")));
+        assertEquals(503, unavailable.getStatusCode());
+        assertEquals("Service Unavailable", unavailable.getMessage());
+        assertEquals("7", unavailable.getRetryAfter());
+
+        collector.respond(404, "Not Found", "Retry-After: 7\r\n", new byte[0]);
+        assertEquals(404, transport.execute(get(collector.url("/tag?cat=c"))).getStatusCode());
+    }
+
+    @Test
+    public void postBodyIsSent() throws Exception {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Content-Type", "application/json; charset=utf-8");
+        byte[] body = "[{\"cat\":\"a\"}]".getBytes("UTF-8");
+
+        TagTransport.Response response = newTransport().execute(
+                new TagTransport.Request("POST", collector.url("/batch"), headers, body));
+
+        assertEquals(200, response.getStatusCode());
+        StubCollector.Exchange exchange = collector.take();
+        assertEquals("POST", exchange.method);
+        assertEquals("[{\"cat\":\"a\"}]", exchange.bodyAsString());
+    }
+
+    @Test
+    public void drainedConnectionIsReused() throws Exception {
+        HttpConnectionTransport transport = newTransport();
+        collector.respond(200, "OK", "", new byte[HttpConnectionTransport.MAX_DRAINED_BYTES / 2]);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(200, transport.execute(get(collector.url("/tag?i=" + i))).getStatusCode());
+        }
+        collector.respond(500, "Internal Server Error", "", new byte[100]);
+        assertEquals(500, transport.execute(get(collector.url("/tag?i=3"))).getStatusCode());
+        collector.respond(200, "OK", "", new byte[0]);
+        assertEquals(200, transport.execute(get(collector.url("/tag?i=4"))).getStatusCode());
+
+        assertEquals(1, collector.getConnections());
+    }
+
+    @Test
+    public void connectionWithLargeBodyIsClosed() throws Exception {
+        HttpConnectionTransport transport = newTransport();
+        collector.respond(200, "OK", "", new byte[HttpConnectionTransport.MAX_DRAINED_BYTES * 2]);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(200, transport.execute(get(collector.url("/tag?i=" + i))).getStatusCode());
+        }
+
+        assertEquals(3, collector.getConnections());
+    }
+
+    @Test
+    public void abortEndsTheRequestInFlight() throws Exception {
+        final HttpConnectionTransport transport = newTransport();
+        collector.hang();
+        final TagTransport.Request request = get(collector.url("/tag"));
+        final AtomicReference<Throwable> thrown = new AtomicReference<>();
+        Thread sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    transport.execute(request);
+                } catch (Throwable e) {
+                    thrown.set(e);
+                }
+            }
+        });
+        sender.start();
+        assertNotNull(collector.take());
+
+        long start = System.currentTimeMillis();
+        transport.abort(request);
+        sender.join(5000);
+
+        assertTrue("The request was not aborted", System.currentTimeMillis() - start < 5000);
+        assertTrue(String.valueOf(thrown.get()), thrown.get() instanceof IOException);
+    }
+
+    @Test
+    public void customTransportIsUsedForTags() throws Exception {
+        SocketTransport transport = new SocketTransport();
+        collector.respond(429, "Too Many Requests", "Retry-After: 30\r\n", new byte[0]);
+        TagDataRequestTest.RecordingListener listener = new TagDataRequestTest.RecordingListener();
+        TagDataRequest request = new TagDataRequest("cat", "id", "name", collector.url("/tag?cat=cat"), "app", "1.0", listener, null);
+
+        request.initRequest(transport, HEADERS);
+
+        assertEquals(1, listener.failed.size());
+        assertEquals(429, request.getHttpStatusCode());
+        assertEquals(TagFailureReason.HTTP_STATUS, request.getFailureReason());
+        assertEquals(30000, request.getRetryAfterMillis());
+        StubCollector.Exchange exchange = collector.take();
+        assertEquals("sifo=1", exchange.header("Cookie"));
+        assertEquals("app/1.0", exchange.header("User-Agent"));
+    }
+
+    @Test
+    public void customTransportIsAbortedThroughTheRequest() throws Exception {
+        SocketTransport transport = new SocketTransport();
+        collector.hang();
+        TagDataRequestTest.RecordingListener listener = new TagDataRequestTest.RecordingListener();
+        final TagDataRequest request = new TagDataRequest("cat", "id", "name", collector.url("/tag?cat=cat"), "app", "1.0", listener, null);
+        Thread watchdog = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    collector.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                request.abort();
+            }
+        });
+        watchdog.start();
+
+        request.initRequest(transport, HEADERS);
+        watchdog.join();
+
+        assertEquals(1, listener.failed.size());
+        assertEquals(TagFailureReason.ABORTED_STUCK, request.getFailureReason());
+        assertEquals(0, request.getHttpStatusCode());
+    }
+
+    /**
+     * A minimal custom transport writing HTTP/1.1 on a plain socket, one connection per request,
+     * kept in the request tag so it can be aborted.
+     */
+    private static class SocketTransport implements TagTransport {
+
+        @Override
+        public Response execute(Request request) throws IOException {
+            URL url = new URL(request.getUrl());
+            Socket socket = new Socket(url.getHost(), url.getPort());
+            request.setTag(socket);
+            try {
+                request.onConnected();
+                StringBuilder head = new StringBuilder();
+                head.append(request.getMethod()).append(' ').append(url.getFile()).append(" HTTP/1.1\r\n");
+                head.append("Host: ").append(url.getHost()).append("\r\n");
+                head.append("Connection: close\r\n");
+                for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+                    head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+                }
+                head.append("\r\n");
+                OutputStream out = socket.getOutputStream();
+                out.write(head.toString().getBytes("ISO-8859-1"));
+                out.flush();
+
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                String statusLine = readLine(in);
+                if (statusLine == null) {
+                    throw new IOException("Connection closed before the response");
+                }
+                request.onResponseStarted();
+                String[] parts = statusLine.split(" ", 3);
+                Map<String, String> headers = new HashMap<>();
+                String line;
+                while ((line = readLine(in)) != null && line.length() > 0) {
+                    int colon = line.indexOf(':');
+                    headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+                }
+                return new Response(Integer.parseInt(parts[1]), parts.length > 2 ? parts[2] : null, headers.get("retry-after"));
+            } finally {
+                request.setTag(null);
+                socket.close();
+            }
+        }
+
+        @Override
+        public void abort(Request request) {
+            Object socket = request.getTag();
+            if (socket instanceof Socket) {
+                try {
+                    ((Socket) socket).close();
+                } catch (IOException e) {
+                    fail(e.toString());
+                }
+            }
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1) {
+                if (b == '\n') {
+                    String s = line.toString("ISO-8859-1");
+                    return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+                }
+                line.write(b);
+            }
+            return null;
+        }
+    }
+}
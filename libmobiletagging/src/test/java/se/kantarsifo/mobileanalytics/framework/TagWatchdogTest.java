@@ -0,0 +1,72 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Stalls tags in a transport that can not abort them, past the request deadline.
+ */
+public class TagWatchdogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final TestFramework.GateTransport transport = new TestFramework.GateTransport();
+
+    @After
+    public void tearDown() {
+        transport.open();
+        TSMobileAnalyticsBackend.destroyInstance();
+    }
+
+    private TagDataRequestHandler start(TSMobileAnalytics.Builder builder) {
+        TSMobileAnalytics settings = builder
+                .setCpId("1234")
+                .setApplicationName("app")
+                .setTransport(transport)
+                .setRequestDeadline(100)
+                .build();
+        return TestFramework.start(settings).dataRequestHandler;
+    }
+
+    @Test
+    public void stalledAttemptIsAbortedOnce() throws Exception {
+        TagDataRequestHandler handler = start(new TSMobileAnalytics.Builder(TestFramework.context(folder.getRoot())));
+        assertEquals(TagStringsAndValues.RESULT_SUCCESS, handler.performMetricsRequest("tag-a"));
+        assertNotNull(transport.next());
+
+        // The watchdog passes at least twice while the attempt is stalled
+        Thread.sleep(2 * TagStringsAndValues.MIN_WATCHDOG_INTERVAL_MILLIS + 500);
+
+        assertEquals(1, handler.getMetrics().getAborted());
+    }
+
+    @Test
+    public void stalledBatchIsAbortedOnce() throws Exception {
+        TagDataRequestHandler handler = start(new TSMobileAnalytics.Builder(TestFramework.context(folder.getRoot()))
+                .setBatchUpload(true)
+                .setBatchEndpoint("https://collector.example.com/batch")
+                .setBatchWindow(10));
+        handler.performMetricsRequest("tag-a");
+        handler.performMetricsRequest("tag-b");
+        String url = transport.next();
+        assertNotNull(url);
+        assertTrue(url, url.endsWith("/batch"));
+
+        Thread.sleep(2 * TagStringsAndValues.MIN_WATCHDOG_INTERVAL_MILLIS + 500);
+
+        assertEquals(1, handler.getMetrics().getAborted());
+    }
+}
@@ -0,0 +1,91 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpCookie;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts the framework on the JVM, with a context that only provides the files directory.
+ */
+final class TestFramework {
+
+    private TestFramework() {
+    }
+
+    /**
+     * Create a context whose files directory, holding the outbox, is the specified directory.
+     * Everything else returns null, as in the mockable android.jar.
+     */
+    static Context context(final File filesDir) {
+        return new ContextWrapper(null) {
+            @Override
+            public File getFilesDir() {
+                return filesDir;
+            }
+        };
+    }
+
+    /**
+     * Create and publish a framework instance for a non-panelist user.
+     *
+     * @param settings The settings, built with a context from {@link #context(File)}.
+     * @return The instance.
+     */
+    static TSMobileAnalyticsBackend start(TSMobileAnalytics settings) {
+        TSMobileAnalyticsBackend instance = new TSMobileAnalyticsBackend(settings.context, "1234", "app",
+                Collections.<HttpCookie>emptyList(), settings);
+        TSMobileAnalytics.frameworkInstance = instance;
+        return instance;
+    }
+
+    /**
+     * A transport holding every request until it is opened, then answering 200.
+     */
+    static class GateTransport implements TagTransport {
+        final CountDownLatch gate = new CountDownLatch(1);
+        final BlockingQueue<String> urls = new LinkedBlockingQueue<>();
+
+        @Override
+        public Response execute(Request request) throws IOException {
+            urls.add(request.getUrl());
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            return new Response(200, null, null);
+        }
+
+        @Override
+        public void abort(Request request) {
+        }
+
+        void open() {
+            gate.countDown();
+        }
+
+        /**
+         * Wait for the next request to reach the transport.
+         *
+         * @return The URL of the request, null if none arrived within five seconds.
+         */
+        String next() throws InterruptedException {
+            return urls.poll(5, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpCookie;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+/**
+ * Compares building a tag URL from the precompiled template with the String.format and URLEncoder
+ * code it replaced. Not a unit test, run the main method on a desktop JVM:
+ * <pre>
+ * UrlBuildBenchmark [iterations]
+ * </pre>
+ * Prints the time and the memory allocated per URL, with and without the encoding cache.
+ * The allocated memory is only reported on JVMs exposing per-thread allocation counters.
+ */
+public class UrlBuildBenchmark {
+
+    private static final String CAT = "News/Sports/Football";
+    private static final String ID = "article-12345";
+    private static final String NAME = "Match report: Malmö FF";
+
+    private static final String CPID_MOBILETECH = "1234";
+    private static final String CPID_CODIGO = "0123456789abcdef0123456789abcdef";
+
+    /**
+     * Receives every URL, so the JIT can not remove the work.
+     */
+    private static int sink;
+
+    private interface UrlBuilder {
+        String build() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        TagLog.setLevel(TagLogLevel.FATAL);
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+        try {
+            for (final String cpId : new String[]{CPID_MOBILETECH, CPID_CODIGO}) {
+                final TagHandler handler = new TagHandler(null, cpId, "Benchmark app",
+                        Collections.<HttpCookie>emptyList(), scheduler, null);
+                final boolean codigo = cpId.length() == TagStringsAndValues.CPID_LENGTH_CODIGO;
+                String provider = codigo ? "Codigo    " : "Mobiletech";
+
+                run(provider + " String.format ", iterations, new UrlBuilder() {
+                    @Override
+                    public String build() throws Exception {
+                        return formatUrl(handler, codigo, cpId);
+                    }
+                });
+                TagHandler.getEncodingCache().setMaxBytes(0);
+                run(provider + " template      ", iterations, new UrlBuilder() {
+                    @Override
+                    public String build() {
+                        return handler.getURL(CAT, ID, NAME);
+                    }
+                });
+                TagHandler.getEncodingCache().setMaxBytes(TagStringsAndValues.DEFAULT_URL_ENCODING_CACHE_BYTES);
+                run(provider + " template+cache", iterations, new UrlBuilder() {
+                    @Override
+                    public String build() {
+                        return handler.getURL(CAT, ID, NAME);
+                    }
+                });
+            }
+        } finally {
+            scheduler.shutdownNow();
+        }
+        System.out.println(sink == 42 ? "" : "done");
+    }
+
+    /**
+     * The URL as it was built before the template, for comparison.
+     */
+    private static String formatUrl(TagHandler handler, boolean codigo, String cpId) throws Exception {
+        String urlBase = handler.decideUrl(cpId);
+        String ref = URLEncoder.encode(handler.getRef().trim(), "UTF-8");
+        String cat = URLEncoder.encode(CAT.trim(), "UTF-8");
+        String id = URLEncoder.encode(ID.trim(), "UTF-8");
+        if (codigo) {
+            return String.format("%ssiteId=%s&appClientId=%s&cp=%s&appId=%s&appName=%s&appRef=%s",
+                    urlBase, cpId, handler.getEuid(), cat, id, handler.getType(), ref);
+        }
+        String name = URLEncoder.encode(NAME.trim(), "UTF-8");
+        String nameTag = "&name=" + URLEncoder.encode(name.trim(), "UTF-8");
+        return String.format("%scpid=%s&cat=%s&ref=%s&id=%s%s&type=%s&euid=%s&euidq=%s",
+                urlBase, cpId, cat, ref, id, nameTag, handler.getType(), handler.getEuid(), handler.getEuidq());
+    }
+
+    private static void run(String label, int iterations, UrlBuilder builder) throws Exception {
+        // Warm up
+        for (int i = 0; i < iterations / 2; i++) {
+            sink += builder.build().length();
+        }
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += builder.build().length();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+        System.out.println(label + ": " + elapsed / iterations + " ns/op"
+                + (allocatedBefore >= 0 ? ", " + allocated / iterations + " B/op" : ""));
+    }
+
+    /**
+     * @return The bytes allocated by the current thread, -1 if the JVM does not tell.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
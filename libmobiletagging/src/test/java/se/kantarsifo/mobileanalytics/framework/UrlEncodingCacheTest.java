@@ -0,0 +1,158 @@
+/*************************************************
+ * Kantar Sifo Mobile Analytics Framework        *
+ * (c) Copyright 2017 Kantar Sifo AB, Sweden,    *
+ * All rights reserved.                          *
+ *************************************************/
+
+package se.kantarsifo.mobileanalytics.framework;
+
+import org.junit.Test;
+
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class UrlEncodingCacheTest {
+
+    /**
+     * The estimated cost of one string, as counted by the cache: half the entry overhead and two bytes per char.
+     */
+    private static long cost(String s) {
+        return 48 + 2 * s.length();
+    }
+
+    @Test
+    public void entriesAreCountedWithBothEncodedForms() {
+        UrlEncodingCache cache = new UrlEncodingCache(10000);
+
+        assertEquals("a+b", cache.encode("a b"));
+        assertEquals(cost("a b") + cost("a+b"), cache.getBytes());
+
+        assertEquals("a%2Bb", cache.encodeTwice("a b"));
+        assertEquals(cost("a b") + cost("a+b") + cost("a%2Bb"), cache.getBytes());
+        assertEquals(1, cache.size());
+
+        assertEquals("x%25C3%25A9", cache.encodeTwice("xé"));
+        assertEquals(cost("a b") + cost("a+b") + cost("a%2Bb") + cost("xé") + cost("x%C3%A9") + cost("x%25C3%25A9"),
+                cache.getBytes());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void hitsAndMissesAreCounted() {
+        UrlEncodingCache cache = new UrlEncodingCache(10000);
+        cache.encode("news");
+        cache.encode("news");
+        cache.encodeTwice("news");
+        cache.encodeTwice("news");
+
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void leastRecentlyUsedEntryIsEvictedFirst() {
+        // Room for exactly three entries of two chars
+        long entryBytes = cost("v1") + cost("v1");
+        UrlEncodingCache cache = new UrlEncodingCache(3 * entryBytes);
+        cache.encode("v1");
+        cache.encode("v2");
+        cache.encode("v3");
+        cache.encode("v1");
+
+        cache.encode("v4");
+
+        assertEquals(3, cache.size());
+        assertEquals(3 * entryBytes, cache.getBytes());
+        long misses = cache.getMisses();
+        cache.encode("v1");
+        cache.encode("v3");
+        cache.encode("v4");
+        assertEquals(misses, cache.getMisses());
+        cache.encode("v2");
+        assertEquals(misses + 1, cache.getMisses());
+    }
+
+    @Test
+    public void shrinkingTheCacheEvictsDownToTheLimit() {
+        UrlEncodingCache cache = new UrlEncodingCache(100000);
+        for (int i = 0; i < 100; i++) {
+            cache.encode("value" + i);
+        }
+        long entryBytes = cost("value10") + cost("value10");
+
+        cache.setMaxBytes(10 * entryBytes);
+        assertTrue(cache.getBytes() <= 10 * entryBytes);
+        assertEquals(10, cache.size());
+
+        cache.setMaxBytes(0);
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getBytes());
+        assertEquals("a+b", cache.encode("a b"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void valueLargerThanTheCacheIsNotKept() {
+        UrlEncodingCache cache = new UrlEncodingCache(200);
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            large.append('x');
+        }
+        cache.encode("small");
+        cache.encode(large.toString());
+
+        assertEquals(1, cache.size());
+        assertEquals(cost("small") * 2, cache.getBytes());
+    }
+
+    @Test
+    public void concurrentUseKeepsTheAccountingExact() throws Exception {
+        final UrlEncodingCache cache = new UrlEncodingCache(4000);
+        final String[] values = new String[200];
+        Random random = new Random(3);
+        for (int i = 0; i < values.length; i++) {
+            values[i] = "v" + random.nextInt(1000) + (i % 3 == 0 ? " ö" : "");
+        }
+        final List<Throwable> errors = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final Random threadRandom = new Random(t);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 20000; i++) {
+                            String s = values[threadRandom.nextInt(values.length)];
+                            String expected = URLEncoder.encode(s, "UTF-8");
+                            if (i % 2 == 0) {
+                                assertEquals(expected, cache.encode(s));
+                            } else {
+                                assertEquals(URLEncoder.encode(expected, "UTF-8"), cache.encodeTwice(s));
+                            }
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(errors.toString(), 0, errors.size());
+        assertTrue(cache.getBytes() <= 4000);
+        // The byte count only returns to zero if every entry was added and removed with the same cost
+        cache.setMaxBytes(0);
+        assertEquals(0, cache.getBytes());
+    }
+}